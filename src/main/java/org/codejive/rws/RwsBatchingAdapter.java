@@ -0,0 +1,22 @@
+package org.codejive.rws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Optionally implemented by adapters that can send several messages in
+ * one go, for example using a single gathering write. Sessions that
+ * coalesce their outbound messages will use it to flush them, see
+ * <code>RwsSession.setCoalesceDelay()</code>.
+ *
+ * @author tako
+ */
+public interface RwsBatchingAdapter extends RwsBufferAdapter {
+
+    /**
+     * Sends the given messages in order, each of them as a separate text
+     * or binary message as indicated by <code>binary</code>. The same rules
+     * apply as for <code>sendMessage(ByteBuffer)</code>.
+     */
+    public void sendMessages(ByteBuffer[] msgs, boolean[] binary) throws IOException;
+}
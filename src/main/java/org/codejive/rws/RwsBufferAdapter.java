@@ -0,0 +1,29 @@
+package org.codejive.rws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Optionally implemented by adapters that can send messages straight from
+ * a buffer, which saves sessions from turning each encoded message back
+ * into a <code>String</code> first. Adapters that don't implement it are
+ * sent all text messages using <code>sendMessage(String)</code>, and their
+ * sessions can't use binary wire formats or compression.
+ *
+ * @author tako
+ */
+public interface RwsBufferAdapter extends RwsWebSocketAdapter {
+
+    /**
+     * Sends a text message that has already been encoded as UTF-8. The
+     * buffer's contents are only valid for the duration of the call, so
+     * implementations that send asynchronously must make a copy.
+     */
+    public void sendMessage(ByteBuffer msg) throws IOException;
+
+    /**
+     * Sends a binary message, used for sessions that selected a binary wire
+     * format. The same rules apply as for <code>sendMessage(ByteBuffer)</code>.
+     */
+    public void sendBinaryMessage(ByteBuffer msg) throws IOException;
+}
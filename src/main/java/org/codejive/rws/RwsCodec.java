@@ -0,0 +1,30 @@
+package org.codejive.rws;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A wire format that messages can be encoded in. Each session uses exactly
+ * one codec for its outbound messages, JSON unless the client negotiated
+ * something else.
+ *
+ * @author tako
+ */
+public interface RwsCodec {
+
+    /**
+     * The name clients use to ask for this wire format, eg "json" or "cbor"
+     */
+    String getName();
+
+    /**
+     * Returns true if messages in this format must be sent as binary frames
+     */
+    boolean isBinary();
+
+    /**
+     * Returns an empty writer, call <code>release()</code> on it when done
+     */
+    RwsWriter acquireWriter();
+
+    RwsReader newReader(ByteBuffer msg);
+}
@@ -0,0 +1,196 @@
+package org.codejive.rws;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses outbound messages for sessions that enabled compression, see
+ * <code>RwsSession.setCompressed()</code>. Only messages of at least
+ * <code>threshold</code> bytes get compressed, smaller ones are sent as
+ * usual. Compressed messages are always sent as binary messages where the
+ * first byte indicates the kind of compression followed by raw deflate
+ * (RFC 1951) data that decompresses to the message in the session's wire
+ * format:
+ * <ul>
+ * <li><code>0x01</code>: the message was compressed on its own, starting
+ * from the preset dictionary if there is one</li>
+ * <li><code>0x02</code>: the message is the continuation of a deflate
+ * stream that persists for the entire connection (ends with a sync flush),
+ * only used when <code>contextTakeover</code> is enabled</li>
+ * </ul>
+ * Messages sent to more than one session always use the first kind so they
+ * only need to be compressed once. Raw deflate data doesn't say whether a
+ * dictionary was used, so clients must be configured with the same
+ * dictionary and set it on each new inflater before inflating.
+ *
+ * @author tako
+ */
+public class RwsCompressor {
+    private final int threshold;
+    private final int level;
+    private final byte[] dictionary;
+    private final boolean contextTakeover;
+
+    // Deflaters hold native memory so they're shared between threads instead
+    // of being cached per thread, which wouldn't work for virtual threads
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger pooledDeflaters = new AtomicInteger();
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+    public static final int FRAME_SINGLE = 0x01;
+    public static final int FRAME_STREAM = 0x02;
+
+    private static final int INITIAL_SIZE = 8 * 1024;
+    private static final int MAX_RETAINED_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_DEFLATERS = 64;
+
+    public RwsCompressor(int threshold) {
+        this(threshold, Deflater.DEFAULT_COMPRESSION, null, false);
+    }
+
+    /**
+     * Creates a new compressor
+     * @param threshold the minimum size of messages to compress in bytes
+     * @param level the deflate compression level (0-9)
+     * @param dictionary a preset dictionary, typically made up of byte
+     * sequences that occur often in messages, or <code>null</code>
+     * @param contextTakeover if true each session gets its own deflate stream
+     * that persists across messages, this costs memory per session but
+     * compresses repetitive messages much better
+     */
+    public RwsCompressor(int threshold, int level, byte[] dictionary, boolean contextTakeover) {
+        this.threshold = threshold;
+        this.level = level;
+        this.dictionary = dictionary;
+        this.contextTakeover = contextTakeover;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isContextTakeover() {
+        return contextTakeover;
+    }
+
+    boolean shouldCompress(ByteBuffer msg) {
+        return msg.remaining() >= threshold;
+    }
+
+    /**
+     * Compresses a single message on its own. Returns a new buffer holding
+     * the complete frame.
+     */
+    ByteBuffer compress(ByteBuffer msg, RwsStatistics stats) {
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            pooledDeflaters.decrementAndGet();
+            deflater.reset();
+        }
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        ByteBuffer result = deflate(deflater, msg, FRAME_SINGLE, Deflater.FULL_FLUSH, true);
+        if (pooledDeflaters.incrementAndGet() <= MAX_POOLED_DEFLATERS) {
+            deflaters.offer(deflater);
+        } else {
+            pooledDeflaters.decrementAndGet();
+            deflater.end();
+        }
+        stats.addCompression(msg.remaining(), result.remaining(), System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Returns a new deflate stream for a single session or <code>null</code>
+     * if <code>contextTakeover</code> isn't enabled
+     */
+    Stream newStream() {
+        return contextTakeover ? new Stream() : null;
+    }
+
+    /**
+     * A deflate stream that persists across messages. Messages must be
+     * sent in the same order they were compressed, so callers should
+     * synchronize on the stream while compressing and sending.
+     */
+    class Stream {
+        private final Deflater deflater;
+        private boolean ended;
+
+        private Stream() {
+            deflater = new Deflater(level, true);
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+        }
+
+        ByteBuffer compress(ByteBuffer msg, RwsStatistics stats) {
+            if (ended) {
+                // Compression was turned off or changed while we were waiting
+                return RwsCompressor.this.compress(msg, stats);
+            }
+            long start = System.nanoTime();
+            ByteBuffer result = deflate(deflater, msg, FRAME_STREAM, Deflater.SYNC_FLUSH, false);
+            stats.addCompression(msg.remaining(), result.remaining(), System.nanoTime() - start);
+            return result;
+        }
+
+        /**
+         * Frees the native resources held by the stream
+         */
+        void end() {
+            ended = true;
+            deflater.end();
+        }
+    }
+
+    private ByteBuffer deflate(Deflater deflater, ByteBuffer msg, int frameType, int flush, boolean finish) {
+        byte[] input;
+        int offset;
+        if (msg.hasArray()) {
+            input = msg.array();
+            offset = msg.arrayOffset() + msg.position();
+        } else {
+            input = new byte[msg.remaining()];
+            msg.duplicate().get(input);
+            offset = 0;
+        }
+        deflater.setInput(input, offset, msg.remaining());
+        if (finish) {
+            deflater.finish();
+        }
+        byte[] buf = buffers.get();
+        if (buf == null) {
+            buf = new byte[INITIAL_SIZE];
+            buffers.set(buf);
+        }
+        buf[0] = (byte) frameType;
+        int size = 1;
+        while (true) {
+            size += deflater.deflate(buf, size, buf.length - size, flush);
+            if (size < buf.length) {
+                // The deflater didn't fill the buffer, so it's done
+                break;
+            }
+            byte[] tmp = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, tmp, 0, size);
+            buf = tmp;
+            if (buf.length <= MAX_RETAINED_SIZE) {
+                buffers.set(buf);
+            }
+        }
+        byte[] result = new byte[size];
+        System.arraycopy(buf, 0, result, 0, size);
+        return ByteBuffer.wrap(result);
+    }
+}
@@ -2,17 +2,29 @@
 package org.codejive.rws;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.codejive.rws.cbor.CborCodec;
 import org.codejive.rws.events.MulticastEvent;
 import org.codejive.rws.events.MulticastListener;
 import org.codejive.rws.events.SessionEvent;
 import org.codejive.rws.events.SessionListener;
+import org.codejive.rws.json.JsonCodec;
+import org.codejive.rws.utils.RwsExecutors;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,9 +39,31 @@ public class RwsContext {
     private final Set<SessionListener> sessionListeners = new CopyOnWriteArraySet<SessionListener>();
     private final Set<MulticastListener> multicastListeners = new CopyOnWriteArraySet<MulticastListener>();
     private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+    private final Map<String, RwsCodec> codecs = new ConcurrentHashMap<String, RwsCodec>();
+    private final RwsCodec defaultCodec = new JsonCodec();
+    private final RwsStatistics statistics = new RwsStatistics();
+    private volatile RwsCompressor compressor;
+    private ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, RwsSession> suspendedSessions = new ConcurrentHashMap<String, RwsSession>();
+    private volatile long resumeGracePeriod;
+    private volatile int resumeBufferSize = 1000;
+    private final Map<String, RwsGroupLog> groupLogs = new ConcurrentHashMap<String, RwsGroupLog>();
+    private final AtomicReferenceArray<RwsRateLimit> rateLimits = new AtomicReferenceArray<RwsRateLimit>(RwsRateLimit.Type.values().length);
+    private volatile int maxMessageSize;
+    private volatile Executor sessionExecutor;
+    private final RwsPeriodicCalls periodicCalls = new RwsPeriodicCalls(this);
+    private volatile long minPollInterval = 1000;
+    private Executor pollExecutor;
+    private final RwsPresence presence = new RwsPresence(this);
+    private volatile long presenceDelay = 100;
 
     private final Logger log = LoggerFactory.getLogger(RwsContext.class);
 
+    public RwsContext() {
+        registerCodec(defaultCodec);
+        registerCodec(new CborCodec());
+    }
+
     public RwsRegistry getRegistry() {
         return registry;
     }
@@ -54,6 +88,193 @@ public class RwsContext {
         attributes.clear();
     }
 
+    public RwsStatistics getStatistics() {
+        return statistics;
+    }
+
+    public RwsCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Sets the compressor to use for sessions that enable compression,
+     * <code>null</code> disables compression altogether. Sessions that
+     * already enabled compression keep using the compressor that was set
+     * at that time.
+     */
+    public void setCompressor(RwsCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Returns the executor used for timed tasks like flushing coalesced
+     * messages. It's created on first use and runs on a single daemon
+     * thread, so tasks should be short and must not block.
+     */
+    public synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "rws-scheduler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    public Executor getSessionExecutor() {
+        return sessionExecutor;
+    }
+
+    /**
+     * Enables mailbox mode by setting the executor that runs the sessions'
+     * mailboxes, see <code>RwsSession.execute()</code>. Each session then
+     * handles its incoming messages and changes its state one task at a
+     * time, while different sessions run in parallel on the executor.
+     * Changes made to a session from other threads are posted to its
+     * mailbox and so become asynchronous. Passing <code>null</code> (the
+     * default) disables mailbox mode, it should not be changed while there
+     * are sessions.
+     */
+    public void setSessionExecutor(Executor sessionExecutor) {
+        this.sessionExecutor = sessionExecutor;
+    }
+
+    public RwsRateLimit getRateLimit(RwsRateLimit.Type type) {
+        return rateLimits.get(type.ordinal());
+    }
+
+    /**
+     * Limits the rate at which each session may send messages of the given
+     * type, <code>null</code> removes the limit. Sessions start applying a
+     * new limit with a full bucket.
+     */
+    public void setRateLimit(RwsRateLimit.Type type, RwsRateLimit limit) {
+        rateLimits.set(type.ordinal(), limit);
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Sets the maximum size of incoming messages, larger ones are dropped
+     * without being read. The size is in bytes, or in characters for
+     * messages that are passed as text. The default of 0 means unlimited.
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public long getMinPollInterval() {
+        return minPollInterval;
+    }
+
+    /**
+     * Sets the shortest interval in milliseconds clients may ask for when
+     * they have a call repeated periodically, shorter ones are raised to
+     * this value. The default is 1000.
+     */
+    public void setMinPollInterval(long minPollInterval) {
+        this.minPollInterval = minPollInterval;
+    }
+
+    /**
+     * Returns the executor that runs the methods of periodic calls. Unless
+     * one was set it's created on first use and runs each call on its own
+     * thread, see <code>RwsExecutors.newThreadPerTaskExecutor()</code>.
+     */
+    public synchronized Executor getPollExecutor() {
+        if (pollExecutor == null) {
+            pollExecutor = RwsExecutors.newThreadPerTaskExecutor();
+        }
+        return pollExecutor;
+    }
+
+    /**
+     * Sets the executor that runs the methods of periodic calls, the
+     * scheduler only decides when they are due so slow methods don't hold
+     * up its other tasks
+     */
+    public synchronized void setPollExecutor(Executor pollExecutor) {
+        this.pollExecutor = pollExecutor;
+    }
+
+    RwsPeriodicCalls getPeriodicCalls() {
+        return periodicCalls;
+    }
+
+    /**
+     * Returns the number of distinct periodic calls that are currently
+     * running, however many clients are subscribed to them
+     */
+    public int getPeriodicCallCount() {
+        return periodicCalls.size();
+    }
+
+    RwsPresence getPresence() {
+        return presence;
+    }
+
+    public long getPresenceDelay() {
+        return presenceDelay;
+    }
+
+    /**
+     * Sets the time in milliseconds presence changes are collected before
+     * they are sent to the clients watching them, see
+     * <code>RwsSession.watchPresence()</code>. The default is 100.
+     */
+    public void setPresenceDelay(long presenceDelay) {
+        this.presenceDelay = presenceDelay;
+    }
+
+    /**
+     * Returns the number of members of the given group, or of connected
+     * sessions if the group is <code>null</code>, without looking at all
+     * the sessions
+     */
+    public int getMemberCount(String group) {
+        return presence.getMemberCount(group);
+    }
+
+    /**
+     * Returns the names of the members of the given group, or of all
+     * connected sessions if the group is <code>null</code>, by session id
+     */
+    public Map<String, String> getMemberNames(String group) {
+        return presence.getMembers(group);
+    }
+
+    public void registerCodec(RwsCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    public RwsCodec getCodec(String name) {
+        return codecs.get(name);
+    }
+
+    public RwsCodec getDefaultCodec() {
+        return defaultCodec;
+    }
+
+    /**
+     * Returns the name of the first of the given wire formats that is
+     * supported, or null if there is none. Transports can use this to
+     * negotiate the wire format during the handshake.
+     */
+    public String selectWireFormat(String... wireFormats) {
+        for (String wf : wireFormats) {
+            if (codecs.containsKey(wf)) {
+                return wf;
+            }
+        }
+        return null;
+    }
+
     // ---------------------------------------------------------------------
     // SESSION EVENT HANDLING
     // ---------------------------------------------------------------------
@@ -65,12 +286,102 @@ public class RwsContext {
         return session;
     }
 
+    /**
+     * Removes the session from the context, does nothing if it was already
+     * removed so listeners only get to see a disconnect once
+     */
     public void removeSession(RwsSession session) {
-        sessions.remove(session.getId());
+        if (!sessions.remove(session.getId(), session)) {
+            return;
+        }
+        String token = session.resumeToken();
+        if (token != null) {
+            suspendedSessions.remove(token);
+        }
+        periodicCalls.unsubscribeAll(session);
+        presence.unwatchAll(session);
+        session.releaseInstances();
         session.clearAttributes();
         fireDisconnect(session);
     }
 
+    public long getResumeGracePeriod() {
+        return resumeGracePeriod;
+    }
+
+    /**
+     * Sets the time in milliseconds that sessions whose connection was lost
+     * are kept around so the client can resume them, see
+     * <code>RwsSession.getResumeToken()</code>. During that time the
+     * session keeps its subscriptions and holds on to any messages sent to
+     * it. The default of 0 disables resuming sessions.
+     */
+    public void setResumeGracePeriod(long resumeGracePeriod) {
+        this.resumeGracePeriod = resumeGracePeriod;
+    }
+
+    public int getResumeBufferSize() {
+        return resumeBufferSize;
+    }
+
+    /**
+     * Sets the maximum number of messages held for a suspended session.
+     * If it misses more than that it can't be resumed anymore.
+     */
+    public void setResumeBufferSize(int resumeBufferSize) {
+        this.resumeBufferSize = resumeBufferSize;
+    }
+
+    /**
+     * To be called by adapters when the connection of a session was lost.
+     * If the session can be resumed it will be suspended for the grace
+     * period, otherwise it gets removed and disconnected right away. This
+     * is only meant for connections that broke down without either side
+     * closing them, sessions the client or the server closed on purpose
+     * should be removed instead.
+     */
+    public void suspendSession(final RwsSession session) {
+        final String token = session.resumeToken();
+        if (resumeGracePeriod > 0 && token != null) {
+            ScheduledFuture<?> expiry = getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (suspendedSessions.remove(token, session)) {
+                        log.debug("Session {} was not resumed in time", session.getId());
+                        removeSession(session);
+                        session.disconnect();
+                    }
+                }
+            }, resumeGracePeriod, TimeUnit.MILLISECONDS);
+            suspendedSessions.put(token, session);
+            if (session.suspend(expiry)) {
+                return;
+            }
+            suspendedSessions.remove(token);
+            expiry.cancel(false);
+        }
+        removeSession(session);
+        session.disconnect();
+    }
+
+    /**
+     * To be called by adapters when a client that reconnects passes a
+     * resume token. Returns the resumed session, which from now on uses the
+     * given adapter, or null if there is no session to resume in which case
+     * the adapter should create a new one as usual.
+     */
+    public RwsSession resumeSession(String token, RwsWebSocketAdapter adapter) {
+        RwsSession session = suspendedSessions.remove(token);
+        if (session != null) {
+            if (session.resume(adapter)) {
+                return session;
+            }
+            removeSession(session);
+            session.disconnect();
+        }
+        return null;
+    }
+
     public Collection<RwsSession> listSessions() {
         return Collections.unmodifiableCollection(sessions.values());
     }
@@ -84,6 +395,7 @@ public class RwsContext {
     }
 
     private void fireConnect(RwsSession session) {
+        presence.connect(session);
         SessionEvent event = new SessionEvent(session);
         for (SessionListener l : sessionListeners) {
             try {
@@ -95,6 +407,7 @@ public class RwsContext {
     }
 
     private void fireDisconnect(RwsSession session) {
+        presence.disconnect(session);
         SessionEvent event = new SessionEvent(session);
         for (SessionListener l : sessionListeners) {
             try {
@@ -106,6 +419,7 @@ public class RwsContext {
     }
 
     protected void fireChange(RwsSession session) {
+        presence.rename(session);
         SessionEvent event = new SessionEvent(session);
         for (SessionListener l : sessionListeners) {
             try {
@@ -121,24 +435,41 @@ public class RwsContext {
     // ---------------------------------------------------------------------
 
     public Collection<String> listMulticastGroups() {
-        HashSet<String> groups = new HashSet<String>();
-        for (RwsSession session : sessions.values()) {
-            groups.addAll(session.listMulticastGroups());
-        }
-        return Collections.unmodifiableCollection(groups);
+        return Collections.unmodifiableCollection(presence.listGroups());
     }
 
     public Collection<RwsSession> listMulticastMembers(String group) {
         HashSet<RwsSession> members = new HashSet<RwsSession>();
-        for (RwsSession session : sessions.values()) {
-            Collection<String> groups = session.listMulticastGroups();
-            if (groups.contains(group)) {
+        if (group == null) {
+            return Collections.unmodifiableCollection(members);
+        }
+        for (String id : presence.listMembers(group)) {
+            RwsSession session = sessions.get(id);
+            if (session != null) {
                 members.add(session);
             }
         }
         return Collections.unmodifiableCollection(members);
     }
 
+    public RwsGroupLog getGroupLog(String group) {
+        return groupLogs.get(group);
+    }
+
+    /**
+     * Makes the given group persistent by keeping a log of all messages
+     * sent to it, members can then ask to be sent the messages they missed
+     * when joining, see <code>RwsSession.joinFrom()</code>. Passing
+     * <code>null</code> stops logging the group's messages.
+     */
+    public void setGroupLog(String group, RwsGroupLog groupLog) {
+        if (groupLog != null) {
+            groupLogs.put(group, groupLog);
+        } else {
+            groupLogs.remove(group);
+        }
+    }
+
     public void addMulticastListener(MulticastListener listener) {
         multicastListeners.add(listener);
     }
@@ -148,6 +479,7 @@ public class RwsContext {
     }
 
     protected void fireJoin(String group, RwsSession session) {
+        presence.join(group, session);
         MulticastEvent event = new MulticastEvent(group, session);
         for (MulticastListener l : multicastListeners) {
             try {
@@ -159,6 +491,7 @@ public class RwsContext {
     }
 
     protected void fireLeave(String group, RwsSession session) {
+        presence.leave(group, session);
         MulticastEvent event = new MulticastEvent(group, session);
         for (MulticastListener l : multicastListeners) {
             try {
@@ -181,25 +514,133 @@ public class RwsContext {
     }
 
     public void sendAll(String from, JSONObject data, boolean meToo) {
-        for (RwsSession session : sessions.values()) {
-            if (meToo || !session.getId().equals(from)) {
-                try {
-                    send(session, from, data);
-                } catch (IOException ex) {
-                    // Ignore
+        data.put("from", from);
+        Broadcast msg = new Broadcast(data);
+        try {
+            for (RwsSession session : sessions.values()) {
+                if (meToo || !session.getId().equals(from)) {
+                    try {
+                        send(session, msg);
+                    } catch (IOException ex) {
+                        // Ignore
+                    }
                 }
             }
+        } finally {
+            msg.release();
         }
     }
 
     public void sendMulti(String from, String group, JSONObject data, boolean meToo) {
-        Collection<RwsSession> members = listMulticastMembers(group);
-        for (RwsSession session : members) {
-            if (meToo || !session.getId().equals(from)) {
+        RwsGroupLog groupLog = groupLogs.get(group);
+        if (groupLog == null && listMulticastMembers(group).isEmpty()) {
+            return;
+        }
+        data.put("from", from);
+        Broadcast msg = new Broadcast(data);
+        long seq = -1;
+        try {
+            if (groupLog != null) {
+                // Messages must be appended in the order of their numbers
+                synchronized (groupLog) {
+                    seq = groupLog.reserve();
+                    data.put("seq", seq);
+                    try {
+                        groupLog.append(seq, msg.encode(defaultCodec));
+                    } catch (RwsException ex) {
+                        log.error("Could not encode message", ex);
+                        return;
+                    }
+                }
+            }
+            // Members that join from now on will get the message from the log
+            Collection<RwsSession> members = listMulticastMembers(group);
+            for (RwsSession session : members) {
+                if (seq >= 0 && session.skipLogged(group, seq)) {
+                    continue;
+                }
+                if (meToo || !session.getId().equals(from)) {
+                    try {
+                        send(session, msg);
+                    } catch (IOException ex) {
+                        // Ignore
+                    }
+                }
+            }
+        } finally {
+            msg.release();
+        }
+    }
+
+    // A message sent to more than one session, it gets encoded (and if
+    // necessary compressed) only once for each of the wire formats used by
+    // the recipients
+    private class Broadcast {
+        private final JSONObject data;
+        private final RwsCodec[] codecs = new RwsCodec[2];
+        private final RwsWriter[] writers = new RwsWriter[2];
+        private final ByteBuffer[] compressed = new ByteBuffer[2];
+        private final RwsCompressor[] compressors = new RwsCompressor[2];
+
+        public Broadcast(JSONObject data) {
+            this.data = data;
+        }
+
+        public ByteBuffer encode(RwsCodec codec) throws RwsException {
+            int i = 0;
+            while (i < codecs.length && codecs[i] != null && codecs[i] != codec) {
+                i++;
+            }
+            RwsWriter out;
+            if (i < codecs.length && codecs[i] == codec) {
+                out = writers[i];
+            } else {
+                out = codec.acquireWriter();
                 try {
-                    send(session, from, data);
-                } catch (IOException ex) {
-                    // Ignore
+                    registry.write(data, out);
+                } catch (RwsException ex) {
+                    out.release();
+                    throw ex;
+                }
+                if (i < codecs.length) {
+                    codecs[i] = codec;
+                    writers[i] = out;
+                } else {
+                    // Too many different codecs, don't cache
+                    ByteBuffer copy = ByteBuffer.allocate(out.size());
+                    copy.put(out.toByteBuffer());
+                    copy.flip();
+                    out.release();
+                    return copy;
+                }
+            }
+            return out.toByteBuffer();
+        }
+
+        public ByteBuffer compress(RwsCodec codec, ByteBuffer buf, RwsCompressor compressor) {
+            int i = 0;
+            while (i < codecs.length && codecs[i] != codec) {
+                i++;
+            }
+            if (i == codecs.length) {
+                return compressor.compress(buf, statistics);
+            }
+            if (compressed[i] == null) {
+                compressed[i] = compressor.compress(buf, statistics);
+                compressors[i] = compressor;
+            } else if (compressors[i] != compressor) {
+                // Sessions keep the compressor they started with, which
+                // might use a different dictionary or level, see
+                // setCompressor(). Only the first one gets cached.
+                return compressor.compress(buf, statistics);
+            }
+            return compressed[i].duplicate();
+        }
+
+        public void release() {
+            for (RwsWriter out : writers) {
+                if (out != null) {
+                    out.release();
                 }
             }
         }
@@ -209,12 +650,38 @@ public class RwsContext {
         try {
             session.send(from, data);
         } catch (IOException ex) {
-            log.error("Could not send message, disconnecting socket", ex);
-            removeSession(session);
-            if (session.isConnected()) {
-                session.disconnect();
+            handleSendFailure(session, ex);
+            throw ex;
+        }
+    }
+
+    private void send(RwsSession session, Broadcast msg) throws IOException {
+        RwsCodec codec = session.getCodec();
+        ByteBuffer buf;
+        try {
+            buf = msg.encode(codec);
+        } catch (RwsException ex) {
+            log.error("Could not encode message", ex);
+            return;
+        }
+        try {
+            RwsCompressor c = session.getCompressor();
+            if (c != null && c.shouldCompress(buf)) {
+                session.sendCompressed(msg.compress(codec, buf, c));
+            } else {
+                session.sendEncoded(buf, codec);
             }
+        } catch (IOException ex) {
+            handleSendFailure(session, ex);
             throw ex;
         }
     }
+
+    private void handleSendFailure(RwsSession session, IOException ex) {
+        log.error("Could not send message, disconnecting socket", ex);
+        removeSession(session);
+        if (session.isConnected()) {
+            session.disconnect();
+        }
+    }
 }
@@ -0,0 +1,397 @@
+package org.codejive.rws;
+
+import java.beans.PropertyDescriptor;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A client supplied condition on the properties of an event, used to drop
+ * events a subscriber isn't interested in before they are converted and
+ * sent, see <code>RwsSession.Subscription.setFilter()</code>. Conditions
+ * compare a property path with a literal, eg.
+ * <code>"symbol == 'ABC' &amp;&amp; price &gt;= 10.5"</code>, and can be combined
+ * using <code>&amp;&amp;</code>, <code>||</code>, <code>!</code> and parentheses.
+ * The supported operators are <code>== != &lt; &lt;= &gt; &gt;=</code>, the
+ * literals are strings in single or double quotes, numbers,
+ * <code>true</code>, <code>false</code> and <code>null</code>. A path on its
+ * own tests if the property is <code>true</code>. Paths are resolved on the
+ * event object (the first argument passed to the listener) and only see
+ * the properties the RwsObject for its type exposes, or the entries of maps.
+ * <p>
+ * Compiled filters are immutable and shared. All subscriptions to the same
+ * event of the same instance share a single listener, and while it passes
+ * an event on to them a filter is evaluated only once, the others using
+ * the same filter get the remembered result.
+ *
+ * @author tako
+ */
+public final class RwsFilter {
+    private final String spec;
+    private final Node root;
+
+    private static final ConcurrentHashMap<String, RwsFilter> compiled = new ConcurrentHashMap<String, RwsFilter>();
+
+    // The results of the filters for the event currently being dispatched
+    private static final ThreadLocal<Map<RwsFilter, Boolean>> dispatch = new ThreadLocal<Map<RwsFilter, Boolean>>();
+
+    // Specs come from clients so we limit the amount we're willing to remember
+    private static final int MAX_CACHED = 1000;
+
+    private RwsFilter(String spec, Node root) {
+        this.spec = spec;
+        this.root = root;
+    }
+
+    /**
+     * Returns the filter for the given specification, parsing it only if it
+     * wasn't seen before. Returns <code>null</code> for an empty
+     * specification, meaning all events pass.
+     */
+    public static RwsFilter compile(String spec) throws RwsException {
+        if (spec == null || spec.trim().length() == 0) {
+            return null;
+        }
+        RwsFilter result = compiled.get(spec);
+        if (result == null) {
+            result = new RwsFilter(spec, new Parser(spec).parse());
+            if (compiled.size() < MAX_CACHED) {
+                RwsFilter other = compiled.putIfAbsent(spec, result);
+                if (other != null) {
+                    result = other;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the event passes the filter. The arguments are those
+     * passed to the listener method, the filter is applied to the first one.
+     */
+    public boolean matches(Object[] args, RwsRegistry registry) {
+        Map<RwsFilter, Boolean> results = dispatch.get();
+        if (results != null) {
+            Boolean known = results.get(this);
+            if (known != null) {
+                return known;
+            }
+        }
+        Object event = (args != null && args.length > 0) ? args[0] : null;
+        boolean result;
+        try {
+            result = root.test(event, registry);
+        } catch (Exception ex) {
+            // A property that can't be read doesn't match anything
+            result = false;
+        }
+        if (results != null) {
+            results.put(this, result);
+        }
+        return result;
+    }
+
+    /**
+     * Starts passing a single event on to a number of subscriptions, until
+     * the matching call to <code>endDispatch()</code> each filter remembers
+     * its result. Returns what must be passed to <code>endDispatch()</code>.
+     */
+    static Object beginDispatch() {
+        Map<RwsFilter, Boolean> outer = dispatch.get();
+        dispatch.set(new IdentityHashMap<RwsFilter, Boolean>());
+        return outer;
+    }
+
+    @SuppressWarnings("unchecked")
+    static void endDispatch(Object outer) {
+        if (outer != null) {
+            dispatch.set((Map<RwsFilter, Boolean>) outer);
+        } else {
+            dispatch.remove();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    private interface Node {
+        boolean test(Object event, RwsRegistry registry) throws Exception;
+    }
+
+    private static class And implements Node {
+        private final Node left, right;
+
+        public And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(Object event, RwsRegistry registry) throws Exception {
+            return left.test(event, registry) && right.test(event, registry);
+        }
+    }
+
+    private static class Or implements Node {
+        private final Node left, right;
+
+        public Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(Object event, RwsRegistry registry) throws Exception {
+            return left.test(event, registry) || right.test(event, registry);
+        }
+    }
+
+    private static class Not implements Node {
+        private final Node node;
+
+        public Not(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public boolean test(Object event, RwsRegistry registry) throws Exception {
+            return !node.test(event, registry);
+        }
+    }
+
+    private static class Compare implements Node {
+        private final String[] path;
+        private final String op;
+        private final Object literal;
+
+        public Compare(String[] path, String op, Object literal) {
+            this.path = path;
+            this.op = op;
+            this.literal = literal;
+        }
+
+        @Override
+        public boolean test(Object event, RwsRegistry registry) throws Exception {
+            Object value = event;
+            for (String name : path) {
+                value = property(value, name, registry);
+            }
+            if ("==".equals(op)) {
+                return same(value, literal);
+            } else if ("!=".equals(op)) {
+                return !same(value, literal);
+            }
+            int cmp;
+            if (value instanceof Number && literal instanceof Number) {
+                cmp = Double.compare(((Number) value).doubleValue(), ((Number) literal).doubleValue());
+            } else if (value != null && literal instanceof String) {
+                cmp = value.toString().compareTo((String) literal);
+            } else {
+                return false;
+            }
+            if ("<".equals(op)) {
+                return cmp < 0;
+            } else if ("<=".equals(op)) {
+                return cmp <= 0;
+            } else if (">".equals(op)) {
+                return cmp > 0;
+            } else {
+                return cmp >= 0;
+            }
+        }
+
+        private static boolean same(Object value, Object literal) {
+            if (value == null || literal == null) {
+                return value == literal;
+            } else if (value instanceof Number && literal instanceof Number) {
+                return ((Number) value).doubleValue() == ((Number) literal).doubleValue();
+            } else if (literal instanceof String) {
+                // Also matches enums and characters by name
+                return literal.equals(value.toString());
+            } else {
+                return literal.equals(value);
+            }
+        }
+
+        private static Object property(Object value, String name, RwsRegistry registry) throws Exception {
+            if (value == null) {
+                return null;
+            } else if (value instanceof Map) {
+                return ((Map) value).get(name);
+            }
+            RwsObject obj = registry.matchObject(value.getClass());
+            if (obj == null) {
+                return null;
+            }
+            PropertyDescriptor prop = obj.getTargetProperty(name);
+            if (prop == null || prop.getReadMethod() == null) {
+                return null;
+            }
+            return prop.getReadMethod().invoke(value);
+        }
+    }
+
+    private static class Parser {
+        private final String spec;
+        private final List<String> tokens = new ArrayList<String>();
+        private int pos;
+        private int depth;
+
+        // Both parsing and testing recurse through the expression tree, so
+        // filters that nest or chain deeper than this are refused
+        private static final int MAX_DEPTH = 256;
+
+        public Parser(String spec) throws RwsException {
+            this.spec = spec;
+            tokenize();
+        }
+
+        public Node parse() throws RwsException {
+            Node result = or();
+            if (pos < tokens.size()) {
+                throw error();
+            }
+            return result;
+        }
+
+        private Node or() throws RwsException {
+            int level = depth;
+            Node result = and();
+            while (accept("||")) {
+                nest();
+                result = new Or(result, and());
+            }
+            depth = level;
+            return result;
+        }
+
+        private Node and() throws RwsException {
+            int level = depth;
+            Node result = unary();
+            while (accept("&&")) {
+                nest();
+                result = new And(result, unary());
+            }
+            depth = level;
+            return result;
+        }
+
+        private Node unary() throws RwsException {
+            if (accept("!")) {
+                nest();
+                Node result = new Not(unary());
+                depth--;
+                return result;
+            } else if (accept("(")) {
+                nest();
+                Node result = or();
+                if (!accept(")")) {
+                    throw error();
+                }
+                depth--;
+                return result;
+            }
+            String name = next();
+            if (!Character.isJavaIdentifierStart(name.charAt(0))) {
+                throw error();
+            }
+            String[] path = name.split("\\.");
+            for (String p : path) {
+                if (p.length() == 0) {
+                    throw error();
+                }
+            }
+            String op = peek();
+            if ("==".equals(op) || "!=".equals(op) || "<".equals(op) || "<=".equals(op) || ">".equals(op) || ">=".equals(op)) {
+                pos++;
+                return new Compare(path, op, literal(next()));
+            }
+            return new Compare(path, "==", Boolean.TRUE);
+        }
+
+        private Object literal(String token) throws RwsException {
+            char c = token.charAt(0);
+            if (c == '\'' || c == '"') {
+                return token.substring(1, token.length() - 1);
+            } else if ("true".equals(token)) {
+                return Boolean.TRUE;
+            } else if ("false".equals(token)) {
+                return Boolean.FALSE;
+            } else if ("null".equals(token)) {
+                return null;
+            }
+            try {
+                return Double.valueOf(token);
+            } catch (NumberFormatException ex) {
+                throw error();
+            }
+        }
+
+        private void nest() throws RwsException {
+            if (++depth > MAX_DEPTH) {
+                throw error();
+            }
+        }
+
+        private boolean accept(String token) {
+            if (token.equals(peek())) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private String peek() {
+            return (pos < tokens.size()) ? tokens.get(pos) : null;
+        }
+
+        private String next() throws RwsException {
+            if (pos >= tokens.size()) {
+                throw error();
+            }
+            return tokens.get(pos++);
+        }
+
+        private void tokenize() throws RwsException {
+            int i = 0;
+            int len = spec.length();
+            while (i < len) {
+                char c = spec.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                } else if (c == '\'' || c == '"') {
+                    i = spec.indexOf(c, i + 1);
+                    if (i < 0) {
+                        throw error();
+                    }
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    i++;
+                } else if ("=!<>&|".indexOf(c) >= 0) {
+                    i++;
+                    if (i < len && "=&|".indexOf(spec.charAt(i)) >= 0) {
+                        i++;
+                    }
+                } else {
+                    while (i < len && (Character.isJavaIdentifierPart(spec.charAt(i)) || ".-+".indexOf(spec.charAt(i)) >= 0)) {
+                        i++;
+                    }
+                    if (i == start) {
+                        throw error();
+                    }
+                }
+                tokens.add(spec.substring(start, i));
+            }
+        }
+
+        private RwsException error() {
+            return new RwsException("Invalid event filter '" + spec + "'");
+        }
+    }
+}
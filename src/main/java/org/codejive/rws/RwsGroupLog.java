@@ -0,0 +1,340 @@
+package org.codejive.rws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent log of the messages sent to a multicast group, so members
+ * that join late can be sent what they missed, see
+ * <code>RwsContext.setGroupLog()</code> and <code>RwsSession.joinFrom()</code>.
+ * Each message gets a sequence number which is added to the message itself
+ * as <code>"seq"</code>. Messages are stored in the default wire format
+ * (JSON) in a directory of memory-mapped segment files, each named after
+ * the sequence number of its first message. Each record consists of its
+ * length, sequence number and timestamp followed by the message itself.
+ * <p>
+ * Messages are written by a background thread so sending them isn't slowed
+ * down by the log. Replays read directly from the mapped segments without
+ * copying. Old segments are deleted when the log grows larger than
+ * <code>maxSize</code> bytes or when all their messages are older than
+ * <code>maxAge</code> milliseconds.
+ *
+ * @author tako
+ */
+public class RwsGroupLog {
+    private final File dir;
+    private final long maxSize;
+    private final long maxAge;
+    private final int segmentSize;
+
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    private final ExecutorService writer;
+    // The last sequence number handed out, guarded by this
+    private long lastSequence;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    private static final String SUFFIX = ".log";
+
+    private static final Logger log = LoggerFactory.getLogger(RwsGroupLog.class);
+
+    /**
+     * Receives the messages read from the log. The buffer points directly
+     * into the mapped segment and must not be modified.
+     */
+    public interface RecordHandler {
+        public void handleRecord(long sequence, long timestamp, ByteBuffer msg) throws IOException;
+    }
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buf;
+        private final long firstSequence;
+        // Only the records before the limit are complete
+        private volatile int limit;
+        private volatile long lastSequence;
+        private volatile long lastTimestamp;
+
+        public Segment(File file, MappedByteBuffer buf, long firstSequence) {
+            this.file = file;
+            this.buf = buf;
+            this.firstSequence = firstSequence;
+            this.lastSequence = firstSequence - 1;
+        }
+    }
+
+    public RwsGroupLog(File dir, long maxSize, long maxAge) throws IOException {
+        this(dir, maxSize, maxAge, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the log in the given directory, creating it if necessary
+     * @param dir the directory holding the segment files
+     * @param maxSize the maximum size of all segments together in bytes
+     * @param maxAge the maximum age of messages in milliseconds, 0 meaning
+     * messages are only removed to stay below <code>maxSize</code>
+     * @param segmentSize the size of newly created segment files in bytes
+     */
+    public RwsGroupLog(File dir, long maxSize, long maxAge, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create log directory " + dir);
+        }
+        recover();
+        final String name = dir.getName();
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "rws-log-" + name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    // Reads the existing segments to find out where we left off
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            long first;
+            try {
+                first = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            Segment seg = new Segment(file, map(file, file.length()), first);
+            ByteBuffer buf = seg.buf;
+            int pos = 0;
+            while (pos + HEADER_SIZE <= buf.capacity()) {
+                int len = buf.getInt(pos);
+                if (len <= 0 || pos + HEADER_SIZE + len > buf.capacity()) {
+                    break;
+                }
+                seg.lastSequence = buf.getLong(pos + 4);
+                seg.lastTimestamp = buf.getLong(pos + 12);
+                pos += HEADER_SIZE + len;
+            }
+            seg.limit = pos;
+            segments.add(seg);
+            lastSequence = Math.max(lastSequence, seg.lastSequence);
+        }
+        if (!segments.isEmpty()) {
+            log.info("Recovered group log {} up to sequence {}", dir, lastSequence);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the sequence number of the oldest message that's still in the
+     * log, or the one the next message will get if the log is empty
+     */
+    public synchronized long getFirstSequence() {
+        for (Segment seg : segments) {
+            if (seg.limit > 0) {
+                return seg.firstSequence;
+            }
+        }
+        return lastSequence + 1;
+    }
+
+    /**
+     * Returns the sequence number of the last message sent, it might not
+     * have been written yet, see <code>sync()</code>
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    // Hands out the next sequence number, the message must be appended
+    // with it before another number is handed out
+    synchronized long reserve() {
+        return ++lastSequence;
+    }
+
+    /**
+     * Adds the message to the log in the background. The message is copied
+     * so the buffer can be reused right away.
+     */
+    void append(final long sequence, ByteBuffer msg) {
+        final long timestamp = System.currentTimeMillis();
+        final byte[] data = new byte[msg.remaining()];
+        msg.duplicate().get(data);
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(sequence, timestamp, data);
+                    applyRetention(timestamp);
+                } catch (Throwable th) {
+                    log.error("Could not write message " + sequence + " to group log " + dir, th);
+                }
+            }
+        });
+    }
+
+    // Only called by the writer thread
+    private void write(long sequence, long timestamp, byte[] data) throws IOException {
+        int size = HEADER_SIZE + data.length;
+        Segment seg = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (seg == null || seg.limit + size > seg.buf.capacity()) {
+            File file = new File(dir, String.format("%020d", sequence) + SUFFIX);
+            seg = new Segment(file, map(file, Math.max(segmentSize, size)), sequence);
+            segments.add(seg);
+        }
+        ByteBuffer buf = seg.buf.duplicate();
+        buf.position(seg.limit);
+        buf.putInt(data.length);
+        buf.putLong(sequence);
+        buf.putLong(timestamp);
+        buf.put(data);
+        seg.lastSequence = sequence;
+        seg.lastTimestamp = timestamp;
+        // Publishes the record to readers
+        seg.limit = buf.position();
+    }
+
+    // Only called by the writer thread
+    private void applyRetention(long now) {
+        long total = 0;
+        for (Segment seg : segments) {
+            total += seg.buf.capacity();
+        }
+        // The segment being written to is never removed
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            boolean tooBig = total > maxSize;
+            boolean tooOld = maxAge > 0 && oldest.lastTimestamp < now - maxAge;
+            if (!tooBig && !tooOld) {
+                break;
+            }
+            segments.remove(0);
+            total -= oldest.buf.capacity();
+            // Readers that are still using the segment keep the mapping alive
+            if (!oldest.file.delete()) {
+                log.warn("Could not delete log segment {}", oldest.file);
+            }
+        }
+    }
+
+    /**
+     * Waits until all messages sent so far have been written to the log and
+     * returns the sequence number of the last one
+     */
+    public long sync() throws IOException {
+        long last = getLastSequence();
+        Future<?> done = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        try {
+            done.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for group log");
+        } catch (ExecutionException ex) {
+            throw new IOException("Could not sync group log", ex);
+        }
+        return last;
+    }
+
+    /**
+     * Returns the sequence number of the first message sent at or after the
+     * given time, or the one the next message will get if there is none
+     */
+    public long findSequence(long timestamp) {
+        for (Segment seg : segments) {
+            if (seg.lastTimestamp < timestamp) {
+                continue;
+            }
+            ByteBuffer buf = seg.buf;
+            int limit = seg.limit;
+            int pos = 0;
+            while (pos < limit) {
+                if (buf.getLong(pos + 12) >= timestamp) {
+                    return buf.getLong(pos + 4);
+                }
+                pos += HEADER_SIZE + buf.getInt(pos);
+            }
+        }
+        return getLastSequence() + 1;
+    }
+
+    /**
+     * Passes all messages in the log with sequence numbers from
+     * <code>fromSequence</code> up to and including <code>toSequence</code>
+     * to the handler in order. Messages that were already removed from the
+     * log are skipped.
+     */
+    public void read(long fromSequence, long toSequence, RecordHandler handler) throws IOException {
+        for (Segment seg : segments) {
+            if (seg.lastSequence < fromSequence) {
+                continue;
+            }
+            if (seg.firstSequence > toSequence) {
+                break;
+            }
+            ByteBuffer buf = seg.buf.duplicate();
+            int limit = seg.limit;
+            int pos = 0;
+            while (pos < limit) {
+                int len = buf.getInt(pos);
+                long seq = buf.getLong(pos + 4);
+                if (seq > toSequence) {
+                    return;
+                }
+                if (seq >= fromSequence) {
+                    buf.limit(pos + HEADER_SIZE + len);
+                    buf.position(pos + HEADER_SIZE);
+                    handler.handleRecord(seq, buf.getLong(pos + 12), buf.slice());
+                    buf.limit(buf.capacity());
+                }
+                pos += HEADER_SIZE + len;
+            }
+        }
+    }
+
+    /**
+     * Writes any remaining messages and stops the background writer
+     */
+    public void close() throws IOException {
+        sync();
+        writer.shutdown();
+        for (Segment seg : segments) {
+            seg.buf.force();
+        }
+    }
+}
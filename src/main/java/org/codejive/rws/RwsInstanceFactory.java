@@ -0,0 +1,24 @@
+
+package org.codejive.rws;
+
+/**
+ * Creates the instances of a session scoped object on demand, see
+ * <code>RwsRegistry.register(RwsObject, String, RwsInstanceFactory)</code>.
+ * A session only gets its own instance the first time it actually uses it,
+ * and the instance is handed back to the factory when the session ends.
+ *
+ * @author tako
+ */
+public interface RwsInstanceFactory {
+
+    /**
+     * Returns a new instance for the given session
+     */
+    Object create(RwsSession session) throws RwsException;
+
+    /**
+     * Called when the session the instance was created for has ended and
+     * the instance isn't kept in the registry's pool for reuse
+     */
+    void release(RwsSession session, Object instance);
+}
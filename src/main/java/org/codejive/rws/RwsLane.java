@@ -0,0 +1,27 @@
+package org.codejive.rws;
+
+/**
+ * The outbound lanes of a session. When a client can't keep up, messages
+ * waiting in a higher lane are sent before those in lower lanes, so call
+ * results don't have to wait behind a flood of events. Messages within a
+ * lane always keep their order. Only adapters that implement
+ * <code>RwsPriorityAdapter</code> queue messages per lane, see
+ * <code>RwsServer.setLaneWeight()</code>.
+ * <p>
+ * When schema encoding or a compression stream is used the client has to
+ * decode messages in the order they were encoded, so <code>EVENTS</code>
+ * and <code>LOW</code> are merged into a single lane and low priority
+ * messages no longer give way to events. Call results and errors keep
+ * the <code>CONTROL</code> lane because they are sent without schemas and
+ * compressed on their own.
+ *
+ * @author tako
+ */
+public enum RwsLane {
+    /** Call results and errors */
+    CONTROL,
+    /** Events, polled results and messages from other clients */
+    EVENTS,
+    /** Events that were marked low priority, see <code>RwsObject.setLowPriority()</code> */
+    LOW
+}
@@ -1,10 +1,7 @@
 
 package org.codejive.rws;
 
-import java.beans.BeanInfo;
 import java.beans.EventSetDescriptor;
-import java.beans.IntrospectionException;
-import java.beans.Introspector;
 import java.beans.MethodDescriptor;
 import java.beans.PropertyDescriptor;
 import java.io.PrintWriter;
@@ -12,12 +9,18 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EventListener;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +44,18 @@ public class RwsObject {
     private Map<String, MethodDescriptor> allowedMethods;
     private Map<String, EventSetDescriptor> allowedEvents;
     private Map<String, PropertyDescriptor> allowedProps;
+    private PropertyDescriptor[] allProps;
+    private volatile boolean initialized;
+    private RwsException initError;
+    private final Map<RwsProjection, PropertyDescriptor[]> projectedProps = new ConcurrentHashMap<RwsProjection, PropertyDescriptor[]>();
+    private String[] allFieldNames;
+    private final Map<RwsProjection, String[]> projectedFieldNames = new ConcurrentHashMap<RwsProjection, String[]>();
+    private final Set<String> lowPriorityEvents = new CopyOnWriteArraySet<String>();
+    // The listeners registered on each instance by event and action
+    private final Map<Object, Map<String, SharedListener>> sharedListeners = new IdentityHashMap<Object, Map<String, SharedListener>>();
+
+    // Projections come from clients so we limit the amount we're willing to remember
+    private static final int MAX_PROJECTIONS = 100;
     
     private static final Logger log = LoggerFactory.getLogger(RwsObject.class);
 
@@ -52,6 +67,15 @@ public class RwsObject {
         return targetClass;
     }
 
+    /**
+     * Creates the object for the given class. Its type information is only
+     * obtained when it's first needed, or by
+     * <code>RwsRegistry.warmUp()</code>, so problems with the class aren't
+     * reported here but when the object is first used: methods that declare
+     * <code>RwsException</code> throw one, the others throw an
+     * <code>IllegalStateException</code>. After a failure every use reports
+     * the same error, the type information isn't obtained again.
+     */
     public RwsObject(Class targetClass, String scriptName, RwsConverter converter) throws RwsException {
         this.match = targetClass.getName(); // TODO This has to be configurable
         this.targetClass = targetClass;
@@ -63,64 +87,131 @@ public class RwsObject {
         this.includeMethods = false;
         this.includeEvents = false;
         this.includeProps = false;
-        init();
     }
 
-    private void init() throws RwsException {
-        try {
-            BeanInfo info = Introspector.getBeanInfo(targetClass);
-
-            allowedMethods = new HashMap<String, MethodDescriptor>();
-            MethodDescriptor[] methodDefs = info.getMethodDescriptors();
-            for (MethodDescriptor md : methodDefs) {
-                boolean contains = this.methodNames.contains(md.getName());
-                if ((this.includeMethods && contains) || (!this.includeMethods && !contains)) {
-                    if (!allowedMethods.containsKey(md.getName())) {
-                        allowedMethods.put(md.getName(), md);
-                    } else {
-                        // If a method with the same name was already added once
-                        // before we're dealing with an overloaded method which
-                        // is not supported, so we flag it for later removal
-                        allowedMethods.put(md.getName(), null);
+    // The type information is only obtained when it's first needed because
+    // doing so can be slow, see also RwsRegistry.warmUp(). A failure is
+    // remembered so it's reported the same way each time.
+    void ensureInit() throws RwsException {
+        if (!initialized) {
+            synchronized (this) {
+                if (initError != null) {
+                    throw initError;
+                }
+                if (!initialized) {
+                    try {
+                        init();
+                    } catch (RwsException ex) {
+                        initError = new RwsException("Could not initialize object '" + scriptName() + "'", ex);
+                        throw initError;
                     }
+                    initialized = true;
                 }
             }
-            // Remove overloaded methods
-            Set<String> mnms = new HashSet<String>(allowedMethods.keySet());
-            for (String mnm : mnms) {
-                if (allowedMethods.get(mnm) == null) {
-                    allowedMethods.remove(mnm);
-                }
+        }
+    }
+
+    // For the methods that can't throw an RwsException
+    private void ensureInitUnchecked() {
+        try {
+            ensureInit();
+        } catch (RwsException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Makes sure everything needed to use this object has been prepared
+     * so the first call doesn't have to pay for it. This includes obtaining
+     * the type information, preparing the methods for invocation and
+     * looking up the objects for the types of parameters, results and
+     * properties.
+     */
+    void warmUp(RwsRegistry registry) throws RwsException {
+        ensureInit();
+        for (MethodDescriptor md : allowedMethods.values()) {
+            Method m = md.getMethod();
+            makeAccessible(m);
+            for (Class type : m.getParameterTypes()) {
+                registry.matchObject(type);
             }
-            // Remove forbidden methods
-            allowedMethods.remove("getClass");
-            allowedMethods.remove("hashCode");
-            allowedMethods.remove("equals");
-            allowedMethods.remove("notify");
-            allowedMethods.remove("notifyAll");
-            allowedMethods.remove("toString");
-            allowedMethods.remove("wait");
-
-            allowedEvents = new HashMap<String, EventSetDescriptor>();
-            EventSetDescriptor[] eventSets = info.getEventSetDescriptors();
-            for (EventSetDescriptor es : eventSets) {
-                boolean contains = this.eventNames.contains(es.getName());
-                if ((this.includeEvents && contains) || (!this.includeEvents && !contains)) {
-                    allowedEvents.put(es.getName(), es);
-                }
+            registry.matchObject(m.getReturnType());
+        }
+        for (PropertyDescriptor pd : allProps) {
+            makeAccessible(pd.getReadMethod());
+            makeAccessible(pd.getWriteMethod());
+            if (pd.getPropertyType() != null) {
+                registry.matchObject(pd.getPropertyType());
             }
+        }
+        if (hasSchema()) {
+            listFieldNames(null);
+        }
+    }
+
+    // Skips the access checks on each invocation
+    private static void makeAccessible(Method m) {
+        if (m != null) {
+            try {
+                m.setAccessible(true);
+            } catch (RuntimeException ex) {
+                // Not allowed, no problem
+            }
+        }
+    }
+
+    private void init() throws RwsException {
+        RwsTypeInfo info = RwsTypeInfo.get(targetClass);
 
-            allowedProps = new HashMap<String, PropertyDescriptor>();
-            PropertyDescriptor[] props = info.getPropertyDescriptors();
-            for (PropertyDescriptor p : props) {
-                boolean contains = this.propNames.contains(p.getName());
-                if ((this.includeProps && contains) || (!this.includeProps && !contains)) {
-                    allowedProps.put(p.getName(), p);
+        allowedMethods = new HashMap<String, MethodDescriptor>();
+        MethodDescriptor[] methodDefs = info.getMethodDescriptors();
+        for (MethodDescriptor md : methodDefs) {
+            boolean contains = this.methodNames.contains(md.getName());
+            if ((this.includeMethods && contains) || (!this.includeMethods && !contains)) {
+                if (!allowedMethods.containsKey(md.getName())) {
+                    allowedMethods.put(md.getName(), md);
+                } else {
+                    // If a method with the same name was already added once
+                    // before we're dealing with an overloaded method which
+                    // is not supported, so we flag it for later removal
+                    allowedMethods.put(md.getName(), null);
                 }
             }
-        } catch (IntrospectionException ex) {
-            throw new RwsException("Could not get necessary information about target object", ex);
         }
+        // Remove overloaded methods
+        Set<String> mnms = new HashSet<String>(allowedMethods.keySet());
+        for (String mnm : mnms) {
+            if (allowedMethods.get(mnm) == null) {
+                allowedMethods.remove(mnm);
+            }
+        }
+        // Remove forbidden methods
+        allowedMethods.remove("getClass");
+        allowedMethods.remove("hashCode");
+        allowedMethods.remove("equals");
+        allowedMethods.remove("notify");
+        allowedMethods.remove("notifyAll");
+        allowedMethods.remove("toString");
+        allowedMethods.remove("wait");
+
+        allowedEvents = new HashMap<String, EventSetDescriptor>();
+        EventSetDescriptor[] eventSets = info.getEventSetDescriptors();
+        for (EventSetDescriptor es : eventSets) {
+            boolean contains = this.eventNames.contains(es.getName());
+            if ((this.includeEvents && contains) || (!this.includeEvents && !contains)) {
+                allowedEvents.put(es.getName(), es);
+            }
+        }
+
+        allowedProps = new HashMap<String, PropertyDescriptor>();
+        PropertyDescriptor[] props = info.getPropertyDescriptors();
+        for (PropertyDescriptor p : props) {
+            boolean contains = this.propNames.contains(p.getName());
+            if ((this.includeProps && contains) || (!this.includeProps && !contains)) {
+                allowedProps.put(p.getName(), p);
+            }
+        }
+        allProps = allowedProps.values().toArray(new PropertyDescriptor[allowedProps.size()]);
     }
 
     public String scriptName() {
@@ -128,45 +219,101 @@ public class RwsObject {
     }
 
     public Set<String> listMethodNames() {
+        ensureInitUnchecked();
         return Collections.unmodifiableSet(allowedMethods.keySet());
     }
 
     public MethodDescriptor getTargetMethod(String methodName) {
+        ensureInitUnchecked();
         return allowedMethods.get(methodName);
     }
 
     public Set<String> listEventNames() {
+        ensureInitUnchecked();
         return Collections.unmodifiableSet(allowedEvents.keySet());
     }
 
     public EventSetDescriptor getTargetEvent(String methodName) {
+        ensureInitUnchecked();
         return allowedEvents.get(methodName);
     }
 
+    /**
+     * Marks the event as low priority, its events will be sent using the
+     * <code>LOW</code> lane so they give way to all other messages when a
+     * client can't keep up, see <code>RwsLane</code>. Only affects
+     * subscriptions made after the change.
+     */
+    public void setLowPriority(String eventName, boolean lowPriority) {
+        if (lowPriority) {
+            lowPriorityEvents.add(eventName);
+        } else {
+            lowPriorityEvents.remove(eventName);
+        }
+    }
+
+    public boolean isLowPriority(String eventName) {
+        return lowPriorityEvents.contains(eventName);
+    }
+
     public Set<String> listPropertyNames() {
+        ensureInitUnchecked();
         return Collections.unmodifiableSet(allowedProps.keySet());
     }
 
     public PropertyDescriptor getTargetProperty(String propertyName) {
+        ensureInitUnchecked();
         return allowedProps.get(propertyName);
     }
 
+    /**
+     * Returns the properties selected by the given projection, or all
+     * properties if it is <code>null</code>. Unknown names in the projection
+     * are ignored. The result is cached per projection and must not be
+     * modified.
+     */
+    public PropertyDescriptor[] getTargetProperties(RwsProjection fields) {
+        ensureInitUnchecked();
+        if (fields == null) {
+            return allProps;
+        }
+        PropertyDescriptor[] result = projectedProps.get(fields);
+        if (result == null) {
+            List<PropertyDescriptor> props = new ArrayList<PropertyDescriptor>();
+            for (String name : fields.listFieldNames()) {
+                PropertyDescriptor prop = allowedProps.get(name);
+                if (prop != null) {
+                    props.add(prop);
+                }
+            }
+            result = props.toArray(new PropertyDescriptor[props.size()]);
+            if (projectedProps.size() < MAX_PROJECTIONS) {
+                projectedProps.put(fields, result);
+            }
+        }
+        return result;
+    }
+
     public Object call(RwsSession session, Object instance, String methodName, Object[] args) throws RwsException, InvocationTargetException {
+        RwsRegistry registry = session.getContext().getRegistry();
+        Object tmpResult = invoke(session, instance, methodName, args);
+        return registry.convertToJSON(tmpResult);
+    }
+
+    /**
+     * Calls the given method just like <code>call()</code> does but returns
+     * the result as-is instead of converting it to JSON. This allows the
+     * caller to stream the result using <code>RwsRegistry.write()</code>.
+     */
+    public Object invoke(RwsSession session, Object instance, String methodName, Object[] args) throws RwsException, InvocationTargetException {
+        ensureInit();
         Object result = null;
         RwsRegistry registry = session.getContext().getRegistry();
         try {
             MethodDescriptor method = getTargetMethod(methodName);
             if (method != null) {
-                Object[] convertedArgs = null;
-                if (args != null) {
-                    convertedArgs = new Object[args.length];
-                    for (int i = 0; i < args.length; i++) {
-                        Class paramClass = method.getMethod().getParameterTypes()[i];
-                        convertedArgs[i] = registry.convertFromJSON(args[i], paramClass);
-                    }
-                }
-                Object tmpResult = method.getMethod().invoke(instance, convertedArgs);
-                result = registry.convertToJSON(tmpResult);
+                Object[] convertedArgs = convertArguments(registry, method, args);
+                result = method.getMethod().invoke(instance, convertedArgs);
             } else {
                 throw new RwsException("Method '" + methodName + "' does not exist for object '" + jsName + "'");
             }
@@ -178,14 +325,98 @@ public class RwsObject {
         return result;
     }
 
+    /**
+     * Converts the arguments in JSON form to the types of the parameters
+     * of the given method, as expected by <code>invokeDirect()</code>
+     */
+    public Object[] convertArguments(RwsRegistry registry, String methodName, Object[] args) throws RwsException {
+        ensureInit();
+        MethodDescriptor method = getTargetMethod(methodName);
+        if (method == null) {
+            throw new RwsException("Method '" + methodName + "' does not exist for object '" + jsName + "'");
+        }
+        return convertArguments(registry, method, args);
+    }
+
+    private Object[] convertArguments(RwsRegistry registry, MethodDescriptor method, Object[] args) throws RwsException {
+        Object[] convertedArgs = null;
+        if (args != null) {
+            checkArgumentCount(method, args.length);
+            convertedArgs = new Object[args.length];
+            for (int i = 0; i < args.length; i++) {
+                Class paramClass = method.getMethod().getParameterTypes()[i];
+                convertedArgs[i] = registry.convertFromJSON(args[i], paramClass);
+            }
+        }
+        return convertedArgs;
+    }
+
+    /**
+     * Calls the given method with arguments that already have the types of
+     * the method's parameters, for example those returned by
+     * <code>readArguments()</code>. The result is returned as-is.
+     */
+    public Object invokeDirect(RwsSession session, Object instance, String methodName, Object[] args) throws RwsException, InvocationTargetException {
+        ensureInit();
+        try {
+            MethodDescriptor method = getTargetMethod(methodName);
+            if (method != null) {
+                return method.getMethod().invoke(instance, args);
+            } else {
+                throw new RwsException("Method '" + methodName + "' does not exist for object '" + jsName + "'");
+            }
+        } catch (IllegalAccessException ex) {
+            throw new RwsException("Could not call method '" + methodName + "' on object '" + jsName + "'", ex);
+        } catch (IllegalArgumentException ex) {
+            throw new RwsException("Could not call method '" + methodName + "' on object '" + jsName + "'", ex);
+        }
+    }
+
+    /**
+     * Reads an array of arguments for the given method, binding each of
+     * them directly to the type of the corresponding method parameter
+     */
+    public Object[] readArguments(RwsRegistry registry, String methodName, RwsReader in) throws RwsException {
+        ensureInit();
+        MethodDescriptor method = getTargetMethod(methodName);
+        if (method == null) {
+            throw new RwsException("Method '" + methodName + "' does not exist for object '" + jsName + "'");
+        }
+        if (in.peek() == RwsReader.Token.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Class[] paramTypes = method.getMethod().getParameterTypes();
+        Object[] result = new Object[paramTypes.length];
+        int i = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (i < paramTypes.length) {
+                result[i] = registry.read(in, paramTypes[i]);
+            } else {
+                in.skipValue();
+            }
+            i++;
+        }
+        in.endArray();
+        checkArgumentCount(method, i);
+        return result;
+    }
+
+    // Missing arguments would otherwise be passed as nulls, which fails in
+    // confusing ways for primitive parameters
+    private void checkArgumentCount(MethodDescriptor method, int count) throws RwsException {
+        int expected = method.getMethod().getParameterTypes().length;
+        if (count < expected) {
+            throw new RwsException("Method '" + method.getName() + "' of object '" + jsName + "' expects " + expected + " arguments but got " + count);
+        }
+    }
+
     public EventListener subscribe(final RwsSession session, Object instance, String eventName, final String action, final RwsEventHandler handler) throws RwsException, InvocationTargetException {
-        EventListener listener;
-        final RwsRegistry registry = session.getContext().getRegistry();
+        ensureInit();
         try {
             EventSetDescriptor event = getTargetEvent(eventName);
             if (event != null) {
-                Class listenerType = event.getListenerType();
-
                 // Check if the action that was passed matches one of the methods of the listener interface
                 Method[] ms = event.getListenerMethods();
                 boolean found = false;
@@ -196,26 +427,24 @@ public class RwsObject {
                     throw new RwsException("Action " + action + " does not exist for event '" + eventName + "' on object '" + jsName + "'");
                 }
 
-                // Create the event listener proxy that will call the event handler
-                Class[] interfaces = new Class[] { listenerType };
-                InvocationHandler handlerWrapper = new InvocationHandler() {
-                    @Override
-                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-                        if (method.getName().equals(action)) {
-                            handler.handleEvent(registry.convertToJSON(args));
-                            return null;
-                        } else if (method.getDeclaringClass() == Object.class) {
-                            return method.invoke(handler, args);
-                        } else {
-                            return null;
-                        }
+                synchronized (sharedListeners) {
+                    Map<String, SharedListener> listeners = sharedListeners.get(instance);
+                    if (listeners == null) {
+                        listeners = new HashMap<String, SharedListener>();
+                        sharedListeners.put(instance, listeners);
                     }
-                };
-                listener = (EventListener) Proxy.newProxyInstance(listenerType.getClassLoader(), interfaces, handlerWrapper);
-
-                // Add the newly created proxy event listener to the object
-                Method addListener = event.getAddListenerMethod();
-                addListener.invoke(instance, new Object[] { listener });
+                    String key = eventName + "." + action;
+                    SharedListener shared = listeners.get(key);
+                    if (shared == null) {
+                        // Create the event listener proxy that will call the event handlers
+                        shared = new SharedListener(event.getListenerType(), key, action);
+                        Method addListener = event.getAddListenerMethod();
+                        addListener.invoke(instance, new Object[] { shared.proxy });
+                        listeners.put(key, shared);
+                    }
+                    shared.handlers.add(handler);
+                    return new Registration(shared, handler);
+                }
             } else {
                 throw new RwsException("Event '" + eventName + "' does not exist for object '" + jsName + "'");
             }
@@ -224,15 +453,27 @@ public class RwsObject {
         } catch (IllegalArgumentException ex) {
             throw new RwsException("Could not subscribe to event '" + eventName + "' on object '" + jsName + "'", ex);
         }
-        return listener;
     }
 
     public void unsubscribe(RwsSession session, Object instance, String eventName, EventListener listener) throws RwsException, InvocationTargetException {
+        ensureInit();
         try {
             EventSetDescriptor event = getTargetEvent(eventName);
             if (event != null) {
-                Method removeListener = event.getRemoveListenerMethod();
-                removeListener.invoke(instance, new Object[] { listener });
+                Registration sub = (Registration) listener;
+                synchronized (sharedListeners) {
+                    sub.shared.handlers.remove(sub.handler);
+                    Map<String, SharedListener> listeners = sharedListeners.get(instance);
+                    if (sub.shared.handlers.isEmpty() && listeners != null && listeners.get(sub.shared.key) == sub.shared) {
+                        // The last handler is gone so the instance no longer needs to tell us
+                        listeners.remove(sub.shared.key);
+                        if (listeners.isEmpty()) {
+                            sharedListeners.remove(instance);
+                        }
+                        Method removeListener = event.getRemoveListenerMethod();
+                        removeListener.invoke(instance, new Object[] { sub.shared.proxy });
+                    }
+                }
             } else {
                 throw new RwsException("Event '" + eventName + "' does not exist for object '" + jsName + "'");
             }
@@ -243,17 +484,132 @@ public class RwsObject {
         }
     }
 
+    // A single listener registered on an instance for each event and action,
+    // it passes the events on to the handlers of all subscriptions. Filters
+    // are evaluated only once for each event it passes on, see RwsFilter.
+    private static class SharedListener implements InvocationHandler {
+        private final String key;
+        private final String action;
+        private final EventListener proxy;
+        private final List<RwsEventHandler> handlers = new CopyOnWriteArrayList<RwsEventHandler>();
+
+        public SharedListener(Class listenerType, String key, String action) {
+            this.key = key;
+            this.action = action;
+            proxy = (EventListener) Proxy.newProxyInstance(listenerType.getClassLoader(), new Class[] { listenerType }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals(action)) {
+                Object outer = RwsFilter.beginDispatch();
+                try {
+                    for (RwsEventHandler handler : handlers) {
+                        try {
+                            handler.handleEvent(args);
+                        } catch (Throwable th) {
+                            // One failing subscriber shouldn't keep the event from the others
+                            log.warn("Could not handle event " + key, th);
+                        }
+                    }
+                } finally {
+                    RwsFilter.endDispatch(outer);
+                }
+                return null;
+            } else if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                } else if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                } else {
+                    return "RwsListener[" + key + "]";
+                }
+            } else {
+                return null;
+            }
+        }
+    }
+
+    // What subscribe() returns, unsubscribe() needs it to remove the handler
+    private static class Registration implements EventListener {
+        private final SharedListener shared;
+        private final RwsEventHandler handler;
+
+        public Registration(SharedListener shared, RwsEventHandler handler) {
+            this.shared = shared;
+            this.handler = handler;
+        }
+    }
+
     Object toJSON(Object value) throws RwsException {
+        ensureInit();
         JSONObject result = (JSONObject) converter.toJSON(this, value);
         result.put("$class", scriptName());
         return result;
     }
 
+    void write(RwsRegistry registry, Object value, int id, RwsWriter out) throws RwsException {
+        ensureInit();
+        if (converter instanceof RwsStreamingConverter) {
+            out.beginObject();
+            out.name("$class");
+            out.value(scriptName());
+            if (id > 0) {
+                out.name("$id");
+                out.value(id);
+            }
+            ((RwsStreamingConverter) converter).writeProperties(this, value, out);
+            out.endObject();
+        } else {
+            JSONObject result = (JSONObject) toJSON(value);
+            if (id > 0) {
+                result.put("$id", id);
+            }
+            registry.write(result, out);
+        }
+    }
+
+    boolean hasSchema() {
+        return converter instanceof RwsSchemaConverter;
+    }
+
+    String[] listFieldNames(RwsProjection fields) throws RwsException {
+        ensureInit();
+        String[] result = (fields != null) ? projectedFieldNames.get(fields) : allFieldNames;
+        if (result == null) {
+            result = ((RwsSchemaConverter) converter).listFieldNames(this, fields);
+            if (fields == null) {
+                allFieldNames = result;
+            } else if (projectedFieldNames.size() < MAX_PROJECTIONS) {
+                projectedFieldNames.put(fields, result);
+            }
+        }
+        return result;
+    }
+
+    void writeField(Object value, int index, RwsWriter out) throws RwsException {
+        ((RwsSchemaConverter) converter).writeField(this, value, index, out);
+    }
+
     Object fromJSON(Object value, Class targetType) throws RwsException {
+        ensureInit();
         return converter.fromJSON(this, value);
     }
 
+    Object read(RwsReader in, Class targetType) throws RwsException {
+        ensureInit();
+        if (converter instanceof RwsStreamingConverter) {
+            in.beginObject();
+            Object result = ((RwsStreamingConverter) converter).readProperties(this, in);
+            in.endObject();
+            return result;
+        } else {
+            return fromJSON(in.readValue(), targetType);
+        }
+    }
+
     public void generateTypeScript(PrintWriter out) throws RwsException {
+        ensureInit();
         converter.generateTypeScript(this, out);
     }
 }
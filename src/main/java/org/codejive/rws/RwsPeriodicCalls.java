@@ -0,0 +1,340 @@
+
+package org.codejive.rws;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.codejive.rws.json.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the calls clients asked to have repeated periodically,
+ * see <code>RwsSession.handleMessage()</code>. Clients that ask for the same
+ * call (same instance, method, arguments, projection and interval) share a
+ * single periodic call: it runs once per interval and its result is
+ * encoded only once for each wire format in use. Results are only sent when
+ * they differ from the previous one. The context's scheduler only decides
+ * when a call is due, the method itself runs on the poll executor (see
+ * <code>RwsContext.setPollExecutor()</code>). If the previous run of a call
+ * hasn't finished yet when it's due again that turn is skipped.
+ *
+ * @author tako
+ */
+class RwsPeriodicCalls {
+    private final RwsContext context;
+    private final Map<Key, PeriodicCall> calls = new HashMap<Key, PeriodicCall>();
+
+    private static final Logger log = LoggerFactory.getLogger(RwsPeriodicCalls.class);
+
+    public RwsPeriodicCalls(RwsContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Adds the session as a subscriber to the given call, starting the call
+     * if nobody was subscribed to it yet. If the call already has a result
+     * it's sent to the session right away.
+     */
+    public void subscribe(RwsSession session, String id, String instanceName, String method, Object[] args, boolean bound, RwsProjection fields, long interval) throws RwsException, IOException {
+        RwsRegistry registry = context.getRegistry();
+        RwsRegistry.InstanceInfo ii = registry.getInstanceInfo(instanceName);
+        if (ii == null) {
+            throw new RwsException("Unknown instance '" + instanceName + "'");
+        }
+        Object instance = ii.getInstance(session);
+        if (!bound && args != null) {
+            args = ii.getObject().convertArguments(registry, method, args);
+        }
+        Key key = new Key(instance, method, encodeArguments(args), fields, interval);
+        PeriodicCall call;
+        synchronized (this) {
+            call = calls.get(key);
+            if (call == null) {
+                call = new PeriodicCall(key, ii.getObject(), args);
+                calls.put(key, call);
+                call.start();
+            }
+            call.subscribers.add(new Subscriber(session, id));
+        }
+        call.sendLast(session, id);
+    }
+
+    /**
+     * Removes the given subscription of the session, returns false if it
+     * didn't exist
+     */
+    public synchronized boolean unsubscribe(RwsSession session, String id) {
+        Subscriber sub = new Subscriber(session, id);
+        for (PeriodicCall call : calls.values()) {
+            if (call.subscribers.remove(sub)) {
+                stopIfUnused(call);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all subscriptions of the session
+     */
+    public synchronized void unsubscribeAll(RwsSession session) {
+        for (PeriodicCall call : calls.values().toArray(new PeriodicCall[calls.size()])) {
+            for (Subscriber sub : call.subscribers) {
+                if (sub.session == session) {
+                    call.subscribers.remove(sub);
+                }
+            }
+            stopIfUnused(call);
+        }
+    }
+
+    /**
+     * Returns the number of distinct periodic calls that are running
+     */
+    public synchronized int size() {
+        return calls.size();
+    }
+
+    private void stopIfUnused(PeriodicCall call) {
+        if (call.subscribers.isEmpty()) {
+            calls.remove(call.key);
+            call.future.cancel(false);
+        }
+    }
+
+    // The arguments in JSON form, to compare calls by
+    private String encodeArguments(Object[] args) throws RwsException {
+        if (args == null) {
+            return "null";
+        }
+        JsonWriter out = JsonWriter.acquire();
+        try {
+            context.getRegistry().write(args, out);
+            ByteBuffer buf = out.toByteBuffer();
+            return new String(buf.array(), 0, buf.limit(), "UTF-8");
+        } catch (IOException ex) {
+            throw new RwsException("Could not encode arguments", ex);
+        } finally {
+            out.release();
+        }
+    }
+
+    private static class Key {
+        private final Object instance;
+        private final String method;
+        private final String args;
+        private final RwsProjection fields;
+        private final long interval;
+
+        public Key(Object instance, String method, String args, RwsProjection fields, long interval) {
+            this.instance = instance;
+            this.method = method;
+            this.args = args;
+            this.fields = fields;
+            this.interval = interval;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return instance == other.instance && method.equals(other.method) && args.equals(other.args)
+                    && (fields == null ? other.fields == null : fields.equals(other.fields))
+                    && interval == other.interval;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(instance);
+            result = 31 * result + method.hashCode();
+            result = 31 * result + args.hashCode();
+            result = 31 * result + (fields != null ? fields.hashCode() : 0);
+            return 31 * result + (int) (interval ^ (interval >>> 32));
+        }
+    }
+
+    private static class Subscriber {
+        private final RwsSession session;
+        private final String id;
+
+        public Subscriber(RwsSession session, String id) {
+            this.session = session;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Subscriber)) {
+                return false;
+            }
+            Subscriber other = (Subscriber) obj;
+            return session == other.session && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(session) + id.hashCode();
+        }
+    }
+
+    class PeriodicCall implements Runnable {
+        private final Key key;
+        private final RwsObject object;
+        private final Object[] args;
+        private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<Subscriber>();
+        private ScheduledFuture<?> future;
+        // Set while the method is being called, only one call runs at a time
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        // The last result, only written by the running call
+        private volatile Object result;
+        private volatile Throwable error;
+        private byte[] lastJson;
+        // The last result for each wire format, encoded on first use
+        private volatile Map<RwsCodec, ByteBuffer> encoded = new ConcurrentHashMap<RwsCodec, ByteBuffer>();
+
+        public PeriodicCall(Key key, RwsObject object, Object[] args) {
+            this.key = key;
+            this.object = object;
+            this.args = args;
+        }
+
+        private void start() {
+            future = context.getScheduler().scheduleWithFixedDelay(this, 0, key.interval, TimeUnit.MILLISECONDS);
+        }
+
+        // Called by the scheduler when the call is due
+        @Override
+        public void run() {
+            if (!running.compareAndSet(false, true)) {
+                log.debug("Skipping periodic call to {}, the previous one is still running", key.method);
+                return;
+            }
+            try {
+                context.getPollExecutor().execute(invoker);
+            } catch (RejectedExecutionException ex) {
+                running.set(false);
+                log.error("Could not run periodic call to " + key.method, ex);
+            }
+        }
+
+        private final Runnable invoker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    invoke();
+                } finally {
+                    running.set(false);
+                }
+            }
+        };
+
+        private void invoke() {
+            try {
+                Object value = null;
+                Throwable th = null;
+                try {
+                    value = object.invokeDirect(null, key.instance, key.method, args);
+                } catch (InvocationTargetException ex) {
+                    log.error("Remote object returned an error", ex);
+                    th = ex;
+                }
+                if (!changed(value, th)) {
+                    return;
+                }
+                result = value;
+                error = th;
+                encoded = new ConcurrentHashMap<RwsCodec, ByteBuffer>();
+                for (Subscriber sub : subscribers) {
+                    send(sub.session, sub.id);
+                }
+            } catch (Throwable th) {
+                log.error("Periodic call to " + key.method + " failed", th);
+            }
+        }
+
+        // Compares the JSON encoding of the value, or the error, with the
+        // last one
+        private boolean changed(Object value, Throwable th) throws RwsException {
+            if (th != null) {
+                lastJson = null;
+                return error == null || !error.toString().equals(th.toString());
+            }
+            JsonWriter out = JsonWriter.acquire();
+            try {
+                context.getRegistry().write(value, key.fields, out);
+                ByteBuffer buf = out.toByteBuffer();
+                byte[] json = Arrays.copyOf(buf.array(), buf.limit());
+                if (lastJson != null && Arrays.equals(json, lastJson)) {
+                    return false;
+                }
+                lastJson = json;
+                return true;
+            } finally {
+                out.release();
+            }
+        }
+
+        private void sendLast(RwsSession session, String id) {
+            if (lastJson != null || error != null) {
+                send(session, id);
+            }
+        }
+
+        private void send(RwsSession session, String id) {
+            try {
+                session.sendPolled(id, this);
+            } catch (Throwable th) {
+                log.debug("Could not send result of periodic call to session " + session.getId(), th);
+            }
+        }
+
+        Object getResult() {
+            return result;
+        }
+
+        Throwable getError() {
+            return error;
+        }
+
+        RwsProjection getFields() {
+            return key.fields;
+        }
+
+        /**
+         * Returns the result encoded by the given codec, the buffer must not
+         * be modified
+         */
+        ByteBuffer encode(RwsCodec codec) throws RwsException {
+            Map<RwsCodec, ByteBuffer> cache = encoded;
+            ByteBuffer buf = cache.get(codec);
+            if (buf == null) {
+                RwsWriter out = codec.acquireWriter();
+                try {
+                    context.getRegistry().write(result, key.fields, out);
+                    ByteBuffer tmp = out.toByteBuffer();
+                    buf = ByteBuffer.allocate(tmp.remaining());
+                    buf.put(tmp);
+                    buf.flip();
+                } finally {
+                    out.release();
+                }
+                cache.put(codec, buf);
+            }
+            return buf.duplicate();
+        }
+    }
+}
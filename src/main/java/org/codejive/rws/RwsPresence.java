@@ -0,0 +1,488 @@
+
+package org.codejive.rws;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps an index of the connected sessions and the members of each
+ * multicast group, with their names, so presence information doesn't have
+ * to be gathered from all sessions each time it's needed. The index is
+ * kept up to date by <code>RwsContext</code> as sessions connect,
+ * disconnect, change their names and join or leave groups.
+ * <p>
+ * Clients can watch the members of a group, or of all sessions, see
+ * <code>RwsSession.watchPresence()</code>. Each change to a group gets a
+ * version number, changes are collected for a short while (see
+ * <code>RwsContext.setPresenceDelay()</code>) and then sent to all watchers
+ * together as a single event, encoded only once for each wire format:
+ * <pre>
+ * {"group": "lobby", "since": 41, "version": 44, "count": 12, "changes": [
+ *     {"type": "join", "version": 42, "id": "17", "name": "bob"},
+ *     {"type": "rename", "version": 43, "id": "17", "name": "robert"},
+ *     {"type": "leave", "version": 44, "id": "9"}]}
+ * </pre>
+ * The <code>group</code> is <code>null</code> for the list of all sessions.
+ * When the client starts watching it gets a snapshot instead, holding the
+ * <code>version</code>, <code>count</code> and the <code>members</code> as
+ * a map of session ids to names. Clients keep the version of the last
+ * change they applied: changes with a version that isn't newer are skipped
+ * and when <code>since</code> is newer some changes were missed and the
+ * client should watch again passing the version it has. If the changes
+ * since that version are still known only those are sent, otherwise the
+ * client gets a new snapshot. Version numbers are unique across all groups.
+ *
+ * @author tako
+ */
+class RwsPresence {
+    private final RwsContext context;
+    // Everything below is guarded by this
+    private final Map<String, Member> members = new HashMap<String, Member>();
+    private final Scope all = new Scope(null);
+    private final Map<String, Scope> groups = new HashMap<String, Scope>();
+    private final Map<Watcher, Scope> watchers = new HashMap<Watcher, Scope>();
+    private final Set<Scope> dirty = new LinkedHashSet<Scope>();
+    private long lastVersion;
+    private ScheduledFuture<?> flushTask;
+
+    // The number of changes remembered per group for clients that resync
+    private static final int MAX_HISTORY = 1000;
+
+    private static final Logger log = LoggerFactory.getLogger(RwsPresence.class);
+
+    public RwsPresence(RwsContext context) {
+        this.context = context;
+        all.version = ++lastVersion;
+        all.base = all.version;
+        all.flushed = all.version;
+    }
+
+    private static class Member {
+        private String name;
+        private final Set<String> groups = new HashSet<String>();
+
+        public Member(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Change {
+        private final String type;
+        private final long version;
+        private final String id;
+        private final String name;
+
+        public Change(String type, long version, String id, String name) {
+            this.type = type;
+            this.version = version;
+            this.id = id;
+            this.name = name;
+        }
+
+        private JSONObject toJson() {
+            JSONObject obj = new JSONObject();
+            obj.put("type", type);
+            obj.put("version", version);
+            obj.put("id", id);
+            if (!"leave".equals(type)) {
+                obj.put("name", name);
+            }
+            return obj;
+        }
+    }
+
+    // The members of a group, or of all sessions when group is null
+    private static class Scope {
+        private final String group;
+        private final Map<String, String> names = new HashMap<String, String>();
+        private final ArrayDeque<Change> history = new ArrayDeque<Change>();
+        // The version before the oldest change in the history
+        private long base;
+        private long version;
+        private final Set<Watcher> watchers = new HashSet<Watcher>();
+        // The changes that still have to be sent to the watchers
+        private final List<Change> pending = new ArrayList<Change>();
+        private long flushed;
+
+        public Scope(String group) {
+            this.group = group;
+        }
+
+        // Returns the changes after the given version, or null if they
+        // aren't all known anymore
+        private List<Change> since(long from) {
+            if (from == base) {
+                return new ArrayList<Change>(history);
+            }
+            List<Change> result = null;
+            for (Change change : history) {
+                if (result != null) {
+                    result.add(change);
+                } else if (change.version == from) {
+                    result = new ArrayList<Change>();
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class Watcher {
+        private final RwsSession session;
+        private final String id;
+
+        public Watcher(RwsSession session, String id) {
+            this.session = session;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Watcher)) {
+                return false;
+            }
+            Watcher other = (Watcher) obj;
+            return session == other.session && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(session) + id.hashCode();
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Index maintenance, called by the context
+    // ---------------------------------------------------------------------
+
+    public synchronized void connect(RwsSession session) {
+        if (!members.containsKey(session.getId())) {
+            members.put(session.getId(), new Member(session.getName()));
+            add(all, "join", session.getId(), session.getName());
+        }
+    }
+
+    public synchronized void disconnect(RwsSession session) {
+        Member member = members.remove(session.getId());
+        if (member != null) {
+            for (String group : member.groups) {
+                Scope scope = groups.get(group);
+                if (scope != null) {
+                    add(scope, "leave", session.getId(), null);
+                }
+            }
+            add(all, "leave", session.getId(), null);
+        }
+    }
+
+    public synchronized void rename(RwsSession session) {
+        Member member = members.get(session.getId());
+        String name = session.getName();
+        if (member != null && !same(member.name, name)) {
+            member.name = name;
+            for (String group : member.groups) {
+                Scope scope = groups.get(group);
+                if (scope != null) {
+                    add(scope, "rename", session.getId(), name);
+                }
+            }
+            add(all, "rename", session.getId(), name);
+        }
+    }
+
+    public synchronized void join(String group, RwsSession session) {
+        // Sessions that already disconnected aren't added again
+        Member member = members.get(session.getId());
+        if (member != null && member.groups.add(group)) {
+            add(scope(group, true), "join", session.getId(), member.name);
+        }
+    }
+
+    public synchronized void leave(String group, RwsSession session) {
+        Member member = members.get(session.getId());
+        if (member != null && member.groups.remove(group)) {
+            Scope scope = groups.get(group);
+            if (scope != null) {
+                add(scope, "leave", session.getId(), null);
+            }
+        }
+    }
+
+    private static boolean same(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    private Scope scope(String group, boolean create) {
+        if (group == null) {
+            return all;
+        }
+        Scope scope = groups.get(group);
+        if (scope == null && create) {
+            scope = new Scope(group);
+            // A new scope gets a fresh version so clients that still have a
+            // version of an earlier group with the same name get a snapshot
+            scope.version = ++lastVersion;
+            scope.base = scope.version;
+            scope.flushed = scope.version;
+            groups.put(group, scope);
+        }
+        return scope;
+    }
+
+    private void add(Scope scope, String type, String id, String name) {
+        if ("leave".equals(type)) {
+            scope.names.remove(id);
+        } else {
+            scope.names.put(id, name);
+        }
+        Change change = new Change(type, ++lastVersion, id, name);
+        scope.version = change.version;
+        scope.history.addLast(change);
+        if (scope.history.size() > MAX_HISTORY) {
+            scope.base = scope.history.removeFirst().version;
+        }
+        if (!scope.watchers.isEmpty()) {
+            scope.pending.add(change);
+            dirty.add(scope);
+            scheduleFlush();
+        } else {
+            scope.flushed = scope.version;
+            removeIfUnused(scope);
+        }
+    }
+
+    private void removeIfUnused(Scope scope) {
+        if (scope != all && scope.names.isEmpty() && scope.watchers.isEmpty()) {
+            groups.remove(scope.group);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Queries
+    // ---------------------------------------------------------------------
+
+    public synchronized Collection<String> listGroups() {
+        return new ArrayList<String>(groups.keySet());
+    }
+
+    /**
+     * Returns the ids of the members of the given group, or of all sessions
+     * if the group is <code>null</code>
+     */
+    public synchronized Collection<String> listMembers(String group) {
+        Scope scope = scope(group, false);
+        if (scope == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(scope.names.keySet());
+    }
+
+    public synchronized int getMemberCount(String group) {
+        Scope scope = scope(group, false);
+        return (scope != null) ? scope.names.size() : 0;
+    }
+
+    public synchronized long getVersion(String group) {
+        Scope scope = scope(group, false);
+        return (scope != null) ? scope.version : 0;
+    }
+
+    /**
+     * Returns the current members of the given group, or of all sessions if
+     * the group is <code>null</code>, as a map of session ids to names
+     */
+    public synchronized Map<String, String> getMembers(String group) {
+        Scope scope = scope(group, false);
+        if (scope == null) {
+            return Collections.emptyMap();
+        }
+        return new HashMap<String, String>(scope.names);
+    }
+
+    // ---------------------------------------------------------------------
+    // Watchers
+    // ---------------------------------------------------------------------
+
+    /**
+     * Starts sending the changes to the members of the group to the session
+     * as events with the given id. If the session passes the version it
+     * already has and the changes since then are still known only those are
+     * sent, otherwise it first gets a snapshot of the current members.
+     */
+    public void watch(RwsSession session, String id, String group, long version) {
+        Watcher watcher = new Watcher(session, id);
+        Batch first;
+        synchronized (this) {
+            Scope old = watchers.remove(watcher);
+            if (old != null) {
+                old.watchers.remove(watcher);
+                removeIfUnused(old);
+            }
+            Scope scope = scope(group, true);
+            scope.watchers.add(watcher);
+            watchers.put(watcher, scope);
+            List<Change> changes = (version > 0) ? scope.since(version) : null;
+            if (changes == null) {
+                first = snapshot(scope);
+            } else if (!changes.isEmpty()) {
+                first = new Batch(scope, version, changes);
+            } else {
+                first = null;
+            }
+        }
+        if (first != null) {
+            send(watcher, first);
+        }
+    }
+
+    /**
+     * Stops sending presence changes with the given id to the session,
+     * returns false if it wasn't watching
+     */
+    public synchronized boolean unwatch(RwsSession session, String id) {
+        Scope scope = watchers.remove(new Watcher(session, id));
+        if (scope != null) {
+            scope.watchers.remove(new Watcher(session, id));
+            removeIfUnused(scope);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void unwatchAll(RwsSession session) {
+        for (Watcher watcher : watchers.keySet().toArray(new Watcher[watchers.size()])) {
+            if (watcher.session == session) {
+                unwatch(session, watcher.id);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of sessions that are watching the members of a
+     * group or of all sessions
+     */
+    public synchronized int getWatcherCount() {
+        return watchers.size();
+    }
+
+    private Batch snapshot(Scope scope) {
+        JSONObject data = new JSONObject();
+        data.put("group", scope.group);
+        data.put("version", scope.version);
+        data.put("count", scope.names.size());
+        JSONObject names = new JSONObject();
+        names.putAll(scope.names);
+        data.put("members", names);
+        return new Batch(data);
+    }
+
+    private void scheduleFlush() {
+        if (flushTask == null) {
+            flushTask = context.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, context.getPresenceDelay(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Sends the changes collected since the last flush, the events are
+    // created while holding the lock but sent after releasing it
+    private void flush() {
+        List<Batch> batches = new ArrayList<Batch>();
+        List<Watcher[]> targets = new ArrayList<Watcher[]>();
+        synchronized (this) {
+            flushTask = null;
+            for (Scope scope : dirty) {
+                if (!scope.pending.isEmpty() && !scope.watchers.isEmpty()) {
+                    batches.add(new Batch(scope, scope.flushed, scope.pending));
+                    targets.add(scope.watchers.toArray(new Watcher[scope.watchers.size()]));
+                }
+                scope.pending.clear();
+                scope.flushed = scope.version;
+                removeIfUnused(scope);
+            }
+            dirty.clear();
+        }
+        for (int i = 0; i < batches.size(); i++) {
+            for (Watcher watcher : targets.get(i)) {
+                send(watcher, batches.get(i));
+            }
+        }
+    }
+
+    private void send(Watcher watcher, Batch batch) {
+        try {
+            watcher.session.sendPresence(watcher.id, batch);
+        } catch (Throwable th) {
+            log.debug("Could not send presence changes to session " + watcher.session.getId(), th);
+        }
+    }
+
+    /**
+     * A single presence event, encoded on first use for each wire format
+     */
+    static class Batch {
+        private final JSONObject data;
+        private final Map<RwsCodec, ByteBuffer> encoded = new ConcurrentHashMap<RwsCodec, ByteBuffer>();
+
+        private Batch(JSONObject data) {
+            this.data = data;
+        }
+
+        private Batch(Scope scope, long since, List<Change> changes) {
+            data = new JSONObject();
+            data.put("group", scope.group);
+            data.put("since", since);
+            data.put("version", changes.get(changes.size() - 1).version);
+            data.put("count", scope.names.size());
+            JSONArray list = new JSONArray();
+            for (Change change : changes) {
+                list.add(change.toJson());
+            }
+            data.put("changes", list);
+        }
+
+        JSONObject getData() {
+            return data;
+        }
+
+        /**
+         * Returns the event encoded by the given codec, the buffer must not
+         * be modified
+         */
+        ByteBuffer encode(RwsCodec codec, RwsRegistry registry) throws RwsException {
+            ByteBuffer buf = encoded.get(codec);
+            if (buf == null) {
+                RwsWriter out = codec.acquireWriter();
+                try {
+                    registry.write(data, out);
+                    ByteBuffer tmp = out.toByteBuffer();
+                    buf = ByteBuffer.allocate(tmp.remaining());
+                    buf.put(tmp);
+                    buf.flip();
+                } finally {
+                    out.release();
+                }
+                encoded.put(codec, buf);
+            }
+            return buf.duplicate();
+        }
+    }
+}
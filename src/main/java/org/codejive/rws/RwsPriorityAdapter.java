@@ -0,0 +1,28 @@
+package org.codejive.rws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Optionally implemented by adapters that queue outbound messages per
+ * lane, sending those in higher lanes first when the client falls behind,
+ * see <code>RwsLane</code>. Sessions only use different lanes when the
+ * order in which messages arrive doesn't matter to the client, otherwise
+ * all messages are sent using the same lane.
+ *
+ * @author tako
+ */
+public interface RwsPriorityAdapter extends RwsBufferAdapter {
+
+    /**
+     * Sends the message as a text or binary message using the given lane.
+     * The same rules apply as for <code>sendMessage(ByteBuffer)</code>.
+     */
+    public void sendMessage(ByteBuffer msg, boolean binary, RwsLane lane) throws IOException;
+
+    /**
+     * Sends the given messages like <code>RwsBatchingAdapter.sendMessages()</code>
+     * but each using its own lane
+     */
+    public void sendMessages(ByteBuffer[] msgs, boolean[] binary, RwsLane[] lanes) throws IOException;
+}
@@ -0,0 +1,147 @@
+package org.codejive.rws;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A client selected subset of the properties of an object, also known as a
+ * sparse fieldset. It is specified as a comma separated list of property
+ * paths where nested properties are separated by dots, eg.
+ * <code>"name,address.city,address.zip"</code>. Naming a property without
+ * any nested paths selects all of its properties. Projections only apply to
+ * RwsObjects, they are passed on as-is to the elements of collections, arrays
+ * and maps. Compiled projections are immutable and can be shared.
+ *
+ * @author tako
+ */
+public final class RwsProjection {
+    private final String spec;
+    private final Map<String, RwsProjection> fields;
+
+    private static final Map<String, RwsProjection> compiled = new ConcurrentHashMap<String, RwsProjection>();
+
+    // Specs come from clients so we limit the amount we're willing to remember
+    private static final int MAX_CACHED = 1000;
+
+    private RwsProjection(Map<String, RwsProjection> fields) {
+        this.fields = Collections.unmodifiableMap(fields);
+        this.spec = buildSpec(null, new StringBuilder()).toString();
+    }
+
+    /**
+     * Returns the projection for the given specification, parsing it only
+     * if it wasn't seen before. Returns <code>null</code> for an empty
+     * specification, meaning all properties are selected.
+     */
+    public static RwsProjection compile(String spec) throws RwsException {
+        if (spec == null || spec.trim().length() == 0) {
+            return null;
+        }
+        RwsProjection result = compiled.get(spec);
+        if (result == null) {
+            result = parse(spec);
+            if (compiled.size() < MAX_CACHED) {
+                compiled.put(spec, result);
+            }
+        }
+        return result;
+    }
+
+    private static RwsProjection parse(String spec) throws RwsException {
+        Map<String, Object> tree = new LinkedHashMap<String, Object>();
+        for (String path : spec.split(",")) {
+            path = path.trim();
+            if (path.length() == 0) {
+                continue;
+            }
+            Map<String, Object> node = tree;
+            String[] names = path.split("\\.");
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i].trim();
+                if (name.length() == 0) {
+                    throw new RwsException("Invalid field projection '" + spec + "'");
+                }
+                boolean last = (i == names.length - 1);
+                if (last) {
+                    // Selecting a property as a whole overrides any nested paths
+                    node.put(name, null);
+                } else if (node.containsKey(name) && node.get(name) == null) {
+                    // Already selected as a whole
+                    break;
+                } else {
+                    Map<String, Object> child = (Map<String, Object>) node.get(name);
+                    if (child == null) {
+                        child = new LinkedHashMap<String, Object>();
+                        node.put(name, child);
+                    }
+                    node = child;
+                }
+            }
+        }
+        return build(tree);
+    }
+
+    private static RwsProjection build(Map<String, Object> tree) {
+        Map<String, RwsProjection> fields = new LinkedHashMap<String, RwsProjection>();
+        for (Map.Entry<String, Object> entry : tree.entrySet()) {
+            Map<String, Object> child = (Map<String, Object>) entry.getValue();
+            fields.put(entry.getKey(), (child != null) ? build(child) : null);
+        }
+        return new RwsProjection(fields);
+    }
+
+    public Set<String> listFieldNames() {
+        return fields.keySet();
+    }
+
+    public boolean includes(String name) {
+        return fields.containsKey(name);
+    }
+
+    /**
+     * Returns the projection to use for the value of the given property,
+     * <code>null</code> if all of its properties are selected
+     */
+    public RwsProjection getField(String name) {
+        return fields.get(name);
+    }
+
+    private StringBuilder buildSpec(String prefix, StringBuilder result) {
+        for (Map.Entry<String, RwsProjection> entry : fields.entrySet()) {
+            String path = (prefix != null) ? prefix + "." + entry.getKey() : entry.getKey();
+            if (entry.getValue() != null) {
+                entry.getValue().buildSpec(path, result);
+            } else {
+                if (result.length() > 0) {
+                    result.append(',');
+                }
+                result.append(path);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof RwsProjection)) {
+            return false;
+        }
+        return fields.equals(((RwsProjection) obj).fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return fields.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
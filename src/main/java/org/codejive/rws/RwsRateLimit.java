@@ -0,0 +1,79 @@
+package org.codejive.rws;
+
+/**
+ * A limit on the number of messages a single session may send, enforced
+ * using a token bucket: each message takes a token, tokens are added at
+ * <code>rate</code> per second and at most <code>burst</code> tokens can be
+ * saved up. Limits are set for each type of message on the context, see
+ * <code>RwsContext.setRateLimit()</code>, and each session gets its own
+ * buckets. Messages that exceed the limit are dropped, calls get an error
+ * result.
+ *
+ * @author tako
+ */
+public final class RwsRateLimit {
+    private final double rate;
+    private final int burst;
+
+    /**
+     * The kinds of messages that can be limited
+     */
+    public enum Type {
+        /** Every message, checked before anything else */
+        ANY,
+        /** Method calls on server side objects */
+        CALL,
+        /** Messages to a single other session */
+        DIRECT,
+        /** Messages to a multicast group */
+        GROUP,
+        /** Messages to all sessions */
+        BROADCAST
+    }
+
+    public RwsRateLimit(double rate, int burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+        }
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    Bucket newBucket() {
+        return new Bucket();
+    }
+
+    // The state of the limit for a single session, starts out full
+    class Bucket {
+        private double tokens = burst;
+        private long last = System.nanoTime();
+
+        RwsRateLimit getLimit() {
+            return RwsRateLimit.this;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) * rate / 1000000000.0);
+            last = now;
+            if (tokens >= 1) {
+                tokens--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RwsRateLimit[rate=" + rate + ", burst=" + burst + "]";
+    }
+}
@@ -0,0 +1,59 @@
+package org.codejive.rws;
+
+/**
+ * Pull parser that reads a message token by token so values can be bound
+ * directly to their target types without building an intermediate tree.
+ *
+ * @author tako
+ */
+public interface RwsReader {
+
+    /**
+     * Readers refuse input with objects and arrays nested deeper than this,
+     * so code that handles values recursively can't run out of stack.
+     */
+    public static final int MAX_DEPTH = 256;
+
+    public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END };
+
+    Token peek() throws RwsException;
+
+    void beginObject() throws RwsException;
+
+    void endObject() throws RwsException;
+
+    void beginArray() throws RwsException;
+
+    void endArray() throws RwsException;
+
+    /**
+     * Returns true if the current object or array has more elements
+     */
+    boolean hasNext() throws RwsException;
+
+    String nextName() throws RwsException;
+
+    String nextString() throws RwsException;
+
+    long nextLong() throws RwsException;
+
+    double nextDouble() throws RwsException;
+
+    boolean nextBoolean() throws RwsException;
+
+    void nextNull() throws RwsException;
+
+    void skipValue() throws RwsException;
+
+    /**
+     * Reads the next value as a generic tree of <code>JSONObject</code>,
+     * <code>JSONArray</code>, <code>String</code>, <code>Long</code>,
+     * <code>Double</code> and <code>Boolean</code> values.
+     */
+    Object readValue() throws RwsException;
+
+    /**
+     * Moves back to the start of the message so it can be read again
+     */
+    void rewind();
+}
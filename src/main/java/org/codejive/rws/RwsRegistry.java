@@ -2,16 +2,33 @@
 package org.codejive.rws;
 
 import java.io.PrintWriter;
+import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.EventListener;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONAware;
+import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,16 +39,81 @@ import org.slf4j.LoggerFactory;
 public class RwsRegistry {
     private final Map<String, RwsObject> rwsObjects = new HashMap<String, RwsObject>();
     private final Map<String, InstanceInfo> instances = new HashMap<String, InstanceInfo>();
+    private final Map<Class, Object> matches = new ConcurrentHashMap<Class, Object>();
+    private final AtomicLong version = new AtomicLong();
+
+    // Marks types in the matches cache that don't match any object
+    private static final Object NO_MATCH = new Object();
 
     public enum Scope { session, global };
 
     private static ThreadLocal<Set<Class>> generatedTypes = new ThreadLocal<Set<Class>>();
 
+    private volatile boolean trackReferences;
+    private static ThreadLocal<Map<Object, Integer>> convertedObjects = new ThreadLocal<Map<Object, Integer>>();
+    private static ThreadLocal<RwsProjection> projection = new ThreadLocal<RwsProjection>();
+
+    private volatile boolean schemaEncoding;
+    private static ThreadLocal<RwsSchemas> schemaTables = new ThreadLocal<RwsSchemas>();
+
     private static final Logger log = LoggerFactory.getLogger(RwsRegistry.class);
 
+    public boolean isTrackReferences() {
+        return trackReferences;
+    }
+
+    /**
+     * When enabled, objects that occur more than once in a single converted
+     * value are only sent once. The first occurrence gets a <code>$id</code>
+     * property, all later occurrences are replaced by <code>{"$ref": id}</code>.
+     * This also makes it possible to send object graphs containing cycles.
+     * The generated scripts contain the client side code to restore the
+     * original references.
+     */
+    public void setTrackReferences(boolean trackReferences) {
+        this.trackReferences = trackReferences;
+        version.incrementAndGet();
+    }
+
+    public boolean isSchemaEncoding() {
+        return schemaEncoding;
+    }
+
+    /**
+     * When enabled, objects sent in call results and events are encoded
+     * positionally. The list of property names of each type is sent only
+     * once per connection as a schema, after that objects are sent as rows
+     * of values and collections of objects of the same type as columns.
+     * Broadcast messages are not affected. The generated scripts contain
+     * the client side code to turn them back into normal objects.
+     */
+    public void setSchemaEncoding(boolean schemaEncoding) {
+        this.schemaEncoding = schemaEncoding;
+        version.incrementAndGet();
+    }
+
+    /**
+     * Returns true if the encoding options that are enabled require
+     * results and events to be decoded by the client before use
+     */
+    public boolean isClientDecodingRequired() {
+        return trackReferences || schemaEncoding;
+    }
+
+    /**
+     * Returns a number that changes every time something changes that
+     * might affect the generated scripts, like registering new objects or
+     * instances, so they can be cached safely
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
     public void register(RwsObject obj) {
         log.info("Registering object {}", obj);
         rwsObjects.put(obj.scriptName(), obj);
+        matches.clear();
+        version.incrementAndGet();
     }
 
     public void register(RwsObject obj, RwsContext context, String instanceName, Object instance) {
@@ -41,7 +123,9 @@ public class RwsRegistry {
         }
         InstanceInfo ii = new InstanceInfo(obj, instanceName);
         ii.setInstance(context, instance);
-        instances.put(instanceName, ii);
+        if (instances.put(instanceName, ii) == null) {
+            version.incrementAndGet();
+        }
     }
 
     public void register(RwsObject obj, RwsSession session, String instanceName, Object instance) {
@@ -51,18 +135,72 @@ public class RwsRegistry {
         }
         InstanceInfo ii = new InstanceInfo(obj, instanceName);
         ii.setInstance(session, instance);
-        instances.put(instanceName, ii);
+        if (instances.put(instanceName, ii) == null) {
+            version.incrementAndGet();
+        }
+    }
+
+    public void register(RwsObject obj, String instanceName, RwsInstanceFactory factory) {
+        register(obj, instanceName, factory, 0);
+    }
+
+    /**
+     * Registers a session scoped instance that is only created when a
+     * session first uses it, by calling the given factory. The instance is
+     * released when the session ends. If <code>poolSize</code> is larger
+     * than 0 the instances are considered stateless and up to that many of
+     * them are kept after their session ended to be reused by other sessions
+     * instead of creating new ones.
+     */
+    public void register(RwsObject obj, String instanceName, RwsInstanceFactory factory, int poolSize) {
+        log.info("Registering factory {} with name '{}'", factory, instanceName);
+        if (!rwsObjects.containsKey(obj.scriptName())) {
+            register(obj);
+        }
+        InstanceInfo ii = new InstanceInfo(obj, instanceName, factory, poolSize);
+        if (instances.put(instanceName, ii) == null) {
+            version.incrementAndGet();
+        }
     }
 
     public class InstanceInfo {
         private final RwsObject object;
         private final String instanceName;
         private final String attrName;
+        private final RwsInstanceFactory factory;
+        private final int poolSize;
+        private final Queue<Object> pool;
+        private final AtomicInteger pooled;
 
         public InstanceInfo(RwsObject object, String instanceName) {
+            this(object, instanceName, null, 0);
+        }
+
+        public InstanceInfo(RwsObject object, String instanceName, RwsInstanceFactory factory, int poolSize) {
             this.object = object;
             this.instanceName = instanceName;
+            this.factory = factory;
+            this.poolSize = poolSize;
             attrName = "__rws__" + instanceName;
+            if (poolSize > 0) {
+                pool = new ConcurrentLinkedQueue<Object>();
+                pooled = new AtomicInteger();
+            } else {
+                pool = null;
+                pooled = null;
+            }
+        }
+
+        public RwsObject getObject() {
+            return object;
+        }
+
+        /**
+         * Returns <code>session</code> for instances created by a factory,
+         * <code>global</code> for all others
+         */
+        public Scope getScope() {
+            return (factory != null) ? Scope.session : Scope.global;
         }
 
         public Object getInstance(RwsContext context) {
@@ -77,10 +215,17 @@ public class RwsRegistry {
             }
         }
 
-        public Object getInstance(RwsSession session) {
+        public Object getInstance(RwsSession session) throws RwsException {
             Object result = session.getAttribute(attrName);
             if (result == null) {
-                result = session.getContext().getAttribute(attrName);
+                if (factory != null) {
+                    if (session.isEnded()) {
+                        throw new RwsException("Session " + session.getId() + " has ended");
+                    }
+                    result = createInstance(session);
+                } else {
+                    result = session.getContext().getAttribute(attrName);
+                }
             }
             return result;
         }
@@ -88,6 +233,69 @@ public class RwsRegistry {
         public void setInstance(RwsSession session, Object instance) {
             session.setAttribute(attrName, instance);
         }
+
+        private Object createInstance(RwsSession session) throws RwsException {
+            Object result = (pool != null) ? pool.poll() : null;
+            if (result != null) {
+                pooled.decrementAndGet();
+            } else {
+                result = factory.create(session);
+                if (result == null) {
+                    throw new RwsException("Factory for instance '" + instanceName + "' returned null");
+                }
+            }
+            // Concurrent first calls might both have created an instance
+            Object other = session.attachInstance(attrName, result);
+            if (other != null) {
+                recycle(session, result);
+                result = other;
+            }
+            // The session might have ended while the instance was created,
+            // in which case it won't get released anymore
+            if (session.isEnded()) {
+                Object instance = session.detachInstance(attrName);
+                if (instance != null) {
+                    recycle(session, instance);
+                }
+                throw new RwsException("Session " + session.getId() + " has ended");
+            }
+            return result;
+        }
+
+        // Removes the session's instance, if it ever got one
+        private void releaseInstance(RwsSession session) {
+            Object instance = session.detachInstance(attrName);
+            if (instance != null) {
+                recycle(session, instance);
+            }
+        }
+
+        private void recycle(RwsSession session, Object instance) {
+            if (pool != null && pooled.incrementAndGet() <= poolSize) {
+                pool.offer(instance);
+                return;
+            }
+            if (pool != null) {
+                pooled.decrementAndGet();
+            }
+            try {
+                factory.release(session, instance);
+            } catch (Throwable th) {
+                log.warn("Could not release instance '" + instanceName + "'", th);
+            }
+        }
+    }
+
+    /**
+     * Releases all instances that were created for the given session by
+     * factories, called when the session ends
+     */
+    void release(RwsSession session) {
+        for (InstanceInfo ii : instances.values()) {
+            if (ii.factory != null) {
+                ii.releaseInstance(session);
+            }
+        }
     }
 
     public RwsObject getObject(String objName) {
@@ -99,6 +307,15 @@ public class RwsRegistry {
     }
 
     public RwsObject matchObject(Class type) {
+        Object result = matches.get(type);
+        if (result == null) {
+            result = findObject(type);
+            matches.put(type, (result != null) ? result : NO_MATCH);
+        }
+        return (result != NO_MATCH) ? (RwsObject) result : null;
+    }
+
+    private RwsObject findObject(Class type) {
         RwsObject result = null;
         for (RwsObject obj : rwsObjects.values()) {
             boolean matches;
@@ -123,6 +340,51 @@ public class RwsRegistry {
         return result;
     }
 
+    /**
+     * Prepares all registered objects in parallel, using as many threads as
+     * there are processors, see <code>warmUp(ExecutorService)</code>
+     */
+    public void warmUp() throws RwsException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            warmUp(executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Prepares all registered objects in parallel using the given executor,
+     * this way the type information doesn't have to be obtained when the
+     * objects are first used. Returns when all objects have been prepared.
+     * Objects should not be registered while this is running.
+     */
+    public void warmUp(ExecutorService executor) throws RwsException {
+        long start = System.currentTimeMillis();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final RwsObject obj : new ArrayList<RwsObject>(rwsObjects.values())) {
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    obj.warmUp(RwsRegistry.this);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Object> f : executor.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RwsException("Warm-up was interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new RwsException("Warm-up failed", ex.getCause());
+        }
+        log.info("Warmed up {} objects in {}ms", tasks.size(), System.currentTimeMillis() - start);
+    }
+
     public InstanceInfo getInstanceInfo(String instanceName) {
         return instances.get(instanceName);
     }
@@ -151,6 +413,23 @@ public class RwsRegistry {
         return ii.object.call(session, ii.getInstance(session), method, args);
     }
 
+    public Object invoke(RwsSession session, String instanceName, String method, Object[] args) throws RwsException, InvocationTargetException {
+        log.debug("Invoking method {} on instance {}", method, instanceName);
+        InstanceInfo ii = getInstanceInfoStrict(instanceName);
+        return ii.object.invoke(session, ii.getInstance(session), method, args);
+    }
+
+    public Object invokeDirect(RwsSession session, String instanceName, String method, Object[] args) throws RwsException, InvocationTargetException {
+        log.debug("Invoking method {} on instance {}", method, instanceName);
+        InstanceInfo ii = getInstanceInfoStrict(instanceName);
+        return ii.object.invokeDirect(session, ii.getInstance(session), method, args);
+    }
+
+    public Object[] readArguments(String instanceName, String method, RwsReader in) throws RwsException {
+        InstanceInfo ii = getInstanceInfoStrict(instanceName);
+        return ii.object.readArguments(this, method, in);
+    }
+
     public EventListener subscribe(RwsSession session, String instanceName, String event, String action, RwsEventHandler handler) throws RwsException, InvocationTargetException {
         if (log.isDebugEnabled()) log.debug("Subscribing to action {} on event {} on instance {}", new Object[] { action, event, instanceName });
         InstanceInfo ii = getInstanceInfoStrict(instanceName);
@@ -163,14 +442,77 @@ public class RwsRegistry {
         ii.object.unsubscribe(session, ii.getInstance(session), event, listener);
     }
 
+    /**
+     * Converts the given value like <code>convertToJSON(Object)</code> but
+     * only includes the properties selected by the given projection
+     */
+    public Object convertToJSON(Object value, RwsProjection fields) throws RwsException {
+        RwsProjection old = projection.get();
+        projection.set(fields);
+        try {
+            return convertToJSON(value);
+        } finally {
+            projection.set(old);
+        }
+    }
+
+    /**
+     * Returns the projection that applies to the value currently being
+     * converted or written, <code>null</code> if all properties should be
+     * included. Meant to be used by converters.
+     */
+    public RwsProjection getProjection() {
+        return projection.get();
+    }
+
     public Object convertToJSON(Object value) throws RwsException {
+        if (trackReferences && convertedObjects.get() == null) {
+            convertedObjects.set(new IdentityHashMap<Object, Integer>());
+            try {
+                return convertValueToJSON(value);
+            } finally {
+                convertedObjects.set(null);
+            }
+        } else {
+            return convertValueToJSON(value);
+        }
+    }
+
+    private Object convertValueToJSON(Object value) throws RwsException {
         Object result = null;
         if (value != null) {
-            RwsObject obj = matchObject(value.getClass());
+            RwsObject obj = isBasicType(value.getClass()) ? null : matchObject(value.getClass());
             if (obj != null) {
-                result = obj.toJSON(value);
+                Map<Object, Integer> refs = convertedObjects.get();
+                if (refs != null) {
+                    Integer id = refs.get(value);
+                    if (id != null) {
+                        JSONObject ref = new JSONObject();
+                        ref.put("$ref", id);
+                        result = ref;
+                    } else {
+                        // The id is assigned before converting the properties
+                        // so any back references to this object can use it
+                        id = refs.size() + 1;
+                        refs.put(value, id);
+                        JSONObject conv = (JSONObject) obj.toJSON(value);
+                        conv.put("$id", id);
+                        result = conv;
+                    }
+                } else {
+                    result = obj.toJSON(value);
+                }
+            } else if (isBasicType(value.getClass()) || value instanceof Number) {
+                result = value;
             } else if (value instanceof JSONAware) {
                 result = value;
+            } else if (value instanceof Map) {
+                JSONObject map = new JSONObject();
+                Map<Object, Object> values = (Map<Object, Object>) value;
+                for (Map.Entry<Object, Object> entry : values.entrySet()) {
+                    map.put(String.valueOf(entry.getKey()), convertToJSON(entry.getValue()));
+                }
+                result = map;
             } else if (value instanceof Iterable) {
                 JSONArray arr = new JSONArray();
                 Iterable iter = (Iterable) value;
@@ -186,11 +528,13 @@ public class RwsRegistry {
                     arr.add(convertToJSON(val));
                 }
                 result = arr;
+            } else if (value instanceof char[]) {
+                result = new String((char[]) value);
             } else if (value.getClass().isArray()) {
                 JSONArray arr = new JSONArray();
-                Object[] values = (Object[]) value;
-                for (Object val : values) {
-                    arr.add(convertToJSON(val));
+                int len = Array.getLength(value);
+                for (int i = 0; i < len; i++) {
+                    arr.add(convertToJSON(Array.get(value, i)));
                 }
                 result = arr;
             } else {
@@ -200,6 +544,242 @@ public class RwsRegistry {
         return result;
     }
 
+    /**
+     * Writes the given value like <code>write(Object, RwsWriter)</code> but
+     * only includes the properties selected by the given projection
+     */
+    public void write(Object value, RwsProjection fields, RwsWriter out) throws RwsException {
+        RwsProjection old = projection.get();
+        projection.set(fields);
+        try {
+            write(value, out);
+        } finally {
+            projection.set(old);
+        }
+    }
+
+    /**
+     * Writes the given value using schema encoding with the given table of
+     * schemas that were already sent over the connection
+     */
+    void write(Object value, RwsProjection fields, RwsSchemas schemas, RwsWriter out) throws RwsException {
+        RwsSchemas old = schemaTables.get();
+        schemaTables.set(schemas);
+        try {
+            write(value, fields, out);
+        } finally {
+            schemaTables.set(old);
+        }
+    }
+
+    /**
+     * Streaming counterpart of <code>convertToJSON()</code>, writes the given
+     * value directly to the writer without creating any intermediate objects
+     */
+    public void write(Object value, RwsWriter out) throws RwsException {
+        if (trackReferences && convertedObjects.get() == null) {
+            convertedObjects.set(new IdentityHashMap<Object, Integer>());
+            try {
+                writeValue(value, out);
+            } finally {
+                convertedObjects.set(null);
+            }
+        } else {
+            writeValue(value, out);
+        }
+    }
+
+    private void writeValue(Object value, RwsWriter out) throws RwsException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+        Class type = value.getClass();
+        if (type == String.class) {
+            out.value((String) value);
+        } else if (type == Boolean.class) {
+            out.value(((Boolean) value).booleanValue());
+        } else if (isBasicType(type)) {
+            out.value((Number) value);
+        } else {
+            RwsObject obj = matchObject(type);
+            if (obj != null) {
+                int id = 0;
+                Map<Object, Integer> refs = convertedObjects.get();
+                if (refs != null) {
+                    Integer ref = refs.get(value);
+                    if (ref != null) {
+                        out.beginObject();
+                        out.name("$ref");
+                        out.value(ref.longValue());
+                        out.endObject();
+                        return;
+                    }
+                    id = refs.size() + 1;
+                    refs.put(value, id);
+                }
+                RwsSchemas schemas = schemaTables.get();
+                if (schemas != null && obj.hasSchema()) {
+                    writeRow(obj, value, id, schemas, out);
+                } else {
+                    obj.write(this, value, id, out);
+                }
+            } else if (value instanceof Number) {
+                out.value((Number) value);
+            } else if (value instanceof Map) {
+                out.beginObject();
+                Map<Object, Object> map = (Map<Object, Object>) value;
+                for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                    out.name(String.valueOf(entry.getKey()));
+                    write(entry.getValue(), out);
+                }
+                out.endObject();
+            } else if (value instanceof Collection && writeColumns((Collection) value, out)) {
+                // Written as columns
+            } else if (value instanceof Iterable) {
+                out.beginArray();
+                Iterable iter = (Iterable) value;
+                for (Object val : iter) {
+                    write(val, out);
+                }
+                out.endArray();
+            } else if (value instanceof Enumeration) {
+                out.beginArray();
+                Enumeration iter = (Enumeration) value;
+                while (iter.hasMoreElements()) {
+                    write(iter.nextElement(), out);
+                }
+                out.endArray();
+            } else if (type.isArray()) {
+                writeArray(value, out);
+            } else {
+                out.value(value.toString());
+            }
+        }
+    }
+
+    private void writeArray(Object value, RwsWriter out) throws RwsException {
+        Class type = value.getClass().getComponentType();
+        if (!type.isPrimitive()) {
+            Object[] values = (Object[]) value;
+            if (schemaTables.get() != null && writeColumns(Arrays.asList(values), out)) {
+                return;
+            }
+            out.beginArray();
+            for (Object val : values) {
+                write(val, out);
+            }
+            out.endArray();
+        } else if (type == Double.TYPE) {
+            out.value((double[]) value);
+        } else if (type == Integer.TYPE) {
+            out.value((int[]) value);
+        } else if (type == Long.TYPE) {
+            out.value((long[]) value);
+        } else if (type == Float.TYPE) {
+            out.value((float[]) value);
+        } else if (type == Short.TYPE) {
+            out.value((short[]) value);
+        } else if (type == Byte.TYPE) {
+            out.value((byte[]) value);
+        } else if (type == Character.TYPE) {
+            out.value(new String((char[]) value));
+        } else {
+            out.beginArray();
+            boolean[] values = (boolean[]) value;
+            for (boolean val : values) {
+                out.value(val);
+            }
+            out.endArray();
+        }
+    }
+
+    // Writes the value as {"$s": id, "$v": [values...]}, the schema itself
+    // is included the first time it is used
+    private void writeRow(RwsObject obj, Object value, int id, RwsSchemas schemas, RwsWriter out) throws RwsException {
+        out.beginObject();
+        String[] names = writeSchema(obj, schemas, out);
+        if (id > 0) {
+            out.name("$id");
+            out.value(id);
+        }
+        out.name("$v");
+        out.beginArray();
+        for (int i = 0; i < names.length; i++) {
+            obj.writeField(value, i, out);
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    // Writes a collection of objects that all share the same schema as
+    // {"$s": id, "$n": count, "$cols": [[column values...]...]}. Returns
+    // false without writing anything if the collection isn't suitable.
+    private boolean writeColumns(Collection values, RwsWriter out) throws RwsException {
+        RwsSchemas schemas = schemaTables.get();
+        if (schemas == null || values.size() < 2 || convertedObjects.get() != null) {
+            // Columns can't hold references
+            return false;
+        }
+        Class type = null;
+        for (Object val : values) {
+            if (val == null || (type != null && val.getClass() != type)) {
+                return false;
+            }
+            type = val.getClass();
+        }
+        RwsObject obj = matchObject(type);
+        if (obj == null || !obj.hasSchema()) {
+            return false;
+        }
+        out.beginObject();
+        String[] names = writeSchema(obj, schemas, out);
+        out.name("$n");
+        out.value(values.size());
+        out.name("$cols");
+        out.beginArray();
+        for (int i = 0; i < names.length; i++) {
+            out.beginArray();
+            for (Object val : values) {
+                obj.writeField(val, i, out);
+            }
+            out.endArray();
+        }
+        out.endArray();
+        out.endObject();
+        return true;
+    }
+
+    private String[] writeSchema(RwsObject obj, RwsSchemas schemas, RwsWriter out) throws RwsException {
+        RwsProjection fields = projection.get();
+        String[] names = obj.listFieldNames(fields);
+        int schemaId = schemas.lookup(obj, fields);
+        out.name("$s");
+        if (schemaId == 0) {
+            schemaId = schemas.define(obj, fields);
+            out.value(schemaId);
+            out.name("$c");
+            out.value(obj.scriptName());
+            out.name("$f");
+            out.beginArray();
+            for (String name : names) {
+                out.value(name);
+            }
+            out.endArray();
+        } else {
+            out.value(schemaId);
+        }
+        return names;
+    }
+
+    // Values of these types are always converted as-is, they can't be
+    // mapped to RwsObjects
+    private static boolean isBasicType(Class type) {
+        return type == String.class || type == Integer.class || type == Long.class
+                || type == Double.class || type == Boolean.class || type == Float.class
+                || type == Short.class || type == Byte.class;
+    }
+
     public Object convertFromJSON(Object value, Class targetType) throws RwsException {
         Object result = null;
         if (value != null) {
@@ -215,7 +795,125 @@ public class RwsRegistry {
         return result;
     }
 
+    /**
+     * Streaming counterpart of <code>convertFromJSON()</code>, reads the next
+     * value directly as the given target type
+     */
+    public Object read(RwsReader in, Class targetType) throws RwsException {
+        Object result;
+        if (in.peek() == RwsReader.Token.NULL) {
+            in.nextNull();
+            return null;
+        }
+        RwsObject obj = matchObject(targetType);
+        if (obj != null) {
+            result = obj.read(in, targetType);
+        } else if (targetType == String.class) {
+            result = in.nextString();
+        } else if (targetType == Integer.TYPE || targetType == Integer.class) {
+            result = Integer.valueOf((int) in.nextLong());
+        } else if (targetType == Long.TYPE || targetType == Long.class) {
+            result = Long.valueOf(in.nextLong());
+        } else if (targetType == Double.TYPE || targetType == Double.class) {
+            result = Double.valueOf(in.nextDouble());
+        } else if (targetType == Float.TYPE || targetType == Float.class) {
+            result = Float.valueOf((float) in.nextDouble());
+        } else if (targetType == Short.TYPE || targetType == Short.class) {
+            result = Short.valueOf((short) in.nextLong());
+        } else if (targetType == Byte.TYPE || targetType == Byte.class) {
+            result = Byte.valueOf((byte) in.nextLong());
+        } else if (targetType == Boolean.TYPE || targetType == Boolean.class) {
+            result = Boolean.valueOf(in.nextBoolean());
+        } else if (targetType == Character.TYPE || targetType == Character.class) {
+            String str = in.nextString();
+            result = (str.length() > 0) ? Character.valueOf(str.charAt(0)) : null;
+        } else if (targetType == double[].class && in.peek() == RwsReader.Token.BEGIN_ARRAY) {
+            result = readDoubles(in);
+        } else if (targetType == long[].class && in.peek() == RwsReader.Token.BEGIN_ARRAY) {
+            result = readLongs(in);
+        } else if (targetType == int[].class && in.peek() == RwsReader.Token.BEGIN_ARRAY) {
+            result = readInts(in);
+        } else if (targetType.isArray() && in.peek() == RwsReader.Token.BEGIN_ARRAY) {
+            ArrayList<Object> values = new ArrayList<Object>();
+            in.beginArray();
+            while (in.hasNext()) {
+                values.add(read(in, targetType.getComponentType()));
+            }
+            in.endArray();
+            result = Array.newInstance(targetType.getComponentType(), values.size());
+            for (int i = 0; i < values.size(); i++) {
+                Array.set(result, i, values.get(i));
+            }
+        } else {
+            result = convertFromJSON(in.readValue(), targetType);
+        }
+        return result;
+    }
+
+    private double[] readDoubles(RwsReader in) throws RwsException {
+        double[] values = new double[16];
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (count == values.length) {
+                double[] tmp = new double[values.length * 2];
+                System.arraycopy(values, 0, tmp, 0, count);
+                values = tmp;
+            }
+            values[count++] = in.nextDouble();
+        }
+        in.endArray();
+        double[] result = new double[count];
+        System.arraycopy(values, 0, result, 0, count);
+        return result;
+    }
+
+    private long[] readLongs(RwsReader in) throws RwsException {
+        long[] values = new long[16];
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (count == values.length) {
+                long[] tmp = new long[values.length * 2];
+                System.arraycopy(values, 0, tmp, 0, count);
+                values = tmp;
+            }
+            values[count++] = in.nextLong();
+        }
+        in.endArray();
+        long[] result = new long[count];
+        System.arraycopy(values, 0, result, 0, count);
+        return result;
+    }
+
+    private int[] readInts(RwsReader in) throws RwsException {
+        int[] values = new int[16];
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (count == values.length) {
+                int[] tmp = new int[values.length * 2];
+                System.arraycopy(values, 0, tmp, 0, count);
+                values = tmp;
+            }
+            values[count++] = (int) in.nextLong();
+        }
+        in.endArray();
+        int[] result = new int[count];
+        System.arraycopy(values, 0, result, 0, count);
+        return result;
+    }
+
     public void generateTypeScript(Class type, PrintWriter out) throws RwsException {
+        generateTypeScripts(Collections.singleton(type), out);
+    }
+
+    /**
+     * Generates the scripts for all the given types in a single go, each
+     * type will be generated only once even if other types depend on it.
+     * Super types are always generated before the types that extend them.
+     */
+    public void generateTypeScripts(Collection<Class> typesToGenerate, PrintWriter out) throws RwsException {
         // The following is a bit of a hack to prevent duplicate types or even
         // getting stuck in a recursive loop without making the API more complex.
         boolean first = false;
@@ -226,17 +924,98 @@ public class RwsRegistry {
             first = true;
         }
 
-        if (!types.contains(type)) {
-            types.add(type);
-            RwsObject obj = matchObject(type);
-            if (obj != null) {
-                obj.generateTypeScript(out);
+        try {
+            if (first && isClientDecodingRequired()) {
+                generateDecoderScript(out);
             }
-        }
 
-        if (first) {
-            generatedTypes.set(null);
+            for (Class type : typesToGenerate) {
+                if (!types.contains(type)) {
+                    types.add(type);
+                    RwsObject obj = matchObject(type);
+                    if (obj != null) {
+                        // The prototype chain needs the super type to exist first
+                        for (Class sup = type.getSuperclass(); sup != null; sup = sup.getSuperclass()) {
+                            RwsObject superObj = matchObject(sup);
+                            if (superObj != null) {
+                                if (superObj != obj) {
+                                    generateTypeScript(sup, out);
+                                }
+                                break;
+                            }
+                        }
+                        obj.generateTypeScript(out);
+                    }
+                }
+            }
+        } finally {
+            if (first) {
+                generatedTypes.set(null);
+            }
         }
     }
 
+    // Generates the client side functions that turn rows and columns back
+    // into objects and that restore the references that were replaced by
+    // $id/$ref markers during conversion
+    private void generateDecoderScript(PrintWriter out) {
+        out.println("if (!rws._decode) {");
+        out.println("    rws._schemas = {};");
+        out.println("    rws._expand = function(v) {");
+        out.println("        if (v && typeof v == 'object') {");
+        out.println("            if (v.$s !== undefined) {");
+        out.println("                var s = v.$f ? (rws._schemas[v.$s] = { c: v.$c, f: v.$f }) : rws._schemas[v.$s];");
+        out.println("                var i, j;");
+        out.println("                if (v.$cols) {");
+        out.println("                    var rows = [];");
+        out.println("                    for (i = 0; i < v.$n; i++) rows.push({ $class: s.c });");
+        out.println("                    for (j = 0; j < s.f.length; j++) {");
+        out.println("                        for (i = 0; i < v.$n; i++) rows[i][s.f[j]] = rws._expand(v.$cols[j][i]);");
+        out.println("                    }");
+        out.println("                    return rows;");
+        out.println("                }");
+        out.println("                var o = { $class: s.c };");
+        out.println("                if (v.$id !== undefined) o.$id = v.$id;");
+        out.println("                for (j = 0; j < s.f.length; j++) o[s.f[j]] = rws._expand(v.$v[j]);");
+        out.println("                return o;");
+        out.println("            }");
+        out.println("            for (var k in v) v[k] = rws._expand(v[k]);");
+        out.println("        }");
+        out.println("        return v;");
+        out.println("    };");
+        out.println("    rws._decode = function(value) {");
+        out.println("        value = rws._expand(value);");
+        out.println("        var ids = {};");
+        out.println("        var collect = function(v) {");
+        out.println("            if (v && typeof v == 'object') {");
+        out.println("                if (typeof v.$id == 'number') {");
+        out.println("                    ids[v.$id] = v;");
+        out.println("                    delete v.$id;");
+        out.println("                }");
+        out.println("                for (var k in v) collect(v[k]);");
+        out.println("            }");
+        out.println("        };");
+        out.println("        var resolve = function(v) {");
+        out.println("            for (var k in v) {");
+        out.println("                var p = v[k];");
+        out.println("                if (p && typeof p == 'object') {");
+        out.println("                    if (p.$ref !== undefined) v[k] = ids[p.$ref];");
+        out.println("                    else resolve(p);");
+        out.println("                }");
+        out.println("            }");
+        out.println("        };");
+        out.println("        collect(value);");
+        out.println("        if (value && typeof value == 'object') resolve(value);");
+        out.println("        return value;");
+        out.println("    };");
+        out.println("    rws._decoded = function(fn) {");
+        out.println("        if (!fn) return fn;");
+        out.println("        return function() {");
+        out.println("            for (var i = 0; i < arguments.length; i++) arguments[i] = rws._decode(arguments[i]);");
+        out.println("            return fn.apply(this, arguments);");
+        out.println("        };");
+        out.println("    };");
+        out.println("}");
+    }
+
 }
@@ -0,0 +1,26 @@
+package org.codejive.rws;
+
+/**
+ * Converters implementing this interface can write their values as a list
+ * of positional fields instead of as name/value pairs. This allows the
+ * property names to be sent only once per connection while the values
+ * themselves are sent as rows or columns, see
+ * <code>RwsRegistry.setSchemaEncoding()</code>.
+ *
+ * @author tako
+ */
+public interface RwsSchemaConverter<T> extends RwsStreamingConverter<T> {
+
+    /**
+     * Returns the names of the fields that will be written for values of
+     * the given object when the given projection is applied. The same
+     * object and projection must always result in the same list.
+     */
+    String[] listFieldNames(RwsObject obj, RwsProjection fields) throws RwsException;
+
+    /**
+     * Writes the value of a single field, the index refers to the list
+     * returned by <code>listFieldNames()</code> for the current projection
+     */
+    void writeField(RwsObject obj, T value, int index, RwsWriter out) throws RwsException;
+}
@@ -0,0 +1,67 @@
+package org.codejive.rws;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps track of the schemas that were sent over a single connection.
+ * Schemas that get defined while encoding a message only become permanent
+ * when the message was actually sent, see <code>commit()</code> and
+ * <code>rollback()</code>. Not thread-safe, callers need to synchronize
+ * on the instance while encoding and sending.
+ *
+ * @author tako
+ */
+class RwsSchemas {
+    private final Map<RwsObject, Map<RwsProjection, Integer>> ids = new HashMap<RwsObject, Map<RwsProjection, Integer>>();
+    private int lastId;
+    private int committedId;
+
+    /**
+     * Returns the id of the schema for the given object and projection or
+     * 0 if it wasn't defined yet
+     */
+    int lookup(RwsObject obj, RwsProjection fields) {
+        Map<RwsProjection, Integer> objIds = ids.get(obj);
+        if (objIds != null) {
+            Integer id = objIds.get(fields);
+            if (id != null) {
+                return id;
+            }
+        }
+        return 0;
+    }
+
+    int define(RwsObject obj, RwsProjection fields) {
+        Map<RwsProjection, Integer> objIds = ids.get(obj);
+        if (objIds == null) {
+            objIds = new HashMap<RwsProjection, Integer>();
+            ids.put(obj, objIds);
+        }
+        lastId++;
+        objIds.put(fields, lastId);
+        return lastId;
+    }
+
+    void commit() {
+        committedId = lastId;
+    }
+
+    /**
+     * Forgets all schemas defined since the last commit
+     */
+    void rollback() {
+        if (lastId != committedId) {
+            for (Map<RwsProjection, Integer> objIds : ids.values()) {
+                Iterator<Integer> iter = objIds.values().iterator();
+                while (iter.hasNext()) {
+                    if (iter.next() > committedId) {
+                        iter.remove();
+                    }
+                }
+            }
+            lastId = committedId;
+        }
+    }
+}
@@ -1,14 +1,28 @@
 package org.codejive.rws;
 
 import java.beans.MethodDescriptor;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.codejive.rws.utils.RwsContextWebFactory;
+import org.codejive.rws.utils.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,8 +32,108 @@ import org.slf4j.LoggerFactory;
  */
 public class RwsServlet extends HttpServlet {
 
+    // Generated object scripts, they get regenerated when the registry changes
+    private final Map<String, CachedScript> scripts = new ConcurrentHashMap<String, CachedScript>();
+
+    // Clients can ask for any combination of objects so we limit the
+    // number of bundles we're willing to remember
+    private static final int MAX_BUNDLES = 100;
+
+    private static final String ATTR_BUNDLES = "__rwsbundles__";
+
     private static final Logger log = LoggerFactory.getLogger(RwsServlet.class);
 
+    private static class CachedScript {
+        private final long version;
+        private final byte[] raw;
+        private final byte[] gzipped;
+        private final String hash;
+        private final String etag;
+        private final String gzipEtag;
+
+        public CachedScript(long version, byte[] raw, byte[] gzipped, String hash) {
+            this.version = version;
+            this.raw = raw;
+            this.gzipped = gzipped;
+            this.hash = hash;
+            this.etag = "\"" + hash + "\"";
+            this.gzipEtag = "\"" + hash + "-gz\"";
+        }
+    }
+
+    // Generated bundles by the names of the objects they contain, shared by
+    // all servlets of the web application, see getBundlePath()
+    private static class Bundles extends LinkedHashMap<String, CachedScript> {
+        public Bundles() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedScript> eldest) {
+            return size() > MAX_BUNDLES;
+        }
+    }
+
+    /**
+     * Returns the path of the bundle containing the scripts of the given
+     * objects, or of all objects if none are given. The path is relative to
+     * the mapping of this servlet, eg. <code>request.getContextPath() +
+     * "/rws" + RwsServlet.getBundlePath(getServletContext(), "Chat")</code>.
+     * The URL only changes when the scripts do, so browsers can cache it
+     * forever, and pages that embed it directly avoid the redirect that
+     * <code>bundle.js</code> needs.
+     */
+    public static String getBundlePath(ServletContext servletContext, String... objectNames) throws ServletException, IOException {
+        RwsRegistry registry = RwsContextWebFactory.getInstance(servletContext).getContext().getRegistry();
+        Set<String> names = new TreeSet<String>();
+        if (objectNames.length > 0) {
+            for (String name : objectNames) {
+                if (registry.getObject(name) == null) {
+                    throw new ServletException("Unknown RWS object '" + name + "'");
+                }
+                names.add(name);
+            }
+        } else {
+            names.addAll(registry.listObjectNames());
+        }
+        return bundlePath(getBundleScript(servletContext, registry, names), names);
+    }
+
+    // The object names are part of the path so any server can generate
+    // the bundle again, even if it never saw it before
+    private static String bundlePath(CachedScript script, Set<String> names) {
+        StringBuilder result = new StringBuilder("/bundle/");
+        result.append(script.hash);
+        result.append(".js?objects=");
+        boolean first = true;
+        for (String name : names) {
+            if (!first) {
+                result.append(',');
+            }
+            result.append(name);
+            first = false;
+        }
+        return result.toString();
+    }
+
+    // Returns the names of the given objects, or of all objects if none are
+    // given. Returns null if one of the objects doesn't exist.
+    private static Set<String> parseObjectNames(RwsRegistry registry, String objects) {
+        Set<String> names = new TreeSet<String>();
+        if (objects != null && objects.trim().length() > 0) {
+            for (String name : objects.split(",")) {
+                name = name.trim();
+                if (registry.getObject(name) == null) {
+                    return null;
+                }
+                names.add(name);
+            }
+        } else {
+            names.addAll(registry.listObjectNames());
+        }
+        return names;
+    }
+
     /** 
      * Processes requests for both HTTP <code>GET</code> and <code>POST</code> methods.
      * @param request servlet request
@@ -37,22 +151,45 @@ public class RwsServlet extends HttpServlet {
         } else if ("/rws.js".equals(path)) {
             log.debug("Return main script");
             // TODO return global JS page needed for all object
+        } else if ("/bundle.js".equals(path)) {
+            log.debug("Requesting bundle for '{}'", request.getParameter("objects"));
+            RwsContext context = RwsContextWebFactory.getInstance(getServletContext()).getContext();
+            Set<String> names = parseObjectNames(context.getRegistry(), request.getParameter("objects"));
+            if (names == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown RWS object in '" + request.getParameter("objects") + "'");
+                return;
+            }
+            CachedScript script = getBundleScript(getServletContext(), context.getRegistry(), names);
+            // Send the client to the URL that will never change, so it can
+            // be cached forever
+            response.setHeader("Cache-Control", "no-cache");
+            response.sendRedirect(request.getContextPath() + request.getServletPath() + bundlePath(script, names));
+        } else if (path.startsWith("/bundle/") && path.endsWith(".js")) {
+            String hash = path.substring(8, path.length() - 3);
+            RwsContext context = RwsContextWebFactory.getInstance(getServletContext()).getContext();
+            String objects = request.getParameter("objects");
+            Set<String> names = (objects != null) ? parseObjectNames(context.getRegistry(), objects) : null;
+            if (names == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown bundle '" + hash + "'");
+                return;
+            }
+            CachedScript script = getBundleScript(getServletContext(), context.getRegistry(), names);
+            if (script.hash.equals(hash)) {
+                sendScript(script, "public, max-age=31536000, immutable", request, response);
+            } else {
+                // The scripts changed since the URL was handed out
+                response.setHeader("Cache-Control", "no-cache");
+                response.sendRedirect(request.getContextPath() + request.getServletPath() + bundlePath(script, names));
+            }
         } else if (path.startsWith("/object/") && path.endsWith(".js")) {
             String objName = path.substring(8, path.length() - 3);
             log.debug("Requesting object script for '{}'", objName);
             RwsContext context = RwsContextWebFactory.getInstance(getServletContext()).getContext();
             RwsObject rwsObject = context.getRegistry().getObject(objName);
             if (rwsObject != null) {
-                response.setContentType("text/javascript; charset=UTF-8");
-                PrintWriter out = response.getWriter();
-                try {
-                    out.println("if (!rws) var rws = {};");
-                    context.getRegistry().generateTypeScript(rwsObject.getTargetClass(), out);
-                } catch (RwsException ex) {
-                    throw new ServletException("Could not generate object script for " + rwsObject.getTargetClass().getSimpleName(), ex);
-                } finally {
-                    out.close();
-                }
+                CachedScript script = getObjectScript(context.getRegistry(), rwsObject);
+                // Browsers may keep the script but must check if it's still valid
+                sendScript(script, "no-cache", request, response);
             } else {
                 response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown RWS object '" + objName + "'");
             }
@@ -62,6 +199,11 @@ public class RwsServlet extends HttpServlet {
             RwsContext context = RwsContextWebFactory.getInstance(getServletContext()).getContext();
             RwsObject rwsObject = context.getRegistry().getObject(objName);
             if (rwsObject != null) {
+                try {
+                    rwsObject.ensureInit();
+                } catch (RwsException ex) {
+                    throw new ServletException("Could not generate test page for " + objName, ex);
+                }
                 Set<String> instances = context.getRegistry().listInstanceNames(objName);
                 if (instances != null && instances.size() > 0) {
                     generateTestPage(rwsObject, instances, response);
@@ -110,6 +252,150 @@ public class RwsServlet extends HttpServlet {
         return "RWS object script generator";
     }// </editor-fold>
 
+    private CachedScript getObjectScript(RwsRegistry registry, RwsObject rwsObject) throws ServletException, IOException {
+        // Get the version before generating so that any changes made while
+        // we're busy will cause the script to be generated again next time
+        long version = registry.getVersion();
+        CachedScript script = scripts.get(rwsObject.scriptName());
+        if (script == null || script.version != version) {
+            log.debug("Generating object script for '{}'", rwsObject.scriptName());
+            StringWriter buf = new StringWriter();
+            PrintWriter out = new PrintWriter(buf);
+            try {
+                out.println("if (!rws) var rws = {};");
+                registry.generateTypeScript(rwsObject.getTargetClass(), out);
+            } catch (RwsException ex) {
+                throw new ServletException("Could not generate object script for " + rwsObject.getTargetClass().getSimpleName(), ex);
+            } finally {
+                out.close();
+            }
+            script = createScript(version, buf.toString());
+            scripts.put(rwsObject.scriptName(), script);
+        }
+        return script;
+    }
+
+    private static CachedScript getBundleScript(ServletContext servletContext, RwsRegistry registry, Set<String> names) throws ServletException, IOException {
+        Bundles bundles;
+        synchronized (RwsServlet.class) {
+            bundles = (Bundles) servletContext.getAttribute(ATTR_BUNDLES);
+            if (bundles == null) {
+                bundles = new Bundles();
+                servletContext.setAttribute(ATTR_BUNDLES, bundles);
+            }
+        }
+        long version = registry.getVersion();
+        String key = names.toString();
+        CachedScript script;
+        synchronized (bundles) {
+            script = bundles.get(key);
+        }
+        if (script == null || script.version != version) {
+            log.debug("Generating bundle for {}", key);
+            List<Class> types = new ArrayList<Class>(names.size());
+            for (String name : names) {
+                types.add(registry.getObject(name).getTargetClass());
+            }
+            StringWriter buf = new StringWriter();
+            PrintWriter out = new PrintWriter(buf);
+            try {
+                out.println("if (!rws) var rws = {};");
+                registry.generateTypeScripts(types, out);
+            } catch (RwsException ex) {
+                throw new ServletException("Could not generate bundle for " + key, ex);
+            } finally {
+                out.close();
+            }
+            script = createScript(version, minify(buf.toString()));
+            synchronized (bundles) {
+                bundles.put(key, script);
+            }
+        }
+        return script;
+    }
+
+    private static CachedScript createScript(long version, String source) throws ServletException, IOException {
+        byte[] raw = source.getBytes("UTF-8");
+        ByteArrayOutputStream gzbuf = new ByteArrayOutputStream(raw.length / 4);
+        GZIPOutputStream gzout = new GZIPOutputStream(gzbuf);
+        gzout.write(raw);
+        gzout.close();
+        String hash;
+        try {
+            hash = Strings.toHex(MessageDigest.getInstance("SHA-1").digest(raw));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new ServletException("Could not calculate ETag", ex);
+        }
+        return new CachedScript(version, raw, gzbuf.toByteArray(), hash);
+    }
+
+    // Removes indentation, empty lines and lines that only contain a
+    // comment from the generated scripts. Line breaks are kept because the
+    // generated code doesn't always end its statements with semicolons.
+    private static String minify(String source) {
+        StringBuilder result = new StringBuilder(source.length());
+        for (String line : source.split("\n")) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("//")) {
+                result.append(line);
+                result.append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    private void sendScript(CachedScript script, String cacheControl, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean gzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+        String etag = gzip ? script.gzipEtag : script.etag;
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", cacheControl);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        byte[] body = gzip ? script.gzipped : script.raw;
+        response.setContentType("text/javascript; charset=UTF-8");
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding != null) {
+            for (String enc : acceptEncoding.split(",")) {
+                String[] parts = enc.trim().split(";");
+                if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+                    return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    // Proxies that compress responses themselves weaken the tag
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag) || tag.equals("*")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private void generateOverview(RwsContext context, HttpServletResponse response) throws IOException {
         response.setContentType("text/html;charset=UTF-8");
         PrintWriter out = response.getWriter();
@@ -2,16 +2,28 @@ package org.codejive.rws;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EventListener;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.codejive.rws.json.JsonReader;
+import org.codejive.rws.utils.Strings;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,19 +33,70 @@ import org.slf4j.LoggerFactory;
  */
 public class RwsSession {
     private final RwsContext context;
-    private RwsWebSocketAdapter adapter;
+    private volatile RwsWebSocketAdapter adapter;
     private final String id;
-    private String name;
+    private volatile String name;
+    private volatile RwsCodec codec;
+    private volatile RwsCompressor compressor;
+    private volatile RwsCompressor.Stream compressorStream;
 
-    private final HashMap<String, Object> attributes;
-    private final HashMap<String, Subscription> subscriptions;
-    private final HashMap<String, EventListener> listeners;
-    private final HashSet<String> groups;
+    private final ConcurrentHashMap<String, Object> attributes;
+    // Changed while holding the lock on listeners, messages of the same
+    // session can be handled concurrently, see RwsServer.setOrderedDelivery()
+    private final ConcurrentHashMap<String, Subscription> subscriptions;
+    private final ConcurrentHashMap<String, EventListener> listeners;
+    private final Set<String> groups;
+    // How far the replay of the persistent groups joined using joinFrom() got
+    private final ConcurrentHashMap<String, Replay> replays = new ConcurrentHashMap<String, Replay>();
+    private final RwsSchemas schemas;
 
-    private static long nextSessionId = 1;
+    // Outbound messages waiting to be flushed together, guarded by itself
+    private final ArrayList<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+    private final ArrayList<Boolean> pendingBinary = new ArrayList<Boolean>();
+    private final ArrayList<RwsLane> pendingLanes = new ArrayList<RwsLane>();
+    private int pendingBytes;
+    private ScheduledFuture<?> flushTask;
+    // Makes sure batches get sent in the same order they were taken
+    private final Object flushLock = new Object();
+    private volatile long coalesceDelay;
+    private volatile int coalesceLimit = 64 * 1024;
+
+    // Clients can set the delay themselves so we keep it reasonable
+    private static final long MAX_COALESCE_DELAY = 1000000;
+
+    // Set while the connection is gone but the session can still be resumed
+    private volatile boolean suspended;
+    private volatile boolean ended;
+    private String resumeToken;
+    private ScheduledFuture<?> expiryTask;
+    // Messages sent while suspended, guarded by missed
+    private final ArrayDeque<ByteBuffer> missed = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<Boolean> missedBinary = new ArrayDeque<Boolean>();
+    private boolean missedOverflow;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    // Tasks waiting to be run by the session in mailbox mode
+    private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile Thread mailboxThread;
+
+    // The maximum number of tasks to run before giving other sessions a turn
+    private static final int MAX_MAILBOX_BATCH = 64;
+
+    // Call timeouts and deadlines further away than this (in milliseconds)
+    // are treated as if they were this far away
+    private static final long MAX_CALL_WAIT = 24L * 60 * 60 * 1000;
+
+    // The rate limit state, one bucket per type of message
+    private final RwsRateLimit.Bucket[] buckets = new RwsRateLimit.Bucket[RwsRateLimit.Type.values().length];
+
+    private static final AtomicLong nextSessionId = new AtomicLong(1);
 
     // This is where the session that this Thread is handling right now will be stored
     private final static ThreadLocal<RwsSession> session = new ThreadLocal<RwsSession>();
+    // The deadline of the call this Thread is handling right now, if any
+    private final static ThreadLocal<Long> callDeadline = new ThreadLocal<Long>();
 
     private final Logger log = LoggerFactory.getLogger(RwsSession.class);
 
@@ -49,46 +112,658 @@ public class RwsSession {
         return name;
     }
 
-    public void setName(String name) {
+    public void setName(final String name) {
+        if (repost(new Runnable() {
+            @Override
+            public void run() {
+                setName(name);
+            }
+        })) {
+            return;
+        }
         this.name = name;
         fireChange(this);
     }
 
+    /**
+     * Runs the task in the session's mailbox. In mailbox mode (see
+     * <code>RwsContext.setSessionExecutor()</code>) all tasks for a session
+     * run one at a time in the order they were posted. This includes the
+     * handling of incoming messages and all changes to the session's state,
+     * so the task can safely use the session without locking. Otherwise the
+     * task is simply run right away.
+     * <p>
+     * The methods that change the session's state post themselves to the
+     * mailbox when they're called from another thread and return right away,
+     * so their effects are only visible once the mailbox gets to them.
+     */
+    public void execute(Runnable task) {
+        Executor executor = context.getSessionExecutor();
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        mailbox.add(task);
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(drainer);
+        }
+    }
+
+    /**
+     * Returns true if the current thread may change the session's state
+     * directly, which is always the case unless mailbox mode is enabled
+     */
+    public boolean inMailbox() {
+        return context.getSessionExecutor() == null || Thread.currentThread() == mailboxThread;
+    }
+
+    // Posts the task to the mailbox unless we're already in it, returns
+    // false if the caller has to go ahead itself. Used by the methods that
+    // change the session's state to run themselves again in the mailbox.
+    private boolean repost(Runnable task) {
+        if (inMailbox()) {
+            return false;
+        }
+        execute(task);
+        return true;
+    }
+
+    // A reposted call that can fail, by the time it runs the caller is gone
+    // so all we can do is log the error
+    private abstract class Reposted implements Runnable {
+        @Override
+        public void run() {
+            try {
+                call();
+            } catch (Exception ex) {
+                log.error(failure(), ex);
+            }
+        }
+
+        abstract void call() throws Exception;
+
+        abstract String failure();
+    }
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            RwsSession previous = getInstance();
+            mailboxThread = Thread.currentThread();
+            setInstance(RwsSession.this);
+            try {
+                Runnable task;
+                int count = 0;
+                while (count++ < MAX_MAILBOX_BATCH && (task = mailbox.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable th) {
+                        log.error("Mailbox task failed for session " + id, th);
+                    }
+                }
+            } finally {
+                setInstance(previous);
+                mailboxThread = null;
+                draining.set(false);
+            }
+            // Something might have been posted after we stopped looking
+            if (!mailbox.isEmpty() && draining.compareAndSet(false, true)) {
+                Executor executor = context.getSessionExecutor();
+                if (executor != null) {
+                    executor.execute(this);
+                } else {
+                    run();
+                }
+            }
+        }
+    };
+
     public RwsSession(RwsContext context, RwsWebSocketAdapter adapter) {
         this.context = context;
         this.adapter = adapter;
-        id = Long.toString(nextSessionId++);
+        id = Long.toString(nextSessionId.getAndIncrement());
         name = "Client #" + id;
-        attributes = new HashMap<String, Object>();
-        subscriptions = new HashMap<String, Subscription>();
-        listeners = new HashMap<String, EventListener>();
-        groups = new HashSet<String>();
+        codec = context.getDefaultCodec();
+        // Other threads may read these while the session changes them
+        attributes = new ConcurrentHashMap<String, Object>();
+        subscriptions = new ConcurrentHashMap<String, Subscription>();
+        listeners = new ConcurrentHashMap<String, EventListener>();
+        groups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        schemas = new RwsSchemas();
+    }
+
+    public String getWireFormat() {
+        return codec.getName();
+    }
+
+    /**
+     * Selects the wire format used for all messages sent to this session
+     * from now on. Transports will normally call this with a format that
+     * was negotiated during the handshake, eg. using the WebSocket
+     * sub-protocol, but clients can call it themselves as well in which
+     * case the result of the call itself will already use the new format.
+     * Text messages received from the client are always accepted as JSON.
+     */
+    public void setWireFormat(String wireFormat) throws RwsException {
+        RwsCodec c = context.getCodec(wireFormat);
+        if (c == null) {
+            throw new RwsException("Unsupported wire format '" + wireFormat + "'");
+        }
+        if (c.isBinary() && !(adapter instanceof RwsBufferAdapter)) {
+            throw new RwsException("Wire format '" + wireFormat + "' needs a connection that supports binary messages");
+        }
+        codec = c;
+    }
+
+    RwsCodec getCodec() {
+        return codec;
+    }
+
+    public boolean isCompressed() {
+        return compressor != null;
+    }
+
+    /**
+     * Enables or disables compression of large outbound messages using the
+     * context's compressor, see <code>RwsCompressor</code> for the format of
+     * the compressed messages. Like the wire format this is normally decided
+     * by the transport during the handshake but clients can change it too.
+     * If the compressor uses a stream for the entire connection
+     * (<code>contextTakeover</code>) the client must inflate messages in the
+     * order they were compressed, so events and low priority messages then
+     * share a single lane. Call results and errors are compressed on their
+     * own and still go first, see <code>RwsLane</code>.
+     */
+    public synchronized void setCompressed(boolean compressed) throws RwsException {
+        RwsCompressor.Stream oldStream = compressorStream;
+        if (compressed) {
+            RwsCompressor c = context.getCompressor();
+            if (c == null) {
+                throw new RwsException("Compression is not available");
+            }
+            if (!(adapter instanceof RwsBufferAdapter)) {
+                throw new RwsException("Compression needs a connection that supports binary messages");
+            }
+            if (c != compressor) {
+                compressorStream = c.newStream();
+                compressor = c;
+            } else {
+                oldStream = null;
+            }
+        } else {
+            compressor = null;
+            compressorStream = null;
+        }
+        if (oldStream != null && oldStream != compressorStream) {
+            synchronized (oldStream) {
+                oldStream.end();
+            }
+        }
+    }
+
+    RwsCompressor getCompressor() {
+        return compressor;
+    }
+
+    public long getCoalesceDelay() {
+        return coalesceDelay;
+    }
+
+    /**
+     * Sets the time in microseconds during which outbound messages are
+     * held back so they can be sent together, which saves a lot of small
+     * writes when many events are sent in a short time. The messages are
+     * still sent as separate messages, so clients don't need to do anything
+     * special. A delay of 0 (the default) sends each message immediately.
+     */
+    public void setCoalesceDelay(long coalesceDelay) throws RwsException {
+        if (coalesceDelay < 0 || coalesceDelay > MAX_COALESCE_DELAY) {
+            throw new RwsException("Coalesce delay must be between 0 and " + MAX_COALESCE_DELAY + " microseconds");
+        }
+        this.coalesceDelay = coalesceDelay;
+        if (coalesceDelay == 0) {
+            try {
+                flush();
+            } catch (IOException ex) {
+                log.warn("Could not flush messages for session " + id, ex);
+            }
+        }
+    }
+
+    public int getCoalesceLimit() {
+        return coalesceLimit;
+    }
+
+    /**
+     * Sets the amount of outbound data in bytes that can be held back before
+     * it gets sent, even if the coalesce delay hasn't passed yet
+     */
+    public void setCoalesceLimit(int coalesceLimit) throws RwsException {
+        if (coalesceLimit <= 0) {
+            throw new RwsException("Coalesce limit must be larger than 0");
+        }
+        this.coalesceLimit = coalesceLimit;
+    }
+
+    /**
+     * Returns the token a client can use to resume this session after its
+     * connection was lost. Only sessions that asked for a token can be
+     * resumed, and only if the context has a grace period set, see
+     * <code>RwsContext.setResumeGracePeriod()</code>. The client passes the
+     * token when reconnecting (for the built-in server using the
+     * <code>resume</code> query parameter). If it gets the same token back
+     * afterwards the session was resumed and all the messages it missed
+     * were sent, otherwise it got a new session and has to subscribe again.
+     */
+    public synchronized String getResumeToken() {
+        if (resumeToken == null) {
+            byte[] data = new byte[16];
+            random.nextBytes(data);
+            resumeToken = Strings.toHex(data);
+        }
+        return resumeToken;
+    }
+
+    synchronized String resumeToken() {
+        return resumeToken;
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Keeps the session and its subscriptions alive after the connection
+     * was lost, any messages sent from now on, and those that were still
+     * being held back for coalescing, are held until the session is
+     * resumed. Returns false if the session can't be resumed.
+     */
+    boolean suspend(ScheduledFuture<?> expiryTask) {
+        synchronized (this) {
+            if (resumeToken == null || ended) {
+                return false;
+            }
+            this.expiryTask = expiryTask;
+        }
+        synchronized (missed) {
+            missed.clear();
+            missedBinary.clear();
+            missedOverflow = false;
+            // Anything that was still waiting never reached the lost
+            // connection, so it gets replayed in the order it would have
+            // been flushed
+            synchronized (pending) {
+                if (flushTask != null) {
+                    flushTask.cancel(false);
+                    flushTask = null;
+                }
+                if (compressorStream != null && !pending.isEmpty()) {
+                    // Compressed for the old inflater, the client can't
+                    // decode these after resuming
+                    missedOverflow = true;
+                } else {
+                    for (RwsLane lane : RwsLane.values()) {
+                        for (int j = 0; j < pending.size(); j++) {
+                            if (pendingLanes.get(j) == lane) {
+                                keep(pending.get(j), pendingBinary.get(j));
+                            }
+                        }
+                    }
+                }
+                pending.clear();
+                pendingBinary.clear();
+                pendingLanes.clear();
+                pendingBytes = 0;
+            }
+            suspended = true;
+        }
+        // The client will start decompressing with a new inflater
+        RwsCompressor c = compressor;
+        RwsCompressor.Stream oldStream = compressorStream;
+        if (c != null && oldStream != null) {
+            compressorStream = c.newStream();
+            synchronized (oldStream) {
+                oldStream.end();
+            }
+        }
+        log.debug("Suspended session {}", id);
+        return true;
+    }
+
+    /**
+     * Attaches the session to a new connection and sends it everything that
+     * was missed. Returns false if the session can't be resumed because it
+     * wasn't suspended or because it missed more messages than it could hold.
+     */
+    boolean resume(RwsWebSocketAdapter adapter) {
+        synchronized (this) {
+            if (expiryTask != null) {
+                expiryTask.cancel(false);
+                expiryTask = null;
+            }
+        }
+        synchronized (missed) {
+            if (!suspended || missedOverflow) {
+                return false;
+            }
+            this.adapter = adapter;
+            ByteBuffer[] msgs = missed.toArray(new ByteBuffer[missed.size()]);
+            boolean[] binary = new boolean[msgs.length];
+            int i = 0;
+            for (Boolean b : missedBinary) {
+                binary[i++] = b;
+            }
+            missed.clear();
+            missedBinary.clear();
+            try {
+                // Messages sent in the meantime wait for the lock so they
+                // will arrive after the ones that were missed
+                if (msgs.length > 0) {
+                    send(msgs, binary);
+                }
+            } catch (IOException ex) {
+                // The new connection is already failing, it's not safe to
+                // resume again because the client might be missing messages
+                log.warn("Could not send missed messages to session " + id, ex);
+                synchronized (this) {
+                    resumeToken = null;
+                }
+            } finally {
+                suspended = false;
+            }
+            log.debug("Resumed session {}, sent {} missed messages", id, msgs.length);
+        }
+        return true;
+    }
+
+    // Holds the message for replay if the session is suspended
+    private boolean hold(ByteBuffer msg, boolean binary) {
+        synchronized (missed) {
+            if (!suspended) {
+                return false;
+            }
+            keep(copy(msg), binary);
+            return true;
+        }
+    }
+
+    // Adds the message to the ones to replay, must hold the lock on missed
+    private void keep(ByteBuffer msg, boolean binary) {
+        if (!missedOverflow) {
+            if (missed.size() < context.getResumeBufferSize()) {
+                missed.add(msg);
+                missedBinary.add(binary);
+            } else {
+                // The client can't be brought up to date anymore
+                missedOverflow = true;
+                missed.clear();
+                missedBinary.clear();
+            }
+        }
     }
 
     public Object getAttribute(String name) {
         return attributes.get(name);
     }
 
-    public void setAttribute(String name, Object value) {
-        attributes.put(name, value);
+    public void setAttribute(final String name, final Object value) {
+        if (repost(new Runnable() {
+            @Override
+            public void run() {
+                setAttribute(name, value);
+            }
+        })) {
+            return;
+        }
+        if (value != null) {
+            attributes.put(name, value);
+        } else {
+            attributes.remove(name);
+        }
     }
 
-    public void removeAttribute(String name) {
+    public void removeAttribute(final String name) {
+        if (repost(new Runnable() {
+            @Override
+            public void run() {
+                removeAttribute(name);
+            }
+        })) {
+            return;
+        }
         attributes.remove(name);
     }
 
+    // Stores an instance created for this session unless another one got
+    // there first, in which case that one is returned, see RwsRegistry
+    Object attachInstance(String name, Object instance) {
+        return attributes.putIfAbsent(name, instance);
+    }
+
+    Object detachInstance(String name) {
+        return attributes.remove(name);
+    }
+
+    // Hands back the instances that were created just for this session.
+    // Their listeners have to be removed first, otherwise they would stay
+    // behind on an instance that gets reused by another session
+    void releaseInstances() {
+        // From now on no new instances get created for this session
+        ended = true;
+        if (repost(new Runnable() {
+            @Override
+            public void run() {
+                releaseInstances();
+            }
+        })) {
+            return;
+        }
+        unsubscribeAll();
+        context.getRegistry().release(this);
+    }
+
+    // True once the session was disconnected or removed from its context
+    boolean isEnded() {
+        return ended;
+    }
+
     public Set<String> listAttributeNames() {
         return Collections.unmodifiableSet(attributes.keySet());
     }
 
     public void clearAttributes() {
+        if (repost(new Runnable() {
+            @Override
+            public void run() {
+                clearAttributes();
+            }
+        })) {
+            return;
+        }
         attributes.clear();
     }
 
     public void send(String from, JSONObject data) throws IOException {
         data.put("from", from);
-        String jsonText = JSONValue.toJSONString(data);
-        adapter.sendMessage(jsonText);
+        RwsCodec c = codec;
+        RwsWriter out = c.acquireWriter();
+        try {
+            context.getRegistry().write(data, out);
+            // Messages from the server itself are call errors
+            sendEncoded(out.toByteBuffer(), c, "sys".equals(from) ? RwsLane.CONTROL : RwsLane.EVENTS);
+        } catch (RwsException ex) {
+            throw new IOException("Could not encode message", ex);
+        } finally {
+            out.release();
+        }
+    }
+
+    void sendEncoded(ByteBuffer msg, RwsCodec msgCodec) throws IOException {
+        sendEncoded(msg, msgCodec, RwsLane.EVENTS);
+    }
+
+    void sendEncoded(ByteBuffer msg, RwsCodec msgCodec, RwsLane lane) throws IOException {
+        RwsCompressor c = compressor;
+        if (c != null && c.shouldCompress(msg)) {
+            RwsCompressor.Stream stream = compressorStream;
+            if (stream != null && lane != RwsLane.CONTROL) {
+                // The client decompresses in the order the messages arrive
+                synchronized (stream) {
+                    transmit(stream.compress(msg, context.getStatistics()), true, lane);
+                }
+            } else {
+                transmit(c.compress(msg, context.getStatistics()), true, lane);
+            }
+        } else {
+            transmit(msg, msgCodec.isBinary(), lane);
+        }
+    }
+
+    void sendCompressed(ByteBuffer msg) throws IOException {
+        transmit(msg, true, RwsLane.EVENTS);
+    }
+
+    private void transmit(ByteBuffer msg, boolean binary, RwsLane lane) throws IOException {
+        if (suspended && hold(msg, binary)) {
+            return;
+        }
+        if (lane != RwsLane.CONTROL && (compressorStream != null || context.getRegistry().isSchemaEncoding())) {
+            // The client depends on the messages arriving in the order they
+            // were encoded, so they can't overtake each other. Call results
+            // are encoded and compressed on their own so they can.
+            lane = RwsLane.EVENTS;
+        }
+        long delay = coalesceDelay;
+        if (delay == 0) {
+            RwsWebSocketAdapter a = adapter;
+            if (a instanceof RwsPriorityAdapter) {
+                ((RwsPriorityAdapter) a).sendMessage(msg, binary, lane);
+            } else if (binary) {
+                sendBinary(a, msg);
+            } else {
+                sendText(a, msg);
+            }
+            return;
+        }
+        boolean full;
+        synchronized (pending) {
+            // The buffer might get reused as soon as we return
+            ByteBuffer copy = copy(msg);
+            pending.add(copy);
+            pendingBinary.add(binary);
+            pendingLanes.add(lane);
+            pendingBytes += copy.remaining();
+            full = pendingBytes >= coalesceLimit;
+            if (!full && flushTask == null) {
+                flushTask = context.getScheduler().schedule(flusher, delay, TimeUnit.MICROSECONDS);
+            }
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (IOException ex) {
+                log.warn("Could not flush messages for session " + id, ex);
+            }
+        }
+    };
+
+    /**
+     * Sends any outbound messages that are being held back right away
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            ByteBuffer[] msgs;
+            boolean[] binary;
+            RwsLane[] lanes;
+            synchronized (pending) {
+                if (flushTask != null) {
+                    flushTask.cancel(false);
+                    flushTask = null;
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                msgs = new ByteBuffer[pending.size()];
+                binary = new boolean[msgs.length];
+                lanes = new RwsLane[msgs.length];
+                // Higher lanes go first, the order within a lane is kept
+                int i = 0;
+                for (RwsLane lane : RwsLane.values()) {
+                    for (int j = 0; j < msgs.length; j++) {
+                        if (pendingLanes.get(j) == lane) {
+                            msgs[i] = pending.get(j);
+                            binary[i] = pendingBinary.get(j);
+                            lanes[i] = lane;
+                            i++;
+                        }
+                    }
+                }
+                pending.clear();
+                pendingBinary.clear();
+                pendingLanes.clear();
+                pendingBytes = 0;
+            }
+            send(msgs, binary, lanes);
+        }
+    }
+
+    private void send(ByteBuffer[] msgs, boolean[] binary) throws IOException {
+        send(msgs, binary, null);
+    }
+
+    // Without lanes all messages are sent using the EVENTS lane
+    private void send(ByteBuffer[] msgs, boolean[] binary, RwsLane[] lanes) throws IOException {
+        RwsWebSocketAdapter a = adapter;
+        if (a instanceof RwsPriorityAdapter) {
+            if (lanes == null) {
+                lanes = new RwsLane[msgs.length];
+                Arrays.fill(lanes, RwsLane.EVENTS);
+            }
+            ((RwsPriorityAdapter) a).sendMessages(msgs, binary, lanes);
+        } else if (a instanceof RwsBatchingAdapter) {
+            ((RwsBatchingAdapter) a).sendMessages(msgs, binary);
+        } else {
+            for (int i = 0; i < msgs.length; i++) {
+                if (binary[i]) {
+                    sendBinary(a, msgs[i]);
+                } else {
+                    sendText(a, msgs[i]);
+                }
+            }
+        }
+    }
+
+    private static void sendBinary(RwsWebSocketAdapter a, ByteBuffer msg) throws IOException {
+        if (!(a instanceof RwsBufferAdapter)) {
+            throw new IOException("The connection doesn't support binary messages");
+        }
+        ((RwsBufferAdapter) a).sendBinaryMessage(msg);
+    }
+
+    // Adapters that can't take a buffer get the message as a String
+    private static void sendText(RwsWebSocketAdapter a, ByteBuffer msg) throws IOException {
+        if (a instanceof RwsBufferAdapter) {
+            ((RwsBufferAdapter) a).sendMessage(msg);
+        } else {
+            ByteBuffer buf = msg.duplicate();
+            byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            a.sendMessage(new String(data, "UTF-8"));
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer msg) {
+        ByteBuffer result = ByteBuffer.allocate(msg.remaining());
+        result.put(msg.duplicate());
+        result.flip();
+        return result;
     }
 
     public boolean isConnected() {
@@ -96,14 +771,24 @@ public class RwsSession {
     }
 
     public void disconnect() {
-        // Unsubscribe from all events
-        ArrayList<Subscription> subs = new ArrayList(subscriptions.values());
-        for (Subscription sub : subs) {
-            try {
-                unsubscribe(sub);
-            } catch (Throwable th) {
-                // Ignore
+        ended = true;
+        suspended = false;
+        if (repost(new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
             }
+        })) {
+            return;
+        }
+
+        unsubscribeAll();
+
+        // Send anything that was still being held back
+        try {
+            flush();
+        } catch (Throwable th) {
+            // Ignore
         }
 
         // Disconnect socket
@@ -112,18 +797,184 @@ public class RwsSession {
         } catch (Throwable th) {
             // Ignore
         }
+
+        try {
+            setCompressed(false);
+        } catch (RwsException ex) {
+            // Can't happen
+        }
+    }
+
+    private void unsubscribeAll() {
+        ArrayList<Subscription> subs;
+        synchronized (listeners) {
+            subs = new ArrayList<Subscription>(subscriptions.values());
+        }
+        for (Subscription sub : subs) {
+            try {
+                unsubscribe(sub);
+            } catch (Throwable th) {
+                // Ignore
+            }
+        }
     }
 
-    public void join(String group) {
-        if (!groups.contains(group)) {
-            groups.add(group);
+    public void join(final String group) {
+        if (repost(new Runnable() {
+            @Override
+            public void run() {
+                join(group);
+            }
+        })) {
+            return;
+        }
+        if (groups.add(group)) {
             context.fireJoin(group, this);
         }
     }
 
-    public void leave(String group) {
-        if (groups.contains(group)) {
-            groups.remove(group);
+    /**
+     * Joins a persistent group and sends all messages in its log starting at
+     * the given sequence number. Clients pass the number following the
+     * <code>seq</code> of the last message they saw. Messages sent to the
+     * group while joining are held back until the replay is done, so the
+     * client gets all messages in the order of their <code>seq</code> and
+     * none of them twice. After that the session is a normal member, which
+     * means that messages sent to the group at the same time by different
+     * threads can still arrive in a different order.
+     * <p>
+     * In mailbox mode a call from outside the mailbox only checks that the
+     * group is persistent, the rest happens asynchronously and any errors,
+     * like failing to read the log, are only logged.
+     */
+    public void joinFrom(final String group, final long sequence) throws RwsException, IOException {
+        RwsGroupLog groupLog = context.getGroupLog(group);
+        if (groupLog == null) {
+            throw new RwsException("Group '" + group + "' is not persistent");
+        }
+        if (repost(new Reposted() {
+            @Override
+            void call() throws Exception {
+                joinFrom(group, sequence);
+            }
+
+            @Override
+            String failure() {
+                return "Could not join group " + group;
+            }
+        })) {
+            return;
+        }
+        RwsGroupLog.RecordHandler handler = new RwsGroupLog.RecordHandler() {
+            @Override
+            public void handleRecord(long seq, long timestamp, ByteBuffer msg) throws IOException {
+                sendLogged(msg);
+            }
+        };
+        Replay replay = new Replay();
+        replays.put(group, replay);
+        join(group);
+        try {
+            // Everything after this is sent to us as a member, until the
+            // replay is done those messages are held back
+            long from = sequence;
+            long last = groupLog.sync();
+            while (true) {
+                groupLog.read(from, last, handler);
+                synchronized (replay) {
+                    if (replay.held <= last) {
+                        replay.last = Math.max(last, sequence - 1);
+                        replay.done = true;
+                        break;
+                    }
+                    from = Math.max(from, last + 1);
+                    last = replay.held;
+                }
+                // The messages that were held back are read from the log
+                groupLog.sync();
+            }
+        } catch (IOException ex) {
+            replays.remove(group, replay);
+            throw ex;
+        }
+    }
+
+    private static class Replay {
+        // Set when all messages up to last were sent
+        private boolean done;
+        private long last;
+        // The highest sequence number of the messages held back
+        private long held;
+    }
+
+    // Called for each message sent to a persistent group this session is a
+    // member of, returns true if the message must not be sent because it
+    // was already replayed or will be as part of the replay
+    boolean skipLogged(String group, long seq) {
+        Replay replay = replays.get(group);
+        if (replay == null) {
+            return false;
+        }
+        synchronized (replay) {
+            if (!replay.done) {
+                replay.held = Math.max(replay.held, seq);
+                return true;
+            }
+            return seq <= replay.last;
+        }
+    }
+
+    /**
+     * Same as <code>joinFrom()</code> but sends the messages that were sent
+     * at or after the given time (in milliseconds since the epoch). Like
+     * <code>joinFrom()</code> this happens asynchronously in mailbox mode
+     * when called from outside the mailbox and any errors are only logged.
+     */
+    public void joinSince(String group, long timestamp) throws RwsException, IOException {
+        RwsGroupLog groupLog = context.getGroupLog(group);
+        if (groupLog == null) {
+            throw new RwsException("Group '" + group + "' is not persistent");
+        }
+        joinFrom(group, groupLog.findSequence(timestamp));
+    }
+
+    // Sends a message from a group log, which is stored as JSON
+    private void sendLogged(ByteBuffer msg) throws IOException {
+        RwsCodec c = codec;
+        if (c == context.getDefaultCodec()) {
+            sendEncoded(msg, c);
+        } else {
+            byte[] data = new byte[msg.remaining()];
+            msg.get(data);
+            Object value;
+            try {
+                value = new JSONParser().parse(new String(data, "UTF-8"));
+            } catch (ParseException ex) {
+                throw new IOException("Invalid message in group log", ex);
+            }
+            RwsWriter out = c.acquireWriter();
+            try {
+                context.getRegistry().write(value, out);
+                sendEncoded(out.toByteBuffer(), c);
+            } catch (RwsException ex) {
+                throw new IOException("Could not encode message", ex);
+            } finally {
+                out.release();
+            }
+        }
+    }
+
+    public void leave(final String group) {
+        if (repost(new Runnable() {
+            @Override
+            public void run() {
+                leave(group);
+            }
+        })) {
+            return;
+        }
+        if (groups.remove(group)) {
+            replays.remove(group);
             context.fireLeave(group, this);
         }
     }
@@ -136,38 +987,132 @@ public class RwsSession {
         context.fireChange(this);
     }
 
+    /**
+     * Subscribes to an event, in mailbox mode this happens asynchronously
+     * when called from outside the mailbox and any errors, like a duplicate
+     * handler id, are only logged.
+     */
     public void subscribe(final Subscription sub) throws RwsException, InvocationTargetException {
-        if (listeners.containsKey(sub.getHandlerId())) {
-            throw new RwsException("An event handler with the id '" + sub.getHandlerId() + "' already exists");
-        }
+        if (repost(new Reposted() {
+            @Override
+            void call() throws Exception {
+                subscribe(sub);
+            }
 
+            @Override
+            String failure() {
+                return "Could not subscribe to event " + sub.getEvent();
+            }
+        })) {
+            return;
+        }
+        final RwsProjection fields = RwsProjection.compile(sub.getFields());
+        final RwsFilter filter = RwsFilter.compile(sub.getFilter());
+        RwsRegistry.InstanceInfo ii = context.getRegistry().getInstanceInfo(sub.getObject());
+        final RwsLane lane = (ii != null && ii.getObject().isLowPriority(sub.getEvent())) ? RwsLane.LOW : RwsLane.EVENTS;
         RwsEventHandler handler = new RwsEventHandler() {
             @Override
             public void handleEvent(Object data) throws IOException {
-                send("sys", newEvent(sub.getHandlerId(), data));
+                if (filter != null && !filter.matches((Object[]) data, context.getRegistry())) {
+                    context.getStatistics().addFilteredEvent();
+                    return;
+                }
+                sendEvent(sub.getHandlerId(), data, fields, lane);
             }
         };
 
-        EventListener listener = context.getRegistry().subscribe(this, sub.getObject(), sub.getEvent(), sub.getAction(), handler);
-        
-        subscriptions.put(sub.getHandlerId(), sub);
-        listeners.put(sub.getHandlerId(), listener);
+        synchronized (listeners) {
+            if (ended) {
+                throw new RwsException("Session " + id + " has ended");
+            }
+            if (listeners.containsKey(sub.getHandlerId())) {
+                throw new RwsException("An event handler with the id '" + sub.getHandlerId() + "' already exists");
+            }
+            EventListener listener = context.getRegistry().subscribe(this, sub.getObject(), sub.getEvent(), sub.getAction(), handler);
+
+            subscriptions.put(sub.getHandlerId(), sub);
+            listeners.put(sub.getHandlerId(), listener);
+        }
     }
 
-    public void unsubscribe(Subscription sub) throws RwsException, InvocationTargetException {
-        EventListener listener = listeners.get(sub.getHandlerId());
-        if (listener != null) {
-            context.getRegistry().unsubscribe(this, sub.getObject(), sub.getEvent(), listener);
-            subscriptions.remove(sub.getHandlerId());
-            listeners.remove(sub.getHandlerId());
+    /**
+     * Unsubscribes from an event, in mailbox mode this happens asynchronously
+     * when called from outside the mailbox and any errors are only logged.
+     */
+    public void unsubscribe(final Subscription sub) throws RwsException, InvocationTargetException {
+        if (repost(new Reposted() {
+            @Override
+            void call() throws Exception {
+                unsubscribe(sub);
+            }
+
+            @Override
+            String failure() {
+                return "Could not unsubscribe from event " + sub.getEvent();
+            }
+        })) {
+            return;
+        }
+        synchronized (listeners) {
+            EventListener listener = listeners.get(sub.getHandlerId());
+            if (listener != null) {
+                context.getRegistry().unsubscribe(this, sub.getObject(), sub.getEvent(), listener);
+                subscriptions.remove(sub.getHandlerId());
+                listeners.remove(sub.getHandlerId());
+            }
         }
     }
 
-    private JSONObject newEvent(String id, Object data) {
-        JSONObject obj = new JSONObject();
-        obj.put("id", id);
-        obj.put("event", data);
-        return obj;
+    private void sendEvent(String id, Object data, RwsProjection fields, RwsLane lane) throws IOException {
+        try {
+            sendData(id, "event", data, fields, lane);
+        } catch (RwsException ex) {
+            throw new IOException("Could not encode event", ex);
+        }
+    }
+
+    // Sends {"id": id, <type>: data, "from": "sys"}
+    private void sendData(String id, String type, Object data, RwsProjection fields, RwsLane lane) throws IOException, RwsException {
+        RwsRegistry registry = context.getRegistry();
+        // Call results are written without schemas so they don't depend on
+        // other messages and can overtake them, see RwsLane
+        if (registry.isSchemaEncoding() && lane != RwsLane.CONTROL) {
+            // Messages must be sent in the same order in which they were
+            // encoded, otherwise the client might see a schema being used
+            // before it was defined
+            synchronized (schemas) {
+                try {
+                    sendData(id, type, data, fields, schemas, lane);
+                    schemas.commit();
+                } finally {
+                    schemas.rollback();
+                }
+            }
+        } else {
+            sendData(id, type, data, fields, null, lane);
+        }
+    }
+
+    private void sendData(String id, String type, Object data, RwsProjection fields, RwsSchemas schemas, RwsLane lane) throws IOException, RwsException {
+        RwsCodec c = codec;
+        RwsWriter out = c.acquireWriter();
+        try {
+            out.beginObject();
+            out.name("id");
+            out.value(id);
+            out.name(type);
+            if (schemas != null) {
+                context.getRegistry().write(data, fields, schemas, out);
+            } else {
+                context.getRegistry().write(data, fields, out);
+            }
+            out.name("from");
+            out.value("sys");
+            out.endObject();
+            sendEncoded(out.toByteBuffer(), c, lane);
+        } finally {
+            out.release();
+        }
     }
 
     public static class Subscription {
@@ -176,7 +1121,8 @@ public class RwsSession {
         private String action;
         private String event;
         private String object;
-
+        private String fields;
+        private String filter;
         public String getAction() {
             return action;
         }
@@ -217,13 +1163,60 @@ public class RwsSession {
             this.object = object;
         }
 
+        /**
+         * The projection to apply to the event data, see
+         * <code>RwsProjection</code>, or <code>null</code> to send everything
+         */
+        public String getFields() {
+            return fields;
+        }
+
+        public void setFields(String fields) {
+            this.fields = fields;
+        }
+
+        /**
+         * The condition events must meet to be sent, see
+         * <code>RwsFilter</code>, or <code>null</code> to send all events
+         */
+        public String getFilter() {
+            return filter;
+        }
+
+        public void setFilter(String filter) {
+            this.filter = filter;
+        }
+
+    }
+
+    public void handleMessage(final JSONObject info) throws IOException {
+        if (accept(0)) {
+            RwsRateLimit.Type type = typeOf((String) info.get("to"));
+            String returnId = (type == RwsRateLimit.Type.CALL) ? (String) info.get("id") : null;
+            if (allow(type, returnId)) {
+                final long received = System.nanoTime();
+                if (!repost(new Reposted() {
+                    @Override
+                    void call() throws Exception {
+                        route(info, received);
+                    }
+
+                    @Override
+                    String failure() {
+                        return "Could not handle message";
+                    }
+                })) {
+                    route(info, received);
+                }
+            }
+        }
     }
 
-    public void handleMessage(JSONObject info) throws IOException {
+    private void route(JSONObject info, long received) throws IOException {
         String to = (String) info.get("to");
         if (to == null || "sys".equals(to)) {
             // The message is for the server
-            doCall(info);
+            doCall(info, received);
         } else if ("all".equals(to)) {
             // Send the message to all connected sockets
             context.sendAll(getId(), info, false);
@@ -237,12 +1230,308 @@ public class RwsSession {
         }
     }
 
-    private void doCall(JSONObject info) throws IOException {
+    /**
+     * Handles a message in JSON text form by reading it directly instead of
+     * parsing it into a tree first. Call parameters are bound straight to
+     * the types of the target method's parameters. This is fastest when the
+     * <code>object</code> and <code>method</code> fields come before the
+     * <code>params</code> field, otherwise the message has to be read twice.
+     * An optional <code>fields</code> entry, either a string or an array of
+     * strings, selects the properties of the result that should be sent back,
+     * see <code>RwsProjection</code>. A call can also have a
+     * <code>timeout</code> in milliseconds or an absolute <code>deadline</code>
+     * in milliseconds since the epoch, if it has passed by the time the call
+     * gets handled the call is dropped and the client gets an
+     * <code>expired</code> error result, see also <code>getRemainingTime()</code>.
+     * A call with an <code>interval</code> in milliseconds is repeated by the
+     * server until it's cancelled with <code>cancelPoll()</code>, its result
+     * is sent with the id of the call whenever it changes. Identical
+     * periodic calls from different sessions are made only once.
+     */
+    public void handleMessage(CharSequence msg) throws IOException {
+        if (accept(msg.length())) {
+            if (inMailbox()) {
+                handleMessage(new JsonReader(msg), System.nanoTime());
+            } else {
+                post(new JsonReader(msg.toString()));
+            }
+        }
+    }
+
+    /**
+     * Same as <code>handleMessage(CharSequence)</code> but for messages that
+     * are still encoded as UTF-8
+     */
+    public void handleMessage(ByteBuffer msg) throws IOException {
+        if (accept(msg.remaining())) {
+            if (inMailbox()) {
+                handleMessage(new JsonReader(msg), System.nanoTime());
+            } else {
+                post(new JsonReader(copy(msg)));
+            }
+        }
+    }
+
+    /**
+     * Handles a binary message encoded in the session's wire format
+     */
+    public void handleBinaryMessage(ByteBuffer msg) throws IOException {
+        if (!accept(msg.remaining())) {
+            return;
+        }
+        RwsCodec c = codec;
+        if (!c.isBinary()) {
+            log.warn("Ignoring binary message for session {}, no binary wire format was selected", id);
+        } else if (inMailbox()) {
+            handleMessage(c.newReader(msg), System.nanoTime());
+        } else {
+            post(c.newReader(copy(msg)));
+        }
+    }
+
+    // Handles the message in the mailbox, the reader must not depend on any
+    // buffers the caller might reuse
+    private void post(final RwsReader in) {
+        final long received = System.nanoTime();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleMessage(in, received);
+                } catch (IOException ex) {
+                    log.error("Could not handle message", ex);
+                }
+            }
+        });
+    }
+
+    // The time the message was received is used for relative timeouts
+    private void handleMessage(RwsReader in, long received) throws IOException {
+        String returnId = null;
+        String obj = null;
+        String method = null;
+        Object[] args = null;
+        RwsProjection fields = null;
+        Long timeout = null;
+        Long deadline = null;
+        Long interval = null;
+        boolean deferred = false;
+        // Set once the call got past the rate limit
+        boolean admitted = false;
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("to".equals(name)) {
+                    String to = readString(in);
+                    if (to != null && !"sys".equals(to)) {
+                        if (!allow(typeOf(to), null)) {
+                            return;
+                        }
+                        // Not meant for the server, so we need the entire message after all
+                        in.rewind();
+                        route((JSONObject) in.readValue(), received);
+                        return;
+                    }
+                } else if ("id".equals(name)) {
+                    returnId = readString(in);
+                } else if ("object".equals(name)) {
+                    obj = readString(in);
+                } else if ("method".equals(name)) {
+                    method = readString(in);
+                } else if ("fields".equals(name)) {
+                    fields = readFields(in);
+                } else if ("timeout".equals(name)) {
+                    timeout = in.nextLong();
+                } else if ("deadline".equals(name)) {
+                    deadline = in.nextLong();
+                } else if ("interval".equals(name)) {
+                    interval = in.nextLong();
+                } else if ("params".equals(name)) {
+                    if (obj != null && method != null) {
+                        // Calls over the limit are dropped before their
+                        // parameters get bound, which is the expensive part
+                        if (!allow(RwsRateLimit.Type.CALL, returnId)) {
+                            return;
+                        }
+                        admitted = true;
+                        args = context.getRegistry().readArguments(obj, method, in);
+                    } else {
+                        // We don't know the target method yet, come back later
+                        in.skipValue();
+                        deferred = true;
+                    }
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (!admitted && !allow(RwsRateLimit.Type.CALL, returnId)) {
+                return;
+            }
+            if (deferred && obj != null && method != null) {
+                in.rewind();
+                in.beginObject();
+                while (in.hasNext()) {
+                    if ("params".equals(in.nextName())) {
+                        args = context.getRegistry().readArguments(obj, method, in);
+                        break;
+                    } else {
+                        in.skipValue();
+                    }
+                }
+            }
+        } catch (RwsException ex) {
+            log.error("Could not read message", ex);
+            if (returnId != null) {
+                send("sys", newCallException(returnId, ex));
+            }
+            return;
+        }
+        if (interval != null) {
+            doPoll(returnId, obj, method, args, fields, interval, true);
+        } else {
+            doCall(returnId, obj, method, args, fields, toDeadline(timeout, deadline, received), true);
+        }
+    }
+
+    // Checks the size and the overall rate limit of an incoming message
+    private boolean accept(int size) {
+        int max = context.getMaxMessageSize();
+        if (max > 0 && size > max) {
+            log.warn("Dropping message of {} bytes from session {}, too large", size, id);
+            context.getStatistics().addOversized();
+            return false;
+        }
+        return allow(RwsRateLimit.Type.ANY, null);
+    }
+
+    private static RwsRateLimit.Type typeOf(String to) {
+        if (to == null || "sys".equals(to)) {
+            return RwsRateLimit.Type.CALL;
+        } else if ("all".equals(to)) {
+            return RwsRateLimit.Type.BROADCAST;
+        } else if (to.startsWith("#")) {
+            return RwsRateLimit.Type.GROUP;
+        } else {
+            return RwsRateLimit.Type.DIRECT;
+        }
+    }
+
+    // Takes a token from the session's bucket for the given type of message,
+    // if there is none left the message is rejected and if it was a call
+    // the caller gets an error
+    private boolean allow(RwsRateLimit.Type type, String returnId) {
+        RwsRateLimit limit = context.getRateLimit(type);
+        if (limit == null) {
+            return true;
+        }
+        RwsRateLimit.Bucket bucket;
+        synchronized (buckets) {
+            bucket = buckets[type.ordinal()];
+            if (bucket == null || bucket.getLimit() != limit) {
+                bucket = limit.newBucket();
+                buckets[type.ordinal()] = bucket;
+            }
+        }
+        if (bucket.tryAcquire()) {
+            return true;
+        }
+        log.debug("Rate limit exceeded for {} messages from session {}", type, id);
+        context.getStatistics().addRateLimited(type);
+        if (returnId != null) {
+            try {
+                send("sys", newCallException(returnId, new RwsException("Rate limit exceeded")));
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+        return false;
+    }
+
+    private RwsProjection readFields(RwsReader in) throws RwsException {
+        if (in.peek() == RwsReader.Token.BEGIN_ARRAY) {
+            StringBuilder spec = new StringBuilder();
+            in.beginArray();
+            while (in.hasNext()) {
+                if (spec.length() > 0) {
+                    spec.append(',');
+                }
+                spec.append(in.nextString());
+            }
+            in.endArray();
+            return RwsProjection.compile(spec.toString());
+        } else {
+            return RwsProjection.compile(readString(in));
+        }
+    }
+
+    private String readString(RwsReader in) throws RwsException {
+        if (in.peek() == RwsReader.Token.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private void doCall(JSONObject info, long received) throws IOException {
         String returnId = (String) info.get("id"); // If null the caller is not interested in the result!
         String obj = (String) info.get("object");
         String method = (String) info.get("method");
         Object params = (Object) info.get("params");
+        RwsProjection fields;
+        try {
+            fields = toFields(info.get("fields"));
+        } catch (RwsException ex) {
+            log.error("Could not read message", ex);
+            if (returnId != null) {
+                send("sys", newCallException(returnId, ex));
+            }
+            return;
+        }
+        Number interval = (Number) info.get("interval");
+        if (interval != null) {
+            doPoll(returnId, obj, method, toArguments(params), fields, interval.longValue(), false);
+        } else {
+            Long deadline = toDeadline((Number) info.get("timeout"), (Number) info.get("deadline"), received);
+            doCall(returnId, obj, method, toArguments(params), fields, deadline, false);
+        }
+    }
+
+    // Turns the timeout (in milliseconds after the message was received) or
+    // the deadline (in milliseconds since the epoch) into a System.nanoTime()
+    // value, returns null if neither was given
+    private static Long toDeadline(Number timeout, Number deadline, long received) {
+        if (timeout != null) {
+            long millis = Math.max(0, Math.min(timeout.longValue(), MAX_CALL_WAIT));
+            return received + millis * 1000000L;
+        } else if (deadline != null) {
+            long now = System.currentTimeMillis();
+            long at = deadline.longValue();
+            // Limited to a day either way so the nanoseconds can't overflow
+            long millis = (at < now - MAX_CALL_WAIT) ? -MAX_CALL_WAIT : Math.min(at - now, MAX_CALL_WAIT);
+            return received + millis * 1000000L;
+        } else {
+            return null;
+        }
+    }
 
+    private RwsProjection toFields(Object fields) throws RwsException {
+        if (fields instanceof JSONArray) {
+            StringBuilder spec = new StringBuilder();
+            for (Object field : (JSONArray) fields) {
+                if (spec.length() > 0) {
+                    spec.append(',');
+                }
+                spec.append(field);
+            }
+            return RwsProjection.compile(spec.toString());
+        } else {
+            return RwsProjection.compile((fields != null) ? fields.toString() : null);
+        }
+    }
+
+    private Object[] toArguments(Object params) {
         Object[] args = null;
         // Convert parameter map to array
         if (params != null && params instanceof JSONArray) {
@@ -252,11 +1541,30 @@ public class RwsSession {
                 args[i] = p.get(i);
             }
         }
+        return args;
+    }
 
+    // If bound is true the arguments already have the correct types
+    private void doCall(String returnId, String obj, String method, Object[] args, RwsProjection fields, Long deadline, boolean bound) throws IOException {
+        if (deadline != null && deadline - System.nanoTime() <= 0) {
+            // The caller has given up already, don't waste any more time on it
+            log.debug("Dropping expired call to {}.{}", obj, method);
+            context.getStatistics().addExpiredCall();
+            if (returnId != null) {
+                send("sys", newCallExpired(returnId));
+            }
+            return;
+        }
+        callDeadline.set(deadline);
         try {
-            Object result = context.getRegistry().call(this, obj, method, args);
+            Object result;
+            if (bound) {
+                result = context.getRegistry().invokeDirect(this, obj, method, args);
+            } else {
+                result = context.getRegistry().invoke(this, obj, method, args);
+            }
             if (returnId != null) {
-                send("sys", newCallResult(returnId, result));
+                sendCallResult(returnId, result, fields);
             }
         } catch (InvocationTargetException ex) {
             log.error("Remote object returned an error", ex);
@@ -268,23 +1576,152 @@ public class RwsSession {
             if (returnId != null) {
                 send("sys", newCallException(returnId, th));
             }
+        } finally {
+            callDeadline.set(null);
+        }
+    }
+
+    private void sendCallResult(String returnId, Object data, RwsProjection fields) throws IOException, RwsException {
+        sendData(returnId, "result", data, fields, RwsLane.CONTROL);
+    }
+
+    // Has the call repeated every interval, sharing it with all other
+    // sessions that make the same call
+    private void doPoll(String returnId, String obj, String method, Object[] args, RwsProjection fields, long interval, boolean bound) throws IOException {
+        if (returnId == null) {
+            log.warn("Ignoring periodic call to {}.{} without an id", obj, method);
+            return;
+        }
+        try {
+            interval = Math.max(interval, context.getMinPollInterval());
+            context.getPeriodicCalls().subscribe(this, returnId, obj, method, args, bound, fields, interval);
+        } catch (Throwable th) {
+            log.error("Could not start periodic call", th);
+            send("sys", newCallException(returnId, th));
         }
     }
 
-    private JSONObject newCallResult(String returnId, Object data) {
+    /**
+     * Stops sending the results of the periodic call with the given id to
+     * this session. Returns false if there was no such call.
+     */
+    public boolean cancelPoll(String id) {
+        return context.getPeriodicCalls().unsubscribe(this, id);
+    }
+
+    /**
+     * Starts sending the changes to the members of the given group, or of
+     * all sessions if the group is <code>null</code>, as events with the
+     * given id. Changes are sent in batches with version numbers so the
+     * client can keep its own copy of the member list up to date, see
+     * <code>RwsPresence</code>. A client that has no copy yet passes 0 as
+     * the version and first gets a snapshot, a client that missed changes
+     * passes the version it has and only gets what it missed, or a new
+     * snapshot if that's no longer known. Watching again with the same id
+     * replaces the earlier watch.
+     */
+    public void watchPresence(String id, String group, long version) {
+        context.getPresence().watch(this, id, group, version);
+    }
+
+    /**
+     * Stops sending the presence changes with the given id to this session.
+     * Returns false if there was no such watch.
+     */
+    public boolean unwatchPresence(String id) {
+        return context.getPresence().unwatch(this, id);
+    }
+
+    // Sends a batch of presence changes, encoded only once for all sessions
+    // using the same wire format. Presence changes go on the low priority
+    // lane so they don't hold up call results or application events.
+    void sendPresence(String id, RwsPresence.Batch batch) throws IOException, RwsException {
+        if (context.getRegistry().isSchemaEncoding()) {
+            sendData(id, "event", batch.getData(), null, RwsLane.LOW);
+            return;
+        }
+        RwsCodec c = codec;
+        ByteBuffer data = batch.encode(c, context.getRegistry());
+        RwsWriter out = c.acquireWriter();
+        try {
+            out.beginObject();
+            out.name("id");
+            out.value(id);
+            out.name("event");
+            out.rawValue(data);
+            out.name("from");
+            out.value("sys");
+            out.endObject();
+            sendEncoded(out.toByteBuffer(), c, RwsLane.LOW);
+        } finally {
+            out.release();
+        }
+    }
+
+    // Sends the latest result of a periodic call, the result itself was
+    // encoded only once for all sessions using the same wire format
+    void sendPolled(String returnId, RwsPeriodicCalls.PeriodicCall call) throws IOException, RwsException {
+        Throwable error = call.getError();
+        if (error != null) {
+            send("sys", newCallException(returnId, error));
+            return;
+        }
+        if (context.getRegistry().isSchemaEncoding()) {
+            // Schemas are defined per session so the result can't be shared
+            sendCallResult(returnId, call.getResult(), call.getFields());
+            return;
+        }
+        RwsCodec c = codec;
+        ByteBuffer result = call.encode(c);
+        RwsWriter out = c.acquireWriter();
+        try {
+            out.beginObject();
+            out.name("id");
+            out.value(returnId);
+            out.name("result");
+            out.rawValue(result);
+            out.name("from");
+            out.value("sys");
+            out.endObject();
+            sendEncoded(out.toByteBuffer(), c);
+        } finally {
+            out.release();
+        }
+    }
+
+    private JSONObject newCallException(String returnId, Throwable th) {
         JSONObject obj = new JSONObject();
         obj.put("id", returnId);
-        obj.put("result", data);
+        obj.put("exception", th.toString());
         return obj;
     }
 
-    private JSONObject newCallException(String returnId, Throwable th) {
+    // A call that expired is reported like an exception, but marked so the
+    // client can tell the difference
+    private JSONObject newCallExpired(String returnId) {
         JSONObject obj = new JSONObject();
         obj.put("id", returnId);
-        obj.put("exception", th.toString());
+        obj.put("exception", "Call expired before it could be handled");
+        obj.put("expired", Boolean.TRUE);
         return obj;
     }
 
+    /**
+     * Returns the time in milliseconds the method that's currently being
+     * called on behalf of a client has left before the client gives up, or
+     * <code>Long.MAX_VALUE</code> if the client didn't pass a
+     * <code>timeout</code> or <code>deadline</code>. Long running methods
+     * can use this to give up early or to limit the time spent waiting on
+     * other services.
+     */
+    public static long getRemainingTime() {
+        Long deadline = callDeadline.get();
+        if (deadline == null) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, (deadline - System.nanoTime()) / 1000000L);
+    }
+
     public static RwsSession getInstance() {
         return session.get();
     }
@@ -0,0 +1,158 @@
+package org.codejive.rws;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters that can be used to monitor and tune a context. All counters
+ * are cumulative since the context was created or since the last call to
+ * <code>reset()</code>.
+ *
+ * @author tako
+ */
+public class RwsStatistics {
+    private final AtomicLong compressedMessages = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLongArray rateLimited = new AtomicLongArray(RwsRateLimit.Type.values().length);
+    private final AtomicLong oversized = new AtomicLong();
+    private final AtomicLong expiredCalls = new AtomicLong();
+    private final AtomicLong filteredEvents = new AtomicLong();
+
+    void addCompression(int before, int after, long nanos) {
+        compressedMessages.incrementAndGet();
+        uncompressedBytes.addAndGet(before);
+        compressedBytes.addAndGet(after);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * The number of messages that were compressed
+     */
+    public long getCompressedMessages() {
+        return compressedMessages.get();
+    }
+
+    /**
+     * The total size of the compressed messages before compression
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * The total size of the compressed messages after compression
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * The total time spent compressing messages in nanoseconds
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    /**
+     * The compressed size divided by the uncompressed size, so lower is
+     * better. Returns 1 if nothing was compressed yet.
+     */
+    public double getCompressionRatio() {
+        long before = uncompressedBytes.get();
+        return (before > 0) ? (double) compressedBytes.get() / before : 1.0;
+    }
+
+    /**
+     * The average time spent compressing a single message in microseconds
+     */
+    public double getAverageCompressionMicros() {
+        long count = compressedMessages.get();
+        return (count > 0) ? compressionNanos.get() / 1000.0 / count : 0.0;
+    }
+
+    void addRateLimited(RwsRateLimit.Type type) {
+        rateLimited.incrementAndGet(type.ordinal());
+    }
+
+    void addOversized() {
+        oversized.incrementAndGet();
+    }
+
+    /**
+     * The number of incoming messages that were rejected because they
+     * exceeded the rate limit for the given type of message
+     */
+    public long getRateLimitedMessages(RwsRateLimit.Type type) {
+        return rateLimited.get(type.ordinal());
+    }
+
+    /**
+     * The total number of incoming messages that were rejected because they
+     * exceeded a rate limit
+     */
+    public long getRateLimitedMessages() {
+        long result = 0;
+        for (int i = 0; i < rateLimited.length(); i++) {
+            result += rateLimited.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * The number of incoming messages that were rejected because they were
+     * larger than the maximum message size
+     */
+    public long getOversizedMessages() {
+        return oversized.get();
+    }
+
+    void addExpiredCall() {
+        expiredCalls.incrementAndGet();
+    }
+
+    /**
+     * The number of calls that were dropped because their deadline had
+     * already passed by the time they could be handled
+     */
+    public long getExpiredCalls() {
+        return expiredCalls.get();
+    }
+
+    void addFilteredEvent() {
+        filteredEvents.incrementAndGet();
+    }
+
+    /**
+     * The number of events that weren't sent to a subscriber because they
+     * didn't pass its filter
+     */
+    public long getFilteredEvents() {
+        return filteredEvents.get();
+    }
+
+    public void reset() {
+        compressedMessages.set(0);
+        uncompressedBytes.set(0);
+        compressedBytes.set(0);
+        compressionNanos.set(0);
+        for (int i = 0; i < rateLimited.length(); i++) {
+            rateLimited.set(i, 0);
+        }
+        oversized.set(0);
+        expiredCalls.set(0);
+        filteredEvents.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "RwsStatistics[compressed=" + getCompressedMessages()
+                + ", ratio=" + getCompressionRatio()
+                + ", avgMicros=" + getAverageCompressionMicros()
+                + ", rateLimited=" + getRateLimitedMessages()
+                + ", oversized=" + getOversizedMessages()
+                + ", expired=" + getExpiredCalls()
+                + ", filtered=" + getFilteredEvents() + "]";
+    }
+}
@@ -0,0 +1,25 @@
+package org.codejive.rws;
+
+/**
+ * Converters implementing this interface can write their values directly to
+ * an <code>RwsWriter</code> and read them from an <code>RwsReader</code> instead
+ * of going through an intermediate JSON tree.
+ *
+ * @author tako
+ */
+public interface RwsStreamingConverter<T> extends RwsConverter<T> {
+
+    /**
+     * Writes the properties of the given value as name/value pairs. The
+     * surrounding object and its <code>$class</code> marker are written by
+     * the caller.
+     */
+    void writeProperties(RwsObject obj, T value, RwsWriter out) throws RwsException;
+
+    /**
+     * Creates a new value and reads its properties from the name/value pairs
+     * that remain in the current object. The surrounding object is read by
+     * the caller.
+     */
+    T readProperties(RwsObject obj, RwsReader in) throws RwsException;
+}
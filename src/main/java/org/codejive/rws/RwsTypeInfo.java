@@ -0,0 +1,239 @@
+package org.codejive.rws;
+
+import java.beans.BeanInfo;
+import java.beans.EventSetDescriptor;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.MethodDescriptor;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The methods, properties and events of a type. Normally this information
+ * is obtained using the <code>Introspector</code>, which is slow, so it can
+ * also be generated at build time (see <code>RwsGenerator</code>) and
+ * stored as <code>META-INF/rws/&lt;class name&gt;.properties</code> next to
+ * the class. At runtime the stored information is used if it exists,
+ * falling back to introspection if it doesn't or if it's out of date.
+ *
+ * @author tako
+ */
+public class RwsTypeInfo {
+    private final MethodDescriptor[] methods;
+    private final PropertyDescriptor[] properties;
+    private final EventSetDescriptor[] events;
+
+    public static final String METADATA_PATH = "META-INF/rws/";
+
+    private static final Map<String, Class> primitives = new HashMap<String, Class>();
+
+    private static final Logger log = LoggerFactory.getLogger(RwsTypeInfo.class);
+
+    static {
+        primitives.put("boolean", Boolean.TYPE);
+        primitives.put("byte", Byte.TYPE);
+        primitives.put("char", Character.TYPE);
+        primitives.put("short", Short.TYPE);
+        primitives.put("int", Integer.TYPE);
+        primitives.put("long", Long.TYPE);
+        primitives.put("float", Float.TYPE);
+        primitives.put("double", Double.TYPE);
+        primitives.put("void", Void.TYPE);
+    }
+
+    private RwsTypeInfo(MethodDescriptor[] methods, PropertyDescriptor[] properties, EventSetDescriptor[] events) {
+        this.methods = methods;
+        this.properties = properties;
+        this.events = events;
+    }
+
+    public MethodDescriptor[] getMethodDescriptors() {
+        return methods;
+    }
+
+    public PropertyDescriptor[] getPropertyDescriptors() {
+        return properties;
+    }
+
+    public EventSetDescriptor[] getEventSetDescriptors() {
+        return events;
+    }
+
+    /**
+     * Returns the information for the given type, from the stored metadata
+     * if possible or by introspection otherwise
+     */
+    public static RwsTypeInfo get(Class type) throws RwsException {
+        RwsTypeInfo result = null;
+        ClassLoader loader = type.getClassLoader();
+        InputStream in = (loader != null) ? loader.getResourceAsStream(METADATA_PATH + type.getName() + ".properties") : null;
+        if (in != null) {
+            try {
+                Properties props = new Properties();
+                props.load(in);
+                result = load(type, props);
+                log.debug("Loaded stored type information for {}", type.getName());
+            } catch (Exception ex) {
+                log.warn("Stored type information for " + type.getName() + " is invalid or out of date, using introspection", ex);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        }
+        if (result == null) {
+            result = introspect(type);
+        }
+        return result;
+    }
+
+    public static RwsTypeInfo introspect(Class type) throws RwsException {
+        try {
+            BeanInfo info = Introspector.getBeanInfo(type);
+            return new RwsTypeInfo(info.getMethodDescriptors(), info.getPropertyDescriptors(), info.getEventSetDescriptors());
+        } catch (IntrospectionException ex) {
+            throw new RwsException("Could not get necessary information about target object", ex);
+        }
+    }
+
+    /**
+     * Stores the information in the format expected by <code>get()</code>
+     */
+    public void store(OutputStream out, String comments) throws IOException {
+        Properties props = new Properties();
+        StringBuilder buf = new StringBuilder();
+        for (MethodDescriptor md : methods) {
+            append(buf, signature(md.getMethod()));
+        }
+        props.setProperty("methods", buf.toString());
+
+        buf.setLength(0);
+        for (PropertyDescriptor pd : properties) {
+            if (pd.getPropertyType() != null) {
+                append(buf, pd.getName() + " " + pd.getPropertyType().getName()
+                        + " " + signature(pd.getReadMethod())
+                        + " " + signature(pd.getWriteMethod()));
+            }
+        }
+        props.setProperty("properties", buf.toString());
+
+        buf.setLength(0);
+        for (EventSetDescriptor es : events) {
+            StringBuilder lms = new StringBuilder();
+            for (Method m : es.getListenerMethods()) {
+                if (lms.length() > 0) {
+                    lms.append('|');
+                }
+                lms.append(signature(m));
+            }
+            append(buf, es.getName() + " " + es.getListenerType().getName()
+                    + " " + signature(es.getAddListenerMethod())
+                    + " " + signature(es.getRemoveListenerMethod())
+                    + " " + lms);
+        }
+        props.setProperty("events", buf.toString());
+
+        props.store(out, comments);
+    }
+
+    private static void append(StringBuilder buf, String entry) {
+        if (buf.length() > 0) {
+            buf.append(';');
+        }
+        buf.append(entry);
+    }
+
+    // Returns "name(type1,type2)" or "-" if the method is null
+    private static String signature(Method m) {
+        if (m == null) {
+            return "-";
+        }
+        StringBuilder result = new StringBuilder(m.getName());
+        result.append('(');
+        Class[] types = m.getParameterTypes();
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(types[i].getName());
+        }
+        result.append(')');
+        return result.toString();
+    }
+
+    private static RwsTypeInfo load(Class type, Properties props) throws Exception {
+        ClassLoader loader = type.getClassLoader();
+
+        List<MethodDescriptor> methods = new ArrayList<MethodDescriptor>();
+        for (String sig : entries(props, "methods")) {
+            methods.add(new MethodDescriptor(method(type, sig, loader)));
+        }
+
+        List<PropertyDescriptor> properties = new ArrayList<PropertyDescriptor>();
+        for (String entry : entries(props, "properties")) {
+            String[] parts = entry.split(" ");
+            properties.add(new PropertyDescriptor(parts[0], method(type, parts[2], loader), method(type, parts[3], loader)));
+        }
+
+        List<EventSetDescriptor> events = new ArrayList<EventSetDescriptor>();
+        for (String entry : entries(props, "events")) {
+            String[] parts = entry.split(" ");
+            Class listenerType = type(parts[1], loader);
+            String[] sigs = parts[4].split("\\|");
+            Method[] listenerMethods = new Method[sigs.length];
+            for (int i = 0; i < sigs.length; i++) {
+                listenerMethods[i] = method(listenerType, sigs[i], loader);
+            }
+            events.add(new EventSetDescriptor(parts[0], listenerType, listenerMethods, method(type, parts[2], loader), method(type, parts[3], loader)));
+        }
+
+        return new RwsTypeInfo(methods.toArray(new MethodDescriptor[methods.size()]),
+                properties.toArray(new PropertyDescriptor[properties.size()]),
+                events.toArray(new EventSetDescriptor[events.size()]));
+    }
+
+    private static String[] entries(Properties props, String name) {
+        String value = props.getProperty(name, "");
+        return (value.length() > 0) ? value.split(";") : new String[0];
+    }
+
+    private static Method method(Class type, String sig, ClassLoader loader) throws ClassNotFoundException, NoSuchMethodException {
+        if ("-".equals(sig)) {
+            return null;
+        }
+        int p = sig.indexOf('(');
+        String name = sig.substring(0, p);
+        String params = sig.substring(p + 1, sig.length() - 1);
+        Class[] types;
+        if (params.length() > 0) {
+            String[] names = params.split(",");
+            types = new Class[names.length];
+            for (int i = 0; i < names.length; i++) {
+                types[i] = type(names[i], loader);
+            }
+        } else {
+            types = new Class[0];
+        }
+        return type.getMethod(name, types);
+    }
+
+    private static Class type(String name, ClassLoader loader) throws ClassNotFoundException {
+        Class result = primitives.get(name);
+        if (result == null) {
+            result = Class.forName(name, false, loader);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,80 @@
+package org.codejive.rws;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming encoder that writes values token by token straight into an
+ * internal, reusable byte buffer. Writers are meant to be obtained from a
+ * pool, filled with exactly one message, handed to the socket and then
+ * released again so that no intermediate object trees or strings are created.
+ *
+ * @author tako
+ */
+public interface RwsWriter {
+
+    void beginObject();
+
+    void endObject();
+
+    void beginArray();
+
+    void endArray();
+
+    void name(String name);
+
+    void value(String value);
+
+    void value(long value);
+
+    void value(double value);
+
+    void value(boolean value);
+
+    void value(Number value);
+
+    void nullValue();
+
+    /**
+     * Writes an array of numbers without boxing them. Binary formats can
+     * use a compact typed array representation for these.
+     */
+    void value(double[] values);
+
+    void value(float[] values);
+
+    void value(long[] values);
+
+    void value(int[] values);
+
+    void value(short[] values);
+
+    void value(byte[] values);
+
+    /**
+     * Writes a single complete value that was already encoded by a writer
+     * of the same codec, so values sent to many clients only have to be
+     * encoded once
+     */
+    void rawValue(ByteBuffer encoded);
+
+    /**
+     * Returns the number of bytes written so far
+     */
+    int size();
+
+    /**
+     * Returns a view on the encoded message. The view is only valid until
+     * the writer is written to, reset or released.
+     */
+    ByteBuffer toByteBuffer();
+
+    /**
+     * Discards everything written so far
+     */
+    void reset();
+
+    /**
+     * Returns the writer to the pool it was obtained from
+     */
+    void release();
+}
@@ -0,0 +1,34 @@
+package org.codejive.rws.cbor;
+
+import java.nio.ByteBuffer;
+import org.codejive.rws.RwsCodec;
+import org.codejive.rws.RwsReader;
+import org.codejive.rws.RwsWriter;
+
+/**
+ * Binary wire format using CBOR (RFC 7049)
+ *
+ * @author tako
+ */
+public class CborCodec implements RwsCodec {
+
+    @Override
+    public String getName() {
+        return "cbor";
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    public RwsWriter acquireWriter() {
+        return CborWriter.acquire();
+    }
+
+    @Override
+    public RwsReader newReader(ByteBuffer msg) {
+        return new CborReader(msg);
+    }
+}
@@ -0,0 +1,548 @@
+package org.codejive.rws.cbor;
+
+import java.nio.ByteBuffer;
+import org.codejive.rws.RwsException;
+import org.codejive.rws.RwsReader;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import static org.codejive.rws.cbor.CborWriter.*;
+
+/**
+ * <code>RwsReader</code> that reads CBOR in place from a
+ * <code>ByteBuffer</code>. Map keys are returned as names, typed arrays
+ * (RFC 8746) are returned as arrays of numbers, other tags are skipped and
+ * byte strings are returned as (ISO-8859-1) strings.
+ *
+ * @author tako
+ */
+public class CborReader implements RwsReader {
+    private final ByteBuffer buf;
+    private final int start;
+    private final int limit;
+    private int pos;
+
+    // For each nesting level: MAJOR_ARRAY, MAJOR_MAP, MAJOR_TAG for typed
+    // arrays or -1 for the top level, the total number of items (-1 if
+    // indefinite) and the items read so far
+    private int[] kinds;
+    private long[] totals;
+    private long[] counts;
+    private int depth;
+
+    // The last tag that was skipped for the current item, -1 if none
+    private int tag;
+    // The tag and start of the data of the typed array being read
+    private int typedTag;
+    private int typedStart;
+
+    private final StringBuilder scratch = new StringBuilder();
+
+    public CborReader(ByteBuffer buf) {
+        this.buf = buf;
+        this.start = buf.position();
+        this.limit = buf.limit();
+        rewind();
+    }
+
+    @Override
+    public final void rewind() {
+        pos = start;
+        kinds = new int[16];
+        totals = new long[16];
+        counts = new long[16];
+        kinds[0] = -1;
+        totals[0] = 1;
+        counts[0] = 0;
+        depth = 1;
+        tag = -1;
+    }
+
+    @Override
+    public Token peek() throws RwsException {
+        int top = depth - 1;
+        if (atEnd(top)) {
+            if (kinds[top] == MAJOR_MAP) {
+                return Token.END_OBJECT;
+            } else if (kinds[top] == MAJOR_ARRAY || kinds[top] == MAJOR_TAG) {
+                return Token.END_ARRAY;
+            } else {
+                return Token.END;
+            }
+        }
+        if (kinds[top] == MAJOR_TAG) {
+            return Token.NUMBER;
+        }
+        skipTags();
+        if (kinds[top] == MAJOR_MAP && (counts[top] % 2) == 0) {
+            return Token.NAME;
+        }
+        int ib = byteAt(pos);
+        if (typedArraySize(tag) > 0 && (ib >> 5) == MAJOR_BYTES) {
+            return Token.BEGIN_ARRAY;
+        }
+        switch (ib >> 5) {
+            case MAJOR_UNSIGNED:
+            case MAJOR_NEGATIVE:
+                return Token.NUMBER;
+            case MAJOR_BYTES:
+            case MAJOR_TEXT:
+                return Token.STRING;
+            case MAJOR_ARRAY:
+                return Token.BEGIN_ARRAY;
+            case MAJOR_MAP:
+                return Token.BEGIN_OBJECT;
+            default:
+                if (ib == FALSE || ib == TRUE) {
+                    return Token.BOOLEAN;
+                } else if (ib == NULL || ib == UNDEFINED) {
+                    return Token.NULL;
+                } else if (ib == HALF || ib == FLOAT || ib == DOUBLE) {
+                    return Token.NUMBER;
+                }
+                throw syntaxError("Unsupported simple value " + ib);
+        }
+    }
+
+    @Override
+    public void beginObject() throws RwsException {
+        beginContainer(MAJOR_MAP, Token.BEGIN_OBJECT);
+    }
+
+    @Override
+    public void endObject() throws RwsException {
+        endContainer(Token.END_OBJECT);
+    }
+
+    @Override
+    public void beginArray() throws RwsException {
+        beginContainer(MAJOR_ARRAY, Token.BEGIN_ARRAY);
+    }
+
+    @Override
+    public void endArray() throws RwsException {
+        endContainer(Token.END_ARRAY);
+    }
+
+    @Override
+    public boolean hasNext() throws RwsException {
+        Token t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END;
+    }
+
+    @Override
+    public String nextName() throws RwsException {
+        expect(Token.NAME);
+        int major = byteAt(pos) >> 5;
+        if (major == MAJOR_TEXT || major == MAJOR_BYTES) {
+            return readString();
+        } else {
+            // Non-string keys get converted to strings
+            Object key = readItem();
+            return String.valueOf(key);
+        }
+    }
+
+    @Override
+    public String nextString() throws RwsException {
+        Token t = peek();
+        if (t == Token.STRING) {
+            return readString();
+        } else if (t == Token.NUMBER || t == Token.BOOLEAN) {
+            return String.valueOf(readItem());
+        }
+        throw unexpected("a string", t);
+    }
+
+    @Override
+    public long nextLong() throws RwsException {
+        Token t = peek();
+        if (t == Token.NUMBER) {
+            Object val = readItem();
+            if (val instanceof Long) {
+                return ((Long) val).longValue();
+            }
+            double d = ((Double) val).doubleValue();
+            if (d != (long) d) {
+                throw new RwsException("Expected an integer but got " + d);
+            }
+            return (long) d;
+        } else if (t == Token.STRING) {
+            String txt = readString();
+            try {
+                return Long.parseLong(txt);
+            } catch (NumberFormatException ex) {
+                throw new RwsException("Expected a number but got '" + txt + "'", ex);
+            }
+        }
+        throw unexpected("a number", t);
+    }
+
+    @Override
+    public double nextDouble() throws RwsException {
+        Token t = peek();
+        if (t == Token.NUMBER) {
+            return ((Number) readItem()).doubleValue();
+        } else if (t == Token.STRING) {
+            String txt = readString();
+            try {
+                return Double.parseDouble(txt);
+            } catch (NumberFormatException ex) {
+                throw new RwsException("Expected a number but got '" + txt + "'", ex);
+            }
+        }
+        throw unexpected("a number", t);
+    }
+
+    @Override
+    public boolean nextBoolean() throws RwsException {
+        Token t = peek();
+        if (t == Token.BOOLEAN) {
+            return ((Boolean) readItem()).booleanValue();
+        } else if (t == Token.STRING) {
+            return Boolean.parseBoolean(readString());
+        }
+        throw unexpected("a boolean", t);
+    }
+
+    @Override
+    public void nextNull() throws RwsException {
+        expect(Token.NULL);
+        readItem();
+    }
+
+    @Override
+    public void skipValue() throws RwsException {
+        Token t = peek();
+        if (t == Token.BEGIN_OBJECT || t == Token.BEGIN_ARRAY) {
+            int d = depth;
+            if (t == Token.BEGIN_OBJECT) {
+                beginObject();
+            } else {
+                beginArray();
+            }
+            while (depth > d) {
+                Token n = peek();
+                if (n == Token.END_OBJECT) {
+                    endObject();
+                } else if (n == Token.END_ARRAY) {
+                    endArray();
+                } else if (n == Token.BEGIN_OBJECT) {
+                    beginObject();
+                } else if (n == Token.BEGIN_ARRAY) {
+                    beginArray();
+                } else {
+                    readItem();
+                }
+            }
+        } else {
+            readItem();
+        }
+    }
+
+    @Override
+    public Object readValue() throws RwsException {
+        Token t = peek();
+        switch (t) {
+            case BEGIN_OBJECT:
+                JSONObject obj = new JSONObject();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    obj.put(name, readValue());
+                }
+                endObject();
+                return obj;
+            case BEGIN_ARRAY:
+                JSONArray arr = new JSONArray();
+                beginArray();
+                while (hasNext()) {
+                    arr.add(readValue());
+                }
+                endArray();
+                return arr;
+            case STRING:
+            case NUMBER:
+            case BOOLEAN:
+            case NULL:
+                return readItem();
+            default:
+                throw unexpected("a value", t);
+        }
+    }
+
+    // Reads a single scalar item (or name), returning it as a String, Long,
+    // Double, Boolean or null
+    private Object readItem() throws RwsException {
+        if (kinds[depth - 1] == MAJOR_TAG) {
+            return readTypedItem();
+        }
+        skipTags();
+        int ib = byteAt(pos);
+        int major = ib >> 5;
+        Object result;
+        switch (major) {
+            case MAJOR_UNSIGNED:
+            case MAJOR_NEGATIVE:
+                pos++;
+                long arg = readArgument(ib & 0x1f);
+                result = Long.valueOf((major == MAJOR_UNSIGNED) ? arg : -1 - arg);
+                break;
+            case MAJOR_BYTES:
+            case MAJOR_TEXT:
+                return readString();
+            case MAJOR_SIMPLE:
+                pos++;
+                if (ib == FALSE || ib == TRUE) {
+                    result = Boolean.valueOf(ib == TRUE);
+                } else if (ib == NULL || ib == UNDEFINED) {
+                    result = null;
+                } else if (ib == HALF) {
+                    result = Double.valueOf(halfToDouble(readArgument(25)));
+                } else if (ib == FLOAT) {
+                    result = Double.valueOf(Float.intBitsToFloat((int) readArgument(26)));
+                } else if (ib == DOUBLE) {
+                    result = Double.valueOf(Double.longBitsToDouble(readArgument(27)));
+                } else {
+                    throw syntaxError("Unsupported simple value " + ib);
+                }
+                break;
+            default:
+                throw syntaxError("Expected a simple value");
+        }
+        consumed();
+        return result;
+    }
+
+    private Number readTypedItem() throws RwsException {
+        int size = typedArraySize(typedTag);
+        int p = typedStart + (int) counts[depth - 1] * size;
+        boolean little = (typedTag & 0x04) != 0;
+        long bits = 0;
+        for (int i = 0; i < size; i++) {
+            int b = buf.get(p + i) & 0xff;
+            if (little) {
+                bits |= ((long) b) << (8 * i);
+            } else {
+                bits = (bits << 8) | b;
+            }
+        }
+        Number result;
+        if ((typedTag & 0x10) != 0) {
+            if (size == 2) {
+                result = Double.valueOf(halfToDouble(bits));
+            } else if (size == 4) {
+                result = Double.valueOf(Float.intBitsToFloat((int) bits));
+            } else {
+                result = Double.valueOf(Double.longBitsToDouble(bits));
+            }
+        } else if ((typedTag & 0x08) != 0 && size < 8) {
+            // Sign extend
+            int shift = 64 - 8 * size;
+            result = Long.valueOf((bits << shift) >> shift);
+        } else {
+            result = Long.valueOf(bits);
+        }
+        consumed();
+        return result;
+    }
+
+    // Returns the element size for typed array tags, 0 for any other tag
+    private static int typedArraySize(int tag) {
+        if (tag < 64 || tag > 87 || tag == 76) {
+            return 0;
+        }
+        int ll = tag & 0x03;
+        if ((tag & 0x10) == 0) {
+            return 1 << ll;
+        } else if (ll < 3) {
+            return 2 << ll;
+        } else {
+            // 128 bit floats aren't supported
+            return 0;
+        }
+    }
+
+    private String readString() throws RwsException {
+        int ib = byteAt(pos++);
+        int major = ib >> 5;
+        scratch.setLength(0);
+        if ((ib & 0x1f) == INDEFINITE) {
+            // Concatenation of definite length chunks
+            while (byteAt(pos) != BREAK) {
+                int cb = byteAt(pos++);
+                readChunk(major, readArgument(cb & 0x1f));
+            }
+            pos++;
+        } else {
+            readChunk(major, readArgument(ib & 0x1f));
+        }
+        consumed();
+        return scratch.toString();
+    }
+
+    private void readChunk(int major, long len) throws RwsException {
+        if (len < 0 || pos + len > limit) {
+            throw syntaxError("Invalid string length");
+        }
+        int end = pos + (int) len;
+        while (pos < end) {
+            int c = byteAt(pos++);
+            if (c < 0x80 || major == MAJOR_BYTES) {
+                scratch.append((char) c);
+            } else {
+                int cp;
+                int extra;
+                if ((c & 0xe0) == 0xc0) {
+                    cp = c & 0x1f;
+                    extra = 1;
+                } else if ((c & 0xf0) == 0xe0) {
+                    cp = c & 0x0f;
+                    extra = 2;
+                } else if ((c & 0xf8) == 0xf0) {
+                    cp = c & 0x07;
+                    extra = 3;
+                } else {
+                    throw syntaxError("Invalid UTF-8 sequence");
+                }
+                if (pos + extra > end) {
+                    throw syntaxError("Invalid UTF-8 sequence");
+                }
+                for (int i = 0; i < extra; i++) {
+                    cp = (cp << 6) | (byteAt(pos++) & 0x3f);
+                }
+                scratch.appendCodePoint(cp);
+            }
+        }
+    }
+
+    private void beginContainer(int major, Token token) throws RwsException {
+        expect(token);
+        int ib = byteAt(pos++);
+        long total = ((ib & 0x1f) == INDEFINITE) ? -1 : readArgument(ib & 0x1f);
+        if (major == MAJOR_MAP && total > 0) {
+            total *= 2;
+        } else if ((ib >> 5) == MAJOR_BYTES) {
+            int size = typedArraySize(tag);
+            if (total < 0 || pos + total > limit) {
+                throw syntaxError("Invalid typed array");
+            }
+            major = MAJOR_TAG;
+            typedTag = tag;
+            typedStart = pos;
+            total /= size;
+        }
+        tag = -1;
+        if (depth > MAX_DEPTH) {
+            throw syntaxError("Nesting too deep");
+        }
+        if (depth == kinds.length) {
+            int n = kinds.length * 2;
+            int[] k = new int[n];
+            long[] t = new long[n];
+            long[] c = new long[n];
+            System.arraycopy(kinds, 0, k, 0, depth);
+            System.arraycopy(totals, 0, t, 0, depth);
+            System.arraycopy(counts, 0, c, 0, depth);
+            kinds = k;
+            totals = t;
+            counts = c;
+        }
+        kinds[depth] = major;
+        totals[depth] = total;
+        counts[depth] = 0;
+        depth++;
+    }
+
+    private void endContainer(Token token) throws RwsException {
+        expect(token);
+        if (kinds[depth - 1] == MAJOR_TAG) {
+            pos = typedStart + (int) totals[depth - 1] * typedArraySize(typedTag);
+        } else if (totals[depth - 1] < 0) {
+            // Skip the break marker
+            pos++;
+        }
+        depth--;
+        consumed();
+    }
+
+    private boolean atEnd(int top) throws RwsException {
+        if (totals[top] >= 0) {
+            return counts[top] >= totals[top];
+        } else {
+            return byteAt(pos) == BREAK;
+        }
+    }
+
+    private void consumed() {
+        counts[depth - 1]++;
+        tag = -1;
+    }
+
+    private void skipTags() throws RwsException {
+        while (pos < limit && (byteAt(pos) >> 5) == MAJOR_TAG) {
+            int ib = byteAt(pos++);
+            long t = readArgument(ib & 0x1f);
+            tag = (t <= Integer.MAX_VALUE) ? (int) t : -1;
+        }
+    }
+
+    private long readArgument(int ai) throws RwsException {
+        if (ai < 24) {
+            return ai;
+        }
+        int len;
+        switch (ai) {
+            case 24: len = 1; break;
+            case 25: len = 2; break;
+            case 26: len = 4; break;
+            case 27: len = 8; break;
+            default: throw syntaxError("Invalid additional information " + ai);
+        }
+        if (pos + len > limit) {
+            throw syntaxError("Unexpected end of message");
+        }
+        long result = 0;
+        for (int i = 0; i < len; i++) {
+            result = (result << 8) | (buf.get(pos++) & 0xff);
+        }
+        return result;
+    }
+
+    private static double halfToDouble(long bits) {
+        int half = (int) bits;
+        int exp = (half >> 10) & 0x1f;
+        int mant = half & 0x3ff;
+        double val;
+        if (exp == 0) {
+            val = mant * Math.pow(2, -24);
+        } else if (exp != 31) {
+            val = (mant + 1024) * Math.pow(2, exp - 25);
+        } else {
+            val = (mant == 0) ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return ((half & 0x8000) != 0) ? -val : val;
+    }
+
+    private int byteAt(int i) throws RwsException {
+        if (i >= limit) {
+            throw syntaxError("Unexpected end of message");
+        }
+        return buf.get(i) & 0xff;
+    }
+
+    private void expect(Token token) throws RwsException {
+        Token t = peek();
+        if (t != token) {
+            throw unexpected(token.toString(), t);
+        }
+    }
+
+    private RwsException unexpected(String what, Token got) {
+        return syntaxError("Expected " + what + " but got " + got);
+    }
+
+    private RwsException syntaxError(String message) {
+        return new RwsException(message + " at position " + (pos - start));
+    }
+}
@@ -0,0 +1,350 @@
+package org.codejive.rws.cbor;
+
+import java.nio.ByteBuffer;
+import org.codejive.rws.RwsWriter;
+
+/**
+ * <code>RwsWriter</code> that encodes CBOR directly into a growable byte
+ * array. Because the writer doesn't know the number of elements up front
+ * objects and arrays are written using indefinite length encoding.
+ * Instances are pooled per thread, use <code>acquire()</code> to get one
+ * and <code>release()</code> to return it.
+ *
+ * @author tako
+ */
+public class CborWriter implements RwsWriter {
+    private byte[] buf;
+    private int size;
+    private ByteBuffer view;
+
+    private boolean inUse;
+
+    private static final int INITIAL_SIZE = 1024;
+    private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_TAG = 6;
+    static final int MAJOR_SIMPLE = 7;
+
+    static final int FALSE = 0xf4;
+    static final int TRUE = 0xf5;
+    static final int NULL = 0xf6;
+    static final int UNDEFINED = 0xf7;
+    static final int HALF = 0xf9;
+    static final int FLOAT = 0xfa;
+    static final int DOUBLE = 0xfb;
+    static final int BREAK = 0xff;
+    static final int INDEFINITE = 31;
+
+    // Typed array tags (RFC 8746), we always write little endian
+    static final int TAG_UINT8 = 64;
+    static final int TAG_SINT8 = 72;
+    static final int TAG_SINT16_LE = 77;
+    static final int TAG_SINT32_LE = 78;
+    static final int TAG_SINT64_LE = 79;
+    static final int TAG_FLOAT32_LE = 85;
+    static final int TAG_FLOAT64_LE = 86;
+
+    private static final ThreadLocal<CborWriter> pool = new ThreadLocal<CborWriter>();
+
+    public CborWriter() {
+        buf = new byte[INITIAL_SIZE];
+    }
+
+    /**
+     * Returns an empty writer from the current thread's pool. If the pooled
+     * writer is still in use a fresh writer is returned instead.
+     */
+    public static CborWriter acquire() {
+        CborWriter writer = pool.get();
+        if (writer == null) {
+            writer = new CborWriter();
+            pool.set(writer);
+        } else if (writer.inUse) {
+            writer = new CborWriter();
+        }
+        writer.inUse = true;
+        return writer;
+    }
+
+    @Override
+    public void release() {
+        reset();
+        if (buf.length > MAX_RETAINED_SIZE) {
+            // Don't hold on to the memory of exceptionally large messages
+            buf = new byte[INITIAL_SIZE];
+            view = null;
+        }
+        inUse = false;
+    }
+
+    @Override
+    public void reset() {
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public ByteBuffer toByteBuffer() {
+        if (view == null || view.array() != buf) {
+            view = ByteBuffer.wrap(buf);
+        }
+        view.clear();
+        view.limit(size);
+        return view;
+    }
+
+    @Override
+    public void beginObject() {
+        put((MAJOR_MAP << 5) | INDEFINITE);
+    }
+
+    @Override
+    public void endObject() {
+        put(BREAK);
+    }
+
+    @Override
+    public void beginArray() {
+        put((MAJOR_ARRAY << 5) | INDEFINITE);
+    }
+
+    @Override
+    public void endArray() {
+        put(BREAK);
+    }
+
+    @Override
+    public void name(String name) {
+        string(name);
+    }
+
+    @Override
+    public void value(String value) {
+        if (value != null) {
+            string(value);
+        } else {
+            nullValue();
+        }
+    }
+
+    @Override
+    public void value(long value) {
+        if (value >= 0) {
+            header(MAJOR_UNSIGNED, value);
+        } else {
+            header(MAJOR_NEGATIVE, -1 - value);
+        }
+    }
+
+    @Override
+    public void value(double value) {
+        if (value == (long) value && Math.abs(value) < 1e15 && !(value == 0.0 && 1 / value < 0)) {
+            value((long) value);
+        } else if ((float) value == value || Double.isNaN(value)) {
+            ensure(5);
+            buf[size++] = (byte) FLOAT;
+            putInt(Float.floatToIntBits((float) value));
+        } else {
+            ensure(9);
+            buf[size++] = (byte) DOUBLE;
+            putLong(Double.doubleToLongBits(value));
+        }
+    }
+
+    @Override
+    public void value(boolean value) {
+        put(value ? TRUE : FALSE);
+    }
+
+    @Override
+    public void value(Number value) {
+        if (value == null) {
+            nullValue();
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            value(value.longValue());
+        } else {
+            value(value.doubleValue());
+        }
+    }
+
+    @Override
+    public void rawValue(ByteBuffer encoded) {
+        int len = encoded.remaining();
+        ensure(len);
+        encoded.duplicate().get(buf, size, len);
+        size += len;
+    }
+
+    @Override
+    public void nullValue() {
+        put(NULL);
+    }
+
+    @Override
+    public void value(double[] values) {
+        typedArray(TAG_FLOAT64_LE, values.length * 8);
+        for (double v : values) {
+            putLongLE(Double.doubleToRawLongBits(v));
+        }
+    }
+
+    @Override
+    public void value(float[] values) {
+        typedArray(TAG_FLOAT32_LE, values.length * 4);
+        for (float v : values) {
+            putIntLE(Float.floatToRawIntBits(v));
+        }
+    }
+
+    @Override
+    public void value(long[] values) {
+        typedArray(TAG_SINT64_LE, values.length * 8);
+        for (long v : values) {
+            putLongLE(v);
+        }
+    }
+
+    @Override
+    public void value(int[] values) {
+        typedArray(TAG_SINT32_LE, values.length * 4);
+        for (int v : values) {
+            putIntLE(v);
+        }
+    }
+
+    @Override
+    public void value(short[] values) {
+        typedArray(TAG_SINT16_LE, values.length * 2);
+        for (short v : values) {
+            buf[size++] = (byte) v;
+            buf[size++] = (byte) (v >> 8);
+        }
+    }
+
+    @Override
+    public void value(byte[] values) {
+        typedArray(TAG_SINT8, values.length);
+        System.arraycopy(values, 0, buf, size, values.length);
+        size += values.length;
+    }
+
+    // Writes the tag and byte string header and makes room for the contents
+    private void typedArray(int tag, int length) {
+        header(MAJOR_TAG, tag);
+        header(MAJOR_BYTES, length);
+        ensure(length);
+    }
+
+    private void string(String value) {
+        int len = value.length();
+        int utf8Len = 0;
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                utf8Len++;
+            } else if (c < 0x800) {
+                utf8Len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                utf8Len += 4;
+                i++;
+            } else {
+                utf8Len += 3;
+            }
+        }
+        header(MAJOR_TEXT, utf8Len);
+        ensure(utf8Len);
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buf[size++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[size++] = (byte) (0xc0 | (c >> 6));
+                buf[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buf[size++] = (byte) (0xf0 | (cp >> 18));
+                buf[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[size++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired surrogate, can't be encoded as UTF-8
+                buf[size++] = (byte) 0xef;
+                buf[size++] = (byte) 0xbf;
+                buf[size++] = (byte) 0xbd;
+            } else {
+                buf[size++] = (byte) (0xe0 | (c >> 12));
+                buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void header(int major, long arg) {
+        ensure(9);
+        int mt = major << 5;
+        if (arg < 24) {
+            buf[size++] = (byte) (mt | arg);
+        } else if (arg < 0x100) {
+            buf[size++] = (byte) (mt | 24);
+            buf[size++] = (byte) arg;
+        } else if (arg < 0x10000) {
+            buf[size++] = (byte) (mt | 25);
+            buf[size++] = (byte) (arg >> 8);
+            buf[size++] = (byte) arg;
+        } else if (arg < 0x100000000L) {
+            buf[size++] = (byte) (mt | 26);
+            putInt((int) arg);
+        } else {
+            buf[size++] = (byte) (mt | 27);
+            putLong(arg);
+        }
+    }
+
+    private void putInt(int v) {
+        buf[size++] = (byte) (v >> 24);
+        buf[size++] = (byte) (v >> 16);
+        buf[size++] = (byte) (v >> 8);
+        buf[size++] = (byte) v;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >> 32));
+        putInt((int) v);
+    }
+
+    private void putIntLE(int v) {
+        buf[size++] = (byte) v;
+        buf[size++] = (byte) (v >> 8);
+        buf[size++] = (byte) (v >> 16);
+        buf[size++] = (byte) (v >> 24);
+    }
+
+    private void putLongLE(long v) {
+        putIntLE((int) v);
+        putIntLE((int) (v >> 32));
+    }
+
+    private void put(int b) {
+        ensure(1);
+        buf[size++] = (byte) b;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buf.length) {
+            int newSize = Math.max(buf.length * 2, size + extra);
+            byte[] tmp = new byte[newSize];
+            System.arraycopy(buf, 0, tmp, 0, size);
+            buf = tmp;
+        }
+    }
+}
@@ -1,10 +1,7 @@
 
 package org.codejive.rws.converters;
 
-import java.beans.BeanInfo;
 import java.beans.EventSetDescriptor;
-import java.beans.IntrospectionException;
-import java.beans.Introspector;
 import java.beans.MethodDescriptor;
 import java.beans.PropertyDescriptor;
 import java.io.PrintWriter;
@@ -13,10 +10,13 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
-import org.codejive.rws.RwsConverter;
 import org.codejive.rws.RwsException;
 import org.codejive.rws.RwsObject;
+import org.codejive.rws.RwsProjection;
+import org.codejive.rws.RwsReader;
 import org.codejive.rws.RwsRegistry;
+import org.codejive.rws.RwsSchemaConverter;
+import org.codejive.rws.RwsWriter;
 import org.codejive.rws.utils.Strings;
 import org.json.simple.JSONObject;
 
@@ -24,7 +24,7 @@ import org.json.simple.JSONObject;
  *
  * @author tako
  */
-public class RwsBeanConverter implements RwsConverter<Object> {
+public class RwsBeanConverter implements RwsSchemaConverter<Object> {
     private RwsRegistry registry;
 
     public RwsBeanConverter(RwsRegistry registry) {
@@ -34,12 +34,16 @@ public class RwsBeanConverter implements RwsConverter<Object> {
     @Override
     public Object toJSON(RwsObject obj, Object value) throws RwsException {
         JSONObject result = new JSONObject();
-        Set<String> names = obj.listPropertyNames();
-        for (String name : names) {
-            PropertyDescriptor prop = obj.getTargetProperty(name);
+        RwsProjection fields = registry.getProjection();
+        for (PropertyDescriptor prop : obj.getTargetProperties(fields)) {
             try {
                 Object propVal = prop.getReadMethod().invoke(value);
-                Object convPropVal = registry.convertToJSON(propVal);
+                Object convPropVal;
+                if (fields != null) {
+                    convPropVal = registry.convertToJSON(propVal, fields.getField(prop.getName()));
+                } else {
+                    convPropVal = registry.convertToJSON(propVal);
+                }
                 result.put(prop.getName(), convPropVal);
             } catch (IllegalAccessException ex) {
                 throw new RwsException("Could not convert property '" + prop.getName() + "'", ex);
@@ -52,6 +56,58 @@ public class RwsBeanConverter implements RwsConverter<Object> {
         return result;
     }
 
+    @Override
+    public void writeProperties(RwsObject obj, Object value, RwsWriter out) throws RwsException {
+        RwsProjection fields = registry.getProjection();
+        for (PropertyDescriptor prop : obj.getTargetProperties(fields)) {
+            try {
+                Object propVal = prop.getReadMethod().invoke(value);
+                out.name(prop.getName());
+                if (fields != null) {
+                    registry.write(propVal, fields.getField(prop.getName()), out);
+                } else {
+                    registry.write(propVal, out);
+                }
+            } catch (IllegalAccessException ex) {
+                throw new RwsException("Could not convert property '" + prop.getName() + "'", ex);
+            } catch (IllegalArgumentException ex) {
+                throw new RwsException("Could not convert property '" + prop.getName() + "'", ex);
+            } catch (InvocationTargetException ex) {
+                throw new RwsException("Could not convert property '" + prop.getName() + "'", ex);
+            }
+        }
+    }
+
+    @Override
+    public String[] listFieldNames(RwsObject obj, RwsProjection fields) throws RwsException {
+        PropertyDescriptor[] props = obj.getTargetProperties(fields);
+        String[] result = new String[props.length];
+        for (int i = 0; i < props.length; i++) {
+            result[i] = props[i].getName();
+        }
+        return result;
+    }
+
+    @Override
+    public void writeField(RwsObject obj, Object value, int index, RwsWriter out) throws RwsException {
+        RwsProjection fields = registry.getProjection();
+        PropertyDescriptor prop = obj.getTargetProperties(fields)[index];
+        try {
+            Object propVal = prop.getReadMethod().invoke(value);
+            if (fields != null) {
+                registry.write(propVal, fields.getField(prop.getName()), out);
+            } else {
+                registry.write(propVal, out);
+            }
+        } catch (IllegalAccessException ex) {
+            throw new RwsException("Could not convert property '" + prop.getName() + "'", ex);
+        } catch (IllegalArgumentException ex) {
+            throw new RwsException("Could not convert property '" + prop.getName() + "'", ex);
+        } catch (InvocationTargetException ex) {
+            throw new RwsException("Could not convert property '" + prop.getName() + "'", ex);
+        }
+    }
+
     @Override
     public Object fromJSON(RwsObject obj, Object value) throws RwsException {
         Object result;
@@ -83,6 +139,37 @@ public class RwsBeanConverter implements RwsConverter<Object> {
         return result;
     }
 
+    @Override
+    public Object readProperties(RwsObject obj, RwsReader in) throws RwsException {
+        Object result;
+        try {
+            result = obj.getTargetClass().newInstance();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                PropertyDescriptor prop = obj.getTargetProperty(name);
+                if (prop != null && prop.getWriteMethod() != null) {
+                    try {
+                        Object propVal = registry.read(in, prop.getPropertyType());
+                        prop.getWriteMethod().invoke(result, propVal);
+                    } catch (IllegalAccessException ex) {
+                        throw new RwsException("Could not convert property '" + prop.getName() + "'", ex);
+                    } catch (IllegalArgumentException ex) {
+                        throw new RwsException("Could not convert property '" + prop.getName() + "'", ex);
+                    } catch (InvocationTargetException ex) {
+                        throw new RwsException("Could not convert property '" + prop.getName() + "'", ex);
+                    }
+                } else {
+                    in.skipValue();
+                }
+            }
+        } catch (InstantiationException ex) {
+            throw new RwsException("Could not convert value", ex);
+        } catch (IllegalAccessException ex) {
+            throw new RwsException("Could not convert value", ex);
+        }
+        return result;
+    }
+
     @Override
     public void generateTypeScript(RwsObject obj, PrintWriter out) throws RwsException {
         String objectName = obj.scriptName();
@@ -91,13 +178,7 @@ public class RwsBeanConverter implements RwsConverter<Object> {
         out.println("    function " + objectName + "(id) {");
         out.println("        this.$class = '" + objectName + "';");
         out.println("        this.$id = id;");
-        try {
-            BeanInfo info = Introspector.getBeanInfo(type);
-            PropertyDescriptor[] props = info.getPropertyDescriptors();
-            generateTypeProperties(props, type, out, true);
-        } catch (IntrospectionException ex) {
-            throw new RwsException("Could not generate type script", ex);
-        }
+        generateTypeProperties(obj.getTargetProperties(null), type, out, true);
         out.println("    }");
         out.println("}");
         generateInheritance(objectName, type, out, true);
@@ -142,6 +223,9 @@ public class RwsBeanConverter implements RwsConverter<Object> {
 
     private void generateBody(RwsObject obj, PrintWriter out) throws RwsException {
         String name = obj.scriptName();
+        // Results and events might need decoding depending on the encoding options
+        String success = registry.isClientDecodingRequired() ? "rws._decoded(onsuccess)" : "onsuccess";
+        String handler = registry.isClientDecodingRequired() ? "rws._decoded(handler)" : "handler";
         List<Class> paramTypes = new ArrayList<Class>();
         for (String methodName : obj.listMethodNames()) {
             MethodDescriptor m = obj.getTargetMethod(methodName);
@@ -149,11 +233,11 @@ public class RwsBeanConverter implements RwsConverter<Object> {
             String params = generateParameters(m.getMethod().getParameterTypes());
             if (params.length() > 0) {
                 out.println(name + ".prototype." + methodName + " = function(" + params + ", onsuccess, onfailure) {");
-                out.println("    rws.call('sys', '" + methodName + "', this.$id, onsuccess, onfailure, " + params + ")");
+                out.println("    rws.call('sys', '" + methodName + "', this.$id, " + success + ", onfailure, " + params + ")");
                 out.println("}");
             } else {
                 out.println(name + ".prototype." + methodName + " = function(onsuccess, onfailure) {");
-                out.println("    rws.call('sys', '" + methodName + "', this.$id, onsuccess, onfailure)");
+                out.println("    rws.call('sys', '" + methodName + "', this.$id, " + success + ", onfailure)");
                 out.println("}");
             }
         }
@@ -167,7 +251,7 @@ public class RwsBeanConverter implements RwsConverter<Object> {
                 addParamTypes(paramTypes, m.getMethod().getParameterTypes());
                 // Event subscribe
                 out.println(name + ".prototype.subscribe" + evnm + mnm + " = function(handler) {");
-                out.println("    return rws.subscribe('sys', '" + m.getName() + "', '" + eventName + "', this.$id, handler)");
+                out.println("    return rws.subscribe('sys', '" + m.getName() + "', '" + eventName + "', this.$id, " + handler + ")");
                 out.println("}");
                 // Event unsubscribe
                 out.println(name + ".prototype.unsubscribe" + evnm + mnm + " = function(handlerid) {");
@@ -0,0 +1,34 @@
+package org.codejive.rws.json;
+
+import java.nio.ByteBuffer;
+import org.codejive.rws.RwsCodec;
+import org.codejive.rws.RwsReader;
+import org.codejive.rws.RwsWriter;
+
+/**
+ * The default wire format, JSON text sent as UTF-8
+ *
+ * @author tako
+ */
+public class JsonCodec implements RwsCodec {
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public boolean isBinary() {
+        return false;
+    }
+
+    @Override
+    public RwsWriter acquireWriter() {
+        return JsonWriter.acquire();
+    }
+
+    @Override
+    public RwsReader newReader(ByteBuffer msg) {
+        return new JsonReader(msg);
+    }
+}
@@ -0,0 +1,558 @@
+package org.codejive.rws.json;
+
+import java.nio.ByteBuffer;
+import org.codejive.rws.RwsException;
+import org.codejive.rws.RwsReader;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * <code>RwsReader</code> that parses JSON text in place, either from a
+ * <code>CharSequence</code> or from a <code>ByteBuffer</code> containing
+ * UTF-8. The input is never copied, only the strings that are actually
+ * read get materialized.
+ *
+ * @author tako
+ */
+public class JsonReader implements RwsReader {
+    private final CharSequence chars;
+    private final ByteBuffer bytes;
+    private final int start;
+    private final int limit;
+    private int pos;
+
+    private int[] stack;
+    private int depth;
+    private int peeked;
+
+    private final StringBuilder scratch = new StringBuilder();
+
+    // Nesting states
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    // Peeked tokens, position is right after the token's first character
+    private static final int PEEKED_NONE = 0;
+    private static final int PEEKED_BEGIN_OBJECT = 1;
+    private static final int PEEKED_END_OBJECT = 2;
+    private static final int PEEKED_BEGIN_ARRAY = 3;
+    private static final int PEEKED_END_ARRAY = 4;
+    private static final int PEEKED_NAME = 5;
+    private static final int PEEKED_STRING = 6;
+    private static final int PEEKED_NUMBER = 7;
+    private static final int PEEKED_TRUE = 8;
+    private static final int PEEKED_FALSE = 9;
+    private static final int PEEKED_NULL = 10;
+    private static final int PEEKED_END = 11;
+
+    public JsonReader(CharSequence chars) {
+        this.chars = chars;
+        this.bytes = null;
+        this.start = 0;
+        this.limit = chars.length();
+        rewind();
+    }
+
+    public JsonReader(ByteBuffer bytes) {
+        this.chars = null;
+        this.bytes = bytes;
+        this.start = bytes.position();
+        this.limit = bytes.limit();
+        rewind();
+    }
+
+    @Override
+    public final void rewind() {
+        pos = start;
+        stack = new int[16];
+        stack[0] = EMPTY_DOCUMENT;
+        depth = 1;
+        peeked = PEEKED_NONE;
+    }
+
+    @Override
+    public Token peek() throws RwsException {
+        switch (doPeek()) {
+            case PEEKED_BEGIN_OBJECT: return Token.BEGIN_OBJECT;
+            case PEEKED_END_OBJECT: return Token.END_OBJECT;
+            case PEEKED_BEGIN_ARRAY: return Token.BEGIN_ARRAY;
+            case PEEKED_END_ARRAY: return Token.END_ARRAY;
+            case PEEKED_NAME: return Token.NAME;
+            case PEEKED_STRING: return Token.STRING;
+            case PEEKED_NUMBER: return Token.NUMBER;
+            case PEEKED_TRUE: return Token.BOOLEAN;
+            case PEEKED_FALSE: return Token.BOOLEAN;
+            case PEEKED_NULL: return Token.NULL;
+            default: return Token.END;
+        }
+    }
+
+    @Override
+    public void beginObject() throws RwsException {
+        expect(PEEKED_BEGIN_OBJECT, "an object");
+        push(EMPTY_OBJECT);
+    }
+
+    @Override
+    public void endObject() throws RwsException {
+        expect(PEEKED_END_OBJECT, "end of object");
+        depth--;
+    }
+
+    @Override
+    public void beginArray() throws RwsException {
+        expect(PEEKED_BEGIN_ARRAY, "an array");
+        push(EMPTY_ARRAY);
+    }
+
+    @Override
+    public void endArray() throws RwsException {
+        expect(PEEKED_END_ARRAY, "end of array");
+        depth--;
+    }
+
+    @Override
+    public boolean hasNext() throws RwsException {
+        int p = doPeek();
+        return p != PEEKED_END_OBJECT && p != PEEKED_END_ARRAY && p != PEEKED_END;
+    }
+
+    @Override
+    public String nextName() throws RwsException {
+        expect(PEEKED_NAME, "a name");
+        return readString();
+    }
+
+    @Override
+    public String nextString() throws RwsException {
+        int p = doPeek();
+        if (p == PEEKED_STRING) {
+            peeked = PEEKED_NONE;
+            return readString();
+        } else if (p == PEEKED_NUMBER) {
+            peeked = PEEKED_NONE;
+            return readNumberText();
+        } else if (p == PEEKED_TRUE || p == PEEKED_FALSE) {
+            return String.valueOf(nextBoolean());
+        }
+        throw unexpected("a string");
+    }
+
+    @Override
+    public long nextLong() throws RwsException {
+        int p = doPeek();
+        String txt;
+        if (p == PEEKED_NUMBER) {
+            peeked = PEEKED_NONE;
+            int end = numberEnd();
+            long result = 0;
+            boolean negative = false;
+            int i = pos;
+            if (at(i) == '-') {
+                negative = true;
+                i++;
+            }
+            if (end - i > 0 && end - i < 19) {
+                boolean digits = true;
+                for (; i < end && digits; i++) {
+                    int c = at(i);
+                    digits = (c >= '0' && c <= '9');
+                    result = result * 10 + (c - '0');
+                }
+                if (digits) {
+                    pos = end;
+                    return negative ? -result : result;
+                }
+            }
+            txt = readNumberText();
+        } else if (p == PEEKED_STRING) {
+            peeked = PEEKED_NONE;
+            txt = readString();
+        } else {
+            throw unexpected("a number");
+        }
+        try {
+            // Plain integers are parsed exactly, longer ones would lose
+            // precision as a double
+            return Long.parseLong(txt);
+        } catch (NumberFormatException ex) {
+            // Might have a fraction or exponent
+        }
+        try {
+            double d = Double.parseDouble(txt);
+            if (d != Math.floor(d) || d < Long.MIN_VALUE || d >= -(double) Long.MIN_VALUE) {
+                throw new RwsException("Expected an integer but got " + txt);
+            }
+            return (long) d;
+        } catch (NumberFormatException ex) {
+            throw new RwsException("Expected a number but got '" + txt + "'", ex);
+        }
+    }
+
+    @Override
+    public double nextDouble() throws RwsException {
+        int p = doPeek();
+        String txt;
+        if (p == PEEKED_NUMBER) {
+            peeked = PEEKED_NONE;
+            txt = readNumberText();
+        } else if (p == PEEKED_STRING) {
+            peeked = PEEKED_NONE;
+            txt = readString();
+        } else {
+            throw unexpected("a number");
+        }
+        try {
+            return Double.parseDouble(txt);
+        } catch (NumberFormatException ex) {
+            throw new RwsException("Expected a number but got '" + txt + "'", ex);
+        }
+    }
+
+    @Override
+    public boolean nextBoolean() throws RwsException {
+        int p = doPeek();
+        if (p == PEEKED_TRUE) {
+            peeked = PEEKED_NONE;
+            literal("rue");
+            return true;
+        } else if (p == PEEKED_FALSE) {
+            peeked = PEEKED_NONE;
+            literal("alse");
+            return false;
+        } else if (p == PEEKED_STRING) {
+            peeked = PEEKED_NONE;
+            return Boolean.parseBoolean(readString());
+        }
+        throw unexpected("a boolean");
+    }
+
+    @Override
+    public void nextNull() throws RwsException {
+        expect(PEEKED_NULL, "null");
+        literal("ull");
+    }
+
+    @Override
+    public void skipValue() throws RwsException {
+        int count = 0;
+        do {
+            int p = doPeek();
+            peeked = PEEKED_NONE;
+            switch (p) {
+                case PEEKED_BEGIN_OBJECT:
+                    push(EMPTY_OBJECT);
+                    count++;
+                    break;
+                case PEEKED_BEGIN_ARRAY:
+                    push(EMPTY_ARRAY);
+                    count++;
+                    break;
+                case PEEKED_END_OBJECT:
+                case PEEKED_END_ARRAY:
+                    depth--;
+                    count--;
+                    break;
+                case PEEKED_NAME:
+                case PEEKED_STRING:
+                    skipString();
+                    break;
+                case PEEKED_NUMBER:
+                    pos = numberEnd();
+                    break;
+                case PEEKED_TRUE:
+                    literal("rue");
+                    break;
+                case PEEKED_FALSE:
+                    literal("alse");
+                    break;
+                case PEEKED_NULL:
+                    literal("ull");
+                    break;
+                default:
+                    throw unexpected("a value");
+            }
+        } while (count > 0);
+    }
+
+    @Override
+    public Object readValue() throws RwsException {
+        int p = doPeek();
+        switch (p) {
+            case PEEKED_BEGIN_OBJECT:
+                JSONObject obj = new JSONObject();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    obj.put(name, readValue());
+                }
+                endObject();
+                return obj;
+            case PEEKED_BEGIN_ARRAY:
+                JSONArray arr = new JSONArray();
+                beginArray();
+                while (hasNext()) {
+                    arr.add(readValue());
+                }
+                endArray();
+                return arr;
+            case PEEKED_STRING:
+                return nextString();
+            case PEEKED_NUMBER:
+                int end = numberEnd();
+                boolean integral = true;
+                for (int i = pos; i < end && integral; i++) {
+                    int c = at(i);
+                    integral = (c != '.' && c != 'e' && c != 'E');
+                }
+                peeked = PEEKED_NONE;
+                String txt = readNumberText();
+                try {
+                    if (integral) {
+                        try {
+                            return Long.valueOf(txt);
+                        } catch (NumberFormatException ex) {
+                            // Too large for a long, fall through
+                        }
+                    }
+                    return Double.valueOf(txt);
+                } catch (NumberFormatException ex) {
+                    throw new RwsException("Invalid number '" + txt + "'", ex);
+                }
+            case PEEKED_TRUE:
+            case PEEKED_FALSE:
+                return Boolean.valueOf(nextBoolean());
+            case PEEKED_NULL:
+                nextNull();
+                return null;
+            default:
+                throw unexpected("a value");
+        }
+    }
+
+    private int doPeek() throws RwsException {
+        if (peeked != PEEKED_NONE) {
+            return peeked;
+        }
+        int top = stack[depth - 1];
+        if (top == EMPTY_ARRAY) {
+            stack[depth - 1] = NONEMPTY_ARRAY;
+            if (nextNonWhitespace() == ']') {
+                return peeked = PEEKED_END_ARRAY;
+            }
+            pos--;
+        } else if (top == NONEMPTY_ARRAY) {
+            int c = nextNonWhitespace();
+            if (c == ']') {
+                return peeked = PEEKED_END_ARRAY;
+            } else if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+        } else if (top == EMPTY_OBJECT || top == NONEMPTY_OBJECT) {
+            stack[depth - 1] = DANGLING_NAME;
+            if (top == NONEMPTY_OBJECT) {
+                int c = nextNonWhitespace();
+                if (c == '}') {
+                    return peeked = PEEKED_END_OBJECT;
+                } else if (c != ',') {
+                    throw syntaxError("Expected ',' or '}'");
+                }
+            }
+            int c = nextNonWhitespace();
+            if (c == '"') {
+                return peeked = PEEKED_NAME;
+            } else if (c == '}' && top == EMPTY_OBJECT) {
+                return peeked = PEEKED_END_OBJECT;
+            }
+            throw syntaxError("Expected a name");
+        } else if (top == DANGLING_NAME) {
+            stack[depth - 1] = NONEMPTY_OBJECT;
+            if (nextNonWhitespace() != ':') {
+                throw syntaxError("Expected ':'");
+            }
+        } else if (top == EMPTY_DOCUMENT) {
+            stack[depth - 1] = NONEMPTY_DOCUMENT;
+        } else if (top == NONEMPTY_DOCUMENT) {
+            if (nextNonWhitespace() == -1) {
+                return peeked = PEEKED_END;
+            }
+            throw syntaxError("Unexpected data after the end of the message");
+        }
+
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{': return peeked = PEEKED_BEGIN_OBJECT;
+            case '[': return peeked = PEEKED_BEGIN_ARRAY;
+            case '"': return peeked = PEEKED_STRING;
+            case 't': return peeked = PEEKED_TRUE;
+            case 'f': return peeked = PEEKED_FALSE;
+            case 'n': return peeked = PEEKED_NULL;
+            case -1: throw syntaxError("Unexpected end of message");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pos--;
+                    return peeked = PEEKED_NUMBER;
+                }
+                throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private void expect(int token, String what) throws RwsException {
+        if (doPeek() != token) {
+            throw unexpected(what);
+        }
+        peeked = PEEKED_NONE;
+    }
+
+    private void push(int state) throws RwsException {
+        if (depth > MAX_DEPTH) {
+            throw syntaxError("Nesting too deep");
+        }
+        if (depth == stack.length) {
+            int[] tmp = new int[stack.length * 2];
+            System.arraycopy(stack, 0, tmp, 0, stack.length);
+            stack = tmp;
+        }
+        stack[depth++] = state;
+    }
+
+    private int at(int i) {
+        return (chars != null) ? chars.charAt(i) : (bytes.get(i) & 0xff);
+    }
+
+    private int nextNonWhitespace() {
+        while (pos < limit) {
+            int c = at(pos++);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private void literal(String rest) throws RwsException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (pos >= limit || at(pos++) != rest.charAt(i)) {
+                throw syntaxError("Invalid literal");
+            }
+        }
+    }
+
+    private int numberEnd() {
+        int i = pos;
+        while (i < limit) {
+            int c = at(i);
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private String readNumberText() {
+        int end = numberEnd();
+        scratch.setLength(0);
+        while (pos < end) {
+            scratch.append((char) at(pos++));
+        }
+        return scratch.toString();
+    }
+
+    private void skipString() throws RwsException {
+        while (pos < limit) {
+            int c = at(pos++);
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                pos++;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private String readString() throws RwsException {
+        scratch.setLength(0);
+        while (pos < limit) {
+            int c = at(pos++);
+            if (c == '"') {
+                return scratch.toString();
+            } else if (c == '\\') {
+                readEscape();
+            } else if (c >= 0x80 && bytes != null) {
+                readUtf8(c);
+            } else {
+                scratch.append((char) c);
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void readEscape() throws RwsException {
+        if (pos >= limit) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        int c = at(pos++);
+        switch (c) {
+            case 'b': scratch.append('\b'); break;
+            case 'f': scratch.append('\f'); break;
+            case 'n': scratch.append('\n'); break;
+            case 'r': scratch.append('\r'); break;
+            case 't': scratch.append('\t'); break;
+            case 'u':
+                if (pos + 4 > limit) {
+                    throw syntaxError("Unterminated escape sequence");
+                }
+                int v = 0;
+                for (int i = 0; i < 4; i++) {
+                    int d = Character.digit(at(pos++), 16);
+                    if (d < 0) {
+                        throw syntaxError("Invalid escape sequence");
+                    }
+                    v = (v << 4) | d;
+                }
+                scratch.append((char) v);
+                break;
+            default:
+                scratch.append((char) c);
+        }
+    }
+
+    private void readUtf8(int c) throws RwsException {
+        int cp;
+        int extra;
+        if ((c & 0xe0) == 0xc0) {
+            cp = c & 0x1f;
+            extra = 1;
+        } else if ((c & 0xf0) == 0xe0) {
+            cp = c & 0x0f;
+            extra = 2;
+        } else if ((c & 0xf8) == 0xf0) {
+            cp = c & 0x07;
+            extra = 3;
+        } else {
+            throw syntaxError("Invalid UTF-8 sequence");
+        }
+        if (pos + extra > limit) {
+            throw syntaxError("Invalid UTF-8 sequence");
+        }
+        for (int i = 0; i < extra; i++) {
+            cp = (cp << 6) | (at(pos++) & 0x3f);
+        }
+        scratch.appendCodePoint(cp);
+    }
+
+    private RwsException unexpected(String what) throws RwsException {
+        return syntaxError("Expected " + what + " but got " + peek());
+    }
+
+    private RwsException syntaxError(String message) {
+        return new RwsException(message + " at position " + (pos - start));
+    }
+}
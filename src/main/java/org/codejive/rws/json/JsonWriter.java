@@ -0,0 +1,405 @@
+package org.codejive.rws.json;
+
+import java.nio.ByteBuffer;
+import org.codejive.rws.RwsWriter;
+
+/**
+ * <code>RwsWriter</code> that encodes JSON text as UTF-8 directly into a
+ * growable byte array. Instances are pooled per thread, use
+ * <code>acquire()</code> to get one and <code>release()</code> to return it.
+ *
+ * @author tako
+ */
+public class JsonWriter implements RwsWriter {
+    private byte[] buf;
+    private int size;
+    private ByteBuffer view;
+
+    // For each nesting level, true if no element has been written yet
+    private boolean[] first;
+    private int depth;
+    private boolean afterName;
+
+    private boolean inUse;
+
+    private static final int INITIAL_SIZE = 1024;
+    private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+    private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    private static final byte[] MIN_LONG = { '-', '9', '2', '2', '3', '3', '7', '2', '0', '3', '6', '8', '5', '4', '7', '7', '5', '8', '0', '8' };
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    private static final ThreadLocal<JsonWriter> pool = new ThreadLocal<JsonWriter>();
+
+    public JsonWriter() {
+        buf = new byte[INITIAL_SIZE];
+        first = new boolean[16];
+        first[0] = true;
+    }
+
+    /**
+     * Returns an empty writer from the current thread's pool. If the pooled
+     * writer is still in use (a message being encoded while another one is
+     * in progress) a fresh writer is returned instead.
+     */
+    public static JsonWriter acquire() {
+        JsonWriter writer = pool.get();
+        if (writer == null) {
+            writer = new JsonWriter();
+            pool.set(writer);
+        } else if (writer.inUse) {
+            writer = new JsonWriter();
+        }
+        writer.inUse = true;
+        return writer;
+    }
+
+    @Override
+    public void release() {
+        reset();
+        if (buf.length > MAX_RETAINED_SIZE) {
+            // Don't hold on to the memory of exceptionally large messages
+            buf = new byte[INITIAL_SIZE];
+            view = null;
+        }
+        inUse = false;
+    }
+
+    @Override
+    public void reset() {
+        size = 0;
+        depth = 0;
+        first[0] = true;
+        afterName = false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public ByteBuffer toByteBuffer() {
+        if (view == null || view.array() != buf) {
+            view = ByteBuffer.wrap(buf);
+        }
+        view.clear();
+        view.limit(size);
+        return view;
+    }
+
+    @Override
+    public void beginObject() {
+        beforeValue();
+        put('{');
+        push();
+    }
+
+    @Override
+    public void endObject() {
+        depth--;
+        put('}');
+    }
+
+    @Override
+    public void beginArray() {
+        beforeValue();
+        put('[');
+        push();
+    }
+
+    @Override
+    public void endArray() {
+        depth--;
+        put(']');
+    }
+
+    @Override
+    public void name(String name) {
+        if (!first[depth]) {
+            put(',');
+        }
+        first[depth] = false;
+        string(name);
+        put(':');
+        afterName = true;
+    }
+
+    @Override
+    public void value(String value) {
+        if (value != null) {
+            beforeValue();
+            string(value);
+        } else {
+            nullValue();
+        }
+    }
+
+    @Override
+    public void value(long value) {
+        beforeValue();
+        number(value);
+    }
+
+    @Override
+    public void value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // Not representable in JSON
+            nullValue();
+        } else {
+            beforeValue();
+            if (value == (long) value && Math.abs(value) < 1e15) {
+                number((long) value);
+            } else {
+                ascii(Double.toString(value));
+            }
+        }
+    }
+
+    /**
+     * Writes a float using its own shortest representation, so eg.
+     * <code>0.1f</code> becomes <code>0.1</code> instead of the digits of
+     * the double it widens to
+     */
+    public void value(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            // Not representable in JSON
+            nullValue();
+        } else {
+            beforeValue();
+            if (value == (long) value && Math.abs(value) < 1e15) {
+                number((long) value);
+            } else {
+                ascii(Float.toString(value));
+            }
+        }
+    }
+
+    @Override
+    public void value(boolean value) {
+        beforeValue();
+        put(value ? TRUE : FALSE);
+    }
+
+    @Override
+    public void value(Number value) {
+        if (value == null) {
+            nullValue();
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            value(value.longValue());
+        } else if (value instanceof Float) {
+            value(value.floatValue());
+        } else if (value instanceof Double) {
+            value(value.doubleValue());
+        } else {
+            // BigDecimal, BigInteger, etc
+            beforeValue();
+            ascii(value.toString());
+        }
+    }
+
+    @Override
+    public void rawValue(ByteBuffer encoded) {
+        beforeValue();
+        int len = encoded.remaining();
+        ensure(len);
+        encoded.duplicate().get(buf, size, len);
+        size += len;
+    }
+
+    @Override
+    public void nullValue() {
+        beforeValue();
+        put(NULL);
+    }
+
+    @Override
+    public void value(double[] values) {
+        beginArray();
+        for (double v : values) {
+            value(v);
+        }
+        endArray();
+    }
+
+    @Override
+    public void value(float[] values) {
+        beginArray();
+        for (float v : values) {
+            value(v);
+        }
+        endArray();
+    }
+
+    @Override
+    public void value(long[] values) {
+        beginArray();
+        for (long v : values) {
+            value(v);
+        }
+        endArray();
+    }
+
+    @Override
+    public void value(int[] values) {
+        beginArray();
+        for (int v : values) {
+            value(v);
+        }
+        endArray();
+    }
+
+    @Override
+    public void value(short[] values) {
+        beginArray();
+        for (short v : values) {
+            value(v);
+        }
+        endArray();
+    }
+
+    @Override
+    public void value(byte[] values) {
+        beginArray();
+        for (byte v : values) {
+            value(v);
+        }
+        endArray();
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            if (!first[depth]) {
+                put(',');
+            }
+            first[depth] = false;
+        }
+    }
+
+    private void push() {
+        depth++;
+        if (depth == first.length) {
+            boolean[] tmp = new boolean[first.length * 2];
+            System.arraycopy(first, 0, tmp, 0, first.length);
+            first = tmp;
+        }
+        first[depth] = true;
+    }
+
+    private void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            put(MIN_LONG);
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buf[size++] = '-';
+            value = -value;
+        }
+        int start = size;
+        do {
+            buf[size++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        // Digits were written in reverse
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte b = buf[i];
+            buf[i] = buf[j];
+            buf[j] = b;
+        }
+    }
+
+    private void string(String value) {
+        int len = value.length();
+        ensure(len + 2);
+        buf[size++] = '"';
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                if (size == buf.length) {
+                    ensure(len - i + 1);
+                }
+                buf[size++] = (byte) c;
+            } else {
+                special(value, i, c);
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        put('"');
+    }
+
+    private void special(String value, int i, char c) {
+        ensure(12);
+        switch (c) {
+            case '"': buf[size++] = '\\'; buf[size++] = '"'; break;
+            case '\\': buf[size++] = '\\'; buf[size++] = '\\'; break;
+            case '\b': buf[size++] = '\\'; buf[size++] = 'b'; break;
+            case '\f': buf[size++] = '\\'; buf[size++] = 'f'; break;
+            case '\n': buf[size++] = '\\'; buf[size++] = 'n'; break;
+            case '\r': buf[size++] = '\\'; buf[size++] = 'r'; break;
+            case '\t': buf[size++] = '\\'; buf[size++] = 't'; break;
+            default:
+                if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    // Control characters and the JavaScript line separators
+                    buf[size++] = '\\';
+                    buf[size++] = 'u';
+                    buf[size++] = HEX[(c >> 12) & 0xf];
+                    buf[size++] = HEX[(c >> 8) & 0xf];
+                    buf[size++] = HEX[(c >> 4) & 0xf];
+                    buf[size++] = HEX[c & 0xf];
+                } else if (c < 0x800) {
+                    buf[size++] = (byte) (0xc0 | (c >> 6));
+                    buf[size++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(i + 1));
+                    buf[size++] = (byte) (0xf0 | (cp >> 18));
+                    buf[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[size++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    // Unpaired surrogate, can't be encoded as UTF-8
+                    buf[size++] = (byte) 0xef;
+                    buf[size++] = (byte) 0xbf;
+                    buf[size++] = (byte) 0xbd;
+                } else {
+                    buf[size++] = (byte) (0xe0 | (c >> 12));
+                    buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[size++] = (byte) (0x80 | (c & 0x3f));
+                }
+        }
+    }
+
+    private void ascii(String value) {
+        int len = value.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            buf[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void put(char c) {
+        ensure(1);
+        buf[size++] = (byte) c;
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buf.length) {
+            int newSize = Math.max(buf.length * 2, size + extra);
+            byte[] tmp = new byte[newSize];
+            System.arraycopy(buf, 0, tmp, 0, size);
+            buf = tmp;
+        }
+    }
+}
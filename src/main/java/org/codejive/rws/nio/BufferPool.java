@@ -0,0 +1,50 @@
+package org.codejive.rws.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers that all have the same size. Connections only
+ * hold on to a buffer while they have data in it, so idle connections
+ * don't use any buffer memory at all.
+ *
+ * @author tako
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buf = buffers.poll();
+        if (buf != null) {
+            pooled.decrementAndGet();
+            buf.clear();
+        } else {
+            buf = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that weren't obtained from the
+     * pool are simply ignored so callers don't need to keep track.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf.isDirect() && buf.capacity() == bufferSize && pooled.get() < maxPooled) {
+            pooled.incrementAndGet();
+            buffers.offer(buf);
+        }
+    }
+}
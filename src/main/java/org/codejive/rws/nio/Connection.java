@@ -0,0 +1,719 @@
+package org.codejive.rws.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import org.codejive.rws.RwsBatchingAdapter;
+import org.codejive.rws.RwsException;
+import org.codejive.rws.RwsLane;
+import org.codejive.rws.RwsPriorityAdapter;
+import org.codejive.rws.RwsSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single WebSocket connection (RFC 6455). All reading is done by the
+ * connection's event loop, writing can be done from any thread. Messages
+ * are handled in the order they arrived, either on the event loop itself or
+ * using the server's executor. Outgoing messages are queued per lane and
+ * the lanes take turns according to their weights, so messages in higher
+ * lanes overtake those in lower lanes when the client falls behind.
+ *
+ * @author tako
+ */
+class Connection implements RwsBatchingAdapter, RwsPriorityAdapter {
+    private final RwsServer server;
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private RwsSession session;
+    private boolean handshaken;
+
+    // Reading state, only touched by the event loop
+    private ByteBuffer readBuf;
+    private final byte[] frameMask = new byte[4];
+    private int frameOpcode;
+    private boolean frameFin;
+    private byte[] frameData;
+    private int frameFilled;
+    private int msgOpcode;
+    private byte[] msgData;
+    private int msgSize;
+    private volatile boolean clientClosed;
+
+    // Writing state, guarded by writeLock. Frames move from the lanes to
+    // the outbox just before they are written, outboxBytes counts both.
+    private final Object writeLock = new Object();
+    private final ArrayDeque<ByteBuffer> outbox = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<ByteBuffer>[] lanes;
+    private int laneFrames;
+    private int currentLane;
+    private int laneCredit;
+    private ByteBuffer closeFrame;
+    private long outboxBytes;
+    private boolean writeInterest;
+    private boolean closeSent;
+    private volatile boolean closed;
+    // Set when the session closed the connection because it ended, see
+    // disconnect()
+    private volatile boolean disconnected;
+    // Set when the server closed the connection because of something the
+    // client did wrong, the session is dropped and can't be resumed
+    private volatile boolean dropped;
+
+    // Messages waiting to be handled by the executor, guarded by itself
+    private final ArrayDeque<Message> inbox = new ArrayDeque<Message>();
+    private boolean dispatching;
+
+    static final int OP_CONTINUATION = 0x0;
+    static final int OP_TEXT = 0x1;
+    static final int OP_BINARY = 0x2;
+    static final int OP_CLOSE = 0x8;
+    static final int OP_PING = 0x9;
+    static final int OP_PONG = 0xa;
+
+    static final int CLOSE_NORMAL = 1000;
+    static final int CLOSE_PROTOCOL_ERROR = 1002;
+    static final int CLOSE_TOO_BIG = 1009;
+
+    // The number of frames taken from the lanes ahead of writing them in a
+    // single gathering write, frames that arrive later in a higher lane
+    // can't overtake these
+    private static final int MAX_COMMITTED = 16;
+
+    private static final RwsLane[] LANES = RwsLane.values();
+
+    private static final Logger log = LoggerFactory.getLogger(Connection.class);
+
+    private static class Message {
+        private final int opcode;
+        private final byte[] data;
+        private final int size;
+
+        public Message(int opcode, byte[] data, int size) {
+            this.opcode = opcode;
+            this.data = data;
+            this.size = size;
+        }
+    }
+
+    // Java doesn't allow creating an array of a generic type
+    @SuppressWarnings("unchecked")
+    public Connection(RwsServer server, EventLoop loop, SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        lanes = new ArrayDeque[LANES.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    // ---------------------------------------------------------------------
+    // Reading
+    // ---------------------------------------------------------------------
+
+    void handleRead() throws IOException {
+        BufferPool pool = server.getBufferPool();
+        if (readBuf == null) {
+            readBuf = pool.acquire();
+        }
+        int n = channel.read(readBuf);
+        if (n < 0) {
+            close();
+            return;
+        }
+        readBuf.flip();
+        try {
+            if (!handshaken) {
+                readHandshake();
+            }
+            if (handshaken) {
+                readFrames();
+            }
+        } finally {
+            if (readBuf != null) {
+                readBuf.compact();
+                if (readBuf.position() == 0) {
+                    // Nothing left over, don't keep the buffer while we're idle
+                    pool.release(readBuf);
+                    readBuf = null;
+                }
+            }
+        }
+    }
+
+    private void readHandshake() throws IOException {
+        Handshake hs = Handshake.read(readBuf);
+        if (hs == null) {
+            if (readBuf.remaining() == readBuf.capacity()) {
+                reject(431, "Request Header Fields Too Large");
+            }
+            return;
+        }
+        if (!hs.isValid()) {
+            reject(400, "Bad Request");
+            return;
+        }
+        if (!hs.isSupportedVersion()) {
+            reject(426, "Upgrade Required");
+            return;
+        }
+        if (server.getPath() != null && !server.getPath().equals(hs.getPath())) {
+            reject(404, "Not Found");
+            return;
+        }
+        String protocol = server.getContext().selectWireFormat(hs.getProtocols());
+        enqueue(RwsLane.CONTROL, ByteBuffer.wrap(hs.createResponse(protocol)));
+        handshaken = true;
+        String token = hs.getParameter("resume");
+        if (token != null) {
+            session = server.getContext().resumeSession(token, this);
+        }
+        if (session == null) {
+            onConnect();
+        }
+        if (protocol != null) {
+            try {
+                session.setWireFormat(protocol);
+            } catch (RwsException ex) {
+                // Can't happen, the context just told us it's supported
+                log.error("Could not select wire format", ex);
+            }
+        }
+    }
+
+    private void reject(int status, String reason) throws IOException {
+        log.debug("Rejecting handshake: {} {}", status, reason);
+        synchronized (writeLock) {
+            closeSent = true;
+            outbox.add(ByteBuffer.wrap(Handshake.createError(status, reason)));
+            flush();
+        }
+        if (readBuf != null) {
+            readBuf.position(readBuf.limit());
+        }
+    }
+
+    private void readFrames() throws IOException {
+        while (!closed && !closeSent) {
+            if (frameData != null) {
+                // Continue filling a frame that didn't fit in the buffer
+                int len = Math.min(readBuf.remaining(), frameData.length - frameFilled);
+                readBuf.get(frameData, frameFilled, len);
+                frameFilled += len;
+                if (frameFilled < frameData.length) {
+                    return;
+                }
+                byte[] data = frameData;
+                frameData = null;
+                unmask(data, data.length);
+                handleFrame(frameOpcode, frameFin, data, data.length);
+                continue;
+            }
+
+            int start = readBuf.position();
+            int avail = readBuf.remaining();
+            if (avail < 2) {
+                return;
+            }
+            int b0 = readBuf.get(start) & 0xff;
+            int b1 = readBuf.get(start + 1) & 0xff;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0f;
+            long len = b1 & 0x7f;
+            int hlen = 2;
+            if (len == 126) {
+                if (avail < 4) {
+                    return;
+                }
+                len = readBuf.getShort(start + 2) & 0xffff;
+                hlen = 4;
+            } else if (len == 127) {
+                if (avail < 10) {
+                    return;
+                }
+                len = readBuf.getLong(start + 2);
+                hlen = 10;
+            }
+            if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) {
+                // Extensions aren't supported and clients must mask their frames
+                fail(CLOSE_PROTOCOL_ERROR);
+                return;
+            }
+            if (opcode >= OP_CLOSE && (len > 125 || !fin)) {
+                fail(CLOSE_PROTOCOL_ERROR);
+                return;
+            }
+            if (len < 0 || len > server.getMaxMessageSize()) {
+                fail(CLOSE_TOO_BIG);
+                return;
+            }
+            hlen += 4;
+            if (avail < hlen) {
+                return;
+            }
+            for (int i = 0; i < 4; i++) {
+                frameMask[i] = readBuf.get(start + hlen - 4 + i);
+            }
+            int size = (int) len;
+            if (avail - hlen >= size) {
+                readBuf.position(start + hlen);
+                byte[] data = new byte[size];
+                readBuf.get(data);
+                unmask(data, size);
+                handleFrame(opcode, fin, data, size);
+            } else if (hlen + size <= readBuf.capacity()) {
+                // The rest of the frame will fit in the buffer, wait for it
+                return;
+            } else {
+                readBuf.position(start + hlen);
+                frameOpcode = opcode;
+                frameFin = fin;
+                frameData = new byte[size];
+                frameFilled = 0;
+            }
+        }
+    }
+
+    private void unmask(byte[] data, int size) {
+        for (int i = 0; i < size; i++) {
+            data[i] ^= frameMask[i & 3];
+        }
+    }
+
+    private void handleFrame(int opcode, boolean fin, byte[] data, int size) throws IOException {
+        switch (opcode) {
+            case OP_CONTINUATION:
+                if (msgData == null) {
+                    fail(CLOSE_PROTOCOL_ERROR);
+                } else if (msgSize + size > server.getMaxMessageSize()) {
+                    fail(CLOSE_TOO_BIG);
+                } else {
+                    if (msgSize + size > msgData.length) {
+                        byte[] tmp = new byte[Math.max(msgData.length * 2, msgSize + size)];
+                        System.arraycopy(msgData, 0, tmp, 0, msgSize);
+                        msgData = tmp;
+                    }
+                    System.arraycopy(data, 0, msgData, msgSize, size);
+                    msgSize += size;
+                    if (fin) {
+                        byte[] msg = msgData;
+                        msgData = null;
+                        deliver(msgOpcode, msg, msgSize);
+                    }
+                }
+                break;
+            case OP_TEXT:
+            case OP_BINARY:
+                if (msgData != null) {
+                    fail(CLOSE_PROTOCOL_ERROR);
+                } else if (fin) {
+                    deliver(opcode, data, size);
+                } else {
+                    msgOpcode = opcode;
+                    msgData = data;
+                    msgSize = size;
+                }
+                break;
+            case OP_CLOSE:
+                int code = (size >= 2) ? ((data[0] & 0xff) << 8) | (data[1] & 0xff) : CLOSE_NORMAL;
+                clientClosed = true;
+                sendClose(code);
+                break;
+            case OP_PING:
+                send(OP_PONG, ByteBuffer.wrap(data, 0, size), RwsLane.CONTROL);
+                break;
+            case OP_PONG:
+                break;
+            default:
+                fail(CLOSE_PROTOCOL_ERROR);
+                break;
+        }
+    }
+
+    private void deliver(final int opcode, final byte[] data, final int size) {
+        Executor executor = server.getExecutor();
+        if (executor == null) {
+            handleMessage(opcode, data, size);
+        } else if (!server.isOrderedDelivery()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleMessage(opcode, data, size);
+                }
+            });
+        } else {
+            synchronized (inbox) {
+                inbox.add(new Message(opcode, data, size));
+                if (dispatching) {
+                    return;
+                }
+                dispatching = true;
+            }
+            executor.execute(dispatcher);
+        }
+    }
+
+    // Handles the messages in the inbox one by one until it's empty
+    private final Runnable dispatcher = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Message msg;
+                synchronized (inbox) {
+                    msg = inbox.poll();
+                    if (msg == null) {
+                        dispatching = false;
+                        return;
+                    }
+                }
+                handleMessage(msg.opcode, msg.data, msg.size);
+            }
+        }
+    };
+
+    private void handleMessage(int opcode, byte[] data, int size) {
+        if (closed) {
+            return;
+        }
+        ByteBuffer msg = ByteBuffer.wrap(data, 0, size);
+        RwsSession.setInstance(session);
+        try {
+            if (opcode == OP_TEXT) {
+                session.handleMessage(msg);
+            } else {
+                session.handleBinaryMessage(msg);
+            }
+        } catch (Throwable th) {
+            log.error("Could not handle message", th);
+        } finally {
+            RwsSession.setInstance(null);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Writing
+    // ---------------------------------------------------------------------
+
+    private void send(int opcode, ByteBuffer payload, RwsLane lane) throws IOException {
+        enqueue(lane, createFrame(opcode, payload));
+    }
+
+    private ByteBuffer createFrame(int opcode, ByteBuffer payload) {
+        BufferPool pool = server.getBufferPool();
+        int len = payload.remaining();
+        int hlen = (len < 126) ? 2 : (len < 65536) ? 4 : 10;
+        ByteBuffer frame = (hlen + len <= pool.getBufferSize()) ? pool.acquire() : ByteBuffer.allocate(hlen + len);
+        frame.put((byte) (0x80 | opcode));
+        if (len < 126) {
+            frame.put((byte) len);
+        } else if (len < 65536) {
+            frame.put((byte) 126);
+            frame.putShort((short) len);
+        } else {
+            frame.put((byte) 127);
+            frame.putLong(len);
+        }
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    // Adds the frames to the given lane, from then on they're owned by the
+    // connection, even if an exception is thrown
+    private void enqueue(RwsLane lane, ByteBuffer... frames) throws IOException {
+        enqueue(frames, null, lane);
+    }
+
+    // Each frame goes to its own lane if lanes is given
+    private void enqueue(ByteBuffer[] frames, RwsLane[] frameLanes, RwsLane lane) throws IOException {
+        synchronized (writeLock) {
+            long size = 0;
+            for (ByteBuffer frame : frames) {
+                size += frame.remaining();
+            }
+            if (closed || closeSent || outboxBytes + size > server.getMaxPendingBytes()) {
+                for (ByteBuffer frame : frames) {
+                    server.getBufferPool().release(frame);
+                }
+                if (closed || closeSent) {
+                    throw new IOException("Connection is closed");
+                }
+                dropped = true;
+                close();
+                throw new IOException("Client is not keeping up, closing connection");
+            }
+            for (int i = 0; i < frames.length; i++) {
+                RwsLane l = (frameLanes != null) ? frameLanes[i] : lane;
+                lanes[l.ordinal()].add(frames[i]);
+            }
+            laneFrames += frames.length;
+            outboxBytes += size;
+            if (!writeInterest) {
+                flush();
+            }
+        }
+    }
+
+    private void sendClose(int code) throws IOException {
+        synchronized (writeLock) {
+            if (closed || closeSent) {
+                return;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(4);
+            frame.put((byte) (0x80 | OP_CLOSE));
+            frame.put((byte) 2);
+            frame.putShort((short) code);
+            frame.flip();
+            // Goes out after everything that was already queued
+            closeFrame = frame;
+            outboxBytes += frame.remaining();
+            closeSent = true;
+            if (!writeInterest) {
+                flush();
+            }
+        }
+    }
+
+    private void fail(int code) throws IOException {
+        log.debug("Closing connection with code {}", code);
+        dropped = true;
+        sendClose(code);
+    }
+
+    void handleWrite() throws IOException {
+        synchronized (writeLock) {
+            flush();
+        }
+    }
+
+    // Writes as much of the outbox as the socket will take right now,
+    // must be called while holding the write lock
+    private void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        BufferPool pool = server.getBufferPool();
+        // Leaves room for the close frame
+        ByteBuffer[] bufs = new ByteBuffer[MAX_COMMITTED + 1];
+        while (true) {
+            refill();
+            if (outbox.isEmpty()) {
+                break;
+            }
+            int count = 0;
+            for (ByteBuffer buf : outbox) {
+                if (count == bufs.length) {
+                    break;
+                }
+                bufs[count++] = buf;
+            }
+            long n = channel.write(bufs, 0, count);
+            outboxBytes -= n;
+            while (!outbox.isEmpty() && !outbox.peek().hasRemaining()) {
+                pool.release(outbox.poll());
+            }
+            if (n == 0) {
+                break;
+            }
+        }
+        if (outbox.isEmpty() && laneFrames == 0 && closeFrame == null) {
+            if (writeInterest) {
+                writeInterest = false;
+                setInterest(SelectionKey.OP_READ);
+            }
+            if (closeSent) {
+                close();
+            }
+        } else if (!writeInterest) {
+            // Wait for the socket to tell us it can take more
+            writeInterest = true;
+            setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Moves frames from the lanes to the outbox, each lane in turn gets to
+    // move as many frames as its weight so lower lanes still make progress.
+    // The close frame goes last.
+    private void refill() {
+        while (laneFrames > 0 && outbox.size() < MAX_COMMITTED) {
+            ArrayDeque<ByteBuffer> lane = lanes[currentLane];
+            if (lane.isEmpty() || laneCredit <= 0) {
+                currentLane = (currentLane + 1) % lanes.length;
+                laneCredit = server.getLaneWeight(LANES[currentLane]);
+                continue;
+            }
+            outbox.add(lane.poll());
+            laneFrames--;
+            laneCredit--;
+        }
+        if (laneFrames == 0 && closeFrame != null) {
+            outbox.add(closeFrame);
+            closeFrame = null;
+        }
+    }
+
+    private void setInterest(final int ops) {
+        if (loop.inEventLoop()) {
+            if (key.isValid()) {
+                key.interestOps(ops);
+            }
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (key.isValid()) {
+                        key.interestOps(ops);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes the connection immediately, anything that wasn't sent yet is
+     * discarded. Can be called from any thread.
+     */
+    void close() {
+        if (!loop.inEventLoop()) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+            return;
+        }
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            BufferPool pool = server.getBufferPool();
+            for (ByteBuffer buf : outbox) {
+                pool.release(buf);
+            }
+            outbox.clear();
+            for (ArrayDeque<ByteBuffer> lane : lanes) {
+                for (ByteBuffer buf : lane) {
+                    pool.release(buf);
+                }
+                lane.clear();
+            }
+            laneFrames = 0;
+            closeFrame = null;
+            outboxBytes = 0;
+        }
+        if (key != null) {
+            key.cancel();
+            loop.connectionClosed();
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Ignore
+        }
+        if (readBuf != null) {
+            server.getBufferPool().release(readBuf);
+            readBuf = null;
+        }
+        frameData = null;
+        msgData = null;
+        if (handshaken) {
+            onDisconnect();
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // RwsWebSocketAdapter
+    // ---------------------------------------------------------------------
+
+    @Override
+    public void onConnect() {
+        session = server.getContext().addSession(this);
+    }
+
+    @Override
+    public void onMessage(String msg) {
+        try {
+            session.handleMessage(msg);
+        } catch (IOException ex) {
+            log.error("Could not handle message", ex);
+        }
+    }
+
+    @Override
+    public void onDisconnect() {
+        if (disconnected) {
+            // Whoever ended the session already tore it down, this only
+            // makes sure it doesn't stay behind in the context
+            server.getContext().removeSession(session);
+        } else if (clientClosed || dropped) {
+            // Either side closed the connection on purpose
+            server.getContext().removeSession(session);
+            // Makes sure all event subscriptions get removed
+            session.disconnect();
+        } else {
+            // The connection was lost, the client might come back for it
+            server.getContext().suspendSession(session);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return handshaken && !closed && !closeSent;
+    }
+
+    @Override
+    public void disconnect() {
+        disconnected = true;
+        try {
+            sendClose(CLOSE_NORMAL);
+        } catch (IOException ex) {
+            close();
+        }
+    }
+
+    @Override
+    public void sendMessage(String msg) throws IOException {
+        send(OP_TEXT, ByteBuffer.wrap(msg.getBytes("UTF-8")), RwsLane.EVENTS);
+    }
+
+    @Override
+    public void sendMessage(ByteBuffer msg) throws IOException {
+        send(OP_TEXT, msg, RwsLane.EVENTS);
+    }
+
+    @Override
+    public void sendBinaryMessage(ByteBuffer msg) throws IOException {
+        send(OP_BINARY, msg, RwsLane.EVENTS);
+    }
+
+    @Override
+    public void sendMessage(ByteBuffer msg, boolean binary, RwsLane lane) throws IOException {
+        send(binary ? OP_BINARY : OP_TEXT, msg, lane);
+    }
+
+    @Override
+    public void sendMessages(ByteBuffer[] msgs, boolean[] binary) throws IOException {
+        sendMessages(msgs, binary, null);
+    }
+
+    @Override
+    public void sendMessages(ByteBuffer[] msgs, boolean[] binary, RwsLane[] lanes) throws IOException {
+        ByteBuffer[] frames = new ByteBuffer[msgs.length];
+        for (int i = 0; i < msgs.length; i++) {
+            frames[i] = createFrame(binary[i] ? OP_BINARY : OP_TEXT, msgs[i]);
+        }
+        // All frames are queued before the first write
+        enqueue(frames, lanes, RwsLane.EVENTS);
+    }
+}
@@ -0,0 +1,139 @@
+package org.codejive.rws.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single thread that handles all I/O for a set of connections using a
+ * selector. Other threads can hand it work using <code>execute()</code>.
+ *
+ * @author tako
+ */
+class EventLoop implements Runnable {
+    private final RwsServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile boolean running;
+    private Thread thread;
+
+    private static final Logger log = LoggerFactory.getLogger(EventLoop.class);
+
+    public EventLoop(RwsServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    public void start(String name) {
+        running = true;
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the event loop's thread
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Takes over a newly accepted connection
+     */
+    public void register(final SocketChannel channel) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Connection conn = new Connection(server, EventLoop.this, channel);
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, conn);
+                    conn.setKey(key);
+                    connectionCount.incrementAndGet();
+                } catch (ClosedChannelException ex) {
+                    // Already gone
+                }
+            }
+        });
+    }
+
+    void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            conn.handleRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.handleWrite();
+                        }
+                    } catch (Throwable th) {
+                        log.debug("Closing connection after error", th);
+                        conn.close();
+                    }
+                }
+            } catch (Throwable th) {
+                log.error("Unexpected error in event loop", th);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Connection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            // Ignore
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable th) {
+                log.error("Event loop task failed", th);
+            }
+        }
+    }
+}
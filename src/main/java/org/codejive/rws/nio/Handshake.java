@@ -0,0 +1,183 @@
+package org.codejive.rws.nio;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses the HTTP upgrade request that starts a WebSocket connection and
+ * creates the response for it (RFC 6455 section 4.2)
+ *
+ * @author tako
+ */
+class Handshake {
+    private String path;
+    private String query;
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * Tries to read a complete request from the buffer. Returns null if
+     * the buffer doesn't contain a complete request yet, in which case the
+     * buffer's position is left unchanged.
+     */
+    public static Handshake read(ByteBuffer buf) throws UnsupportedEncodingException {
+        int start = buf.position();
+        int end = -1;
+        for (int i = start; i + 3 < buf.limit(); i++) {
+            if (buf.get(i) == '\r' && buf.get(i + 1) == '\n' && buf.get(i + 2) == '\r' && buf.get(i + 3) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return null;
+        }
+        byte[] data = new byte[end - start];
+        buf.get(data);
+        buf.position(end + 4);
+
+        Handshake result = new Handshake();
+        String[] lines = new String(data, "ISO-8859-1").split("\r\n");
+        String[] request = lines[0].split(" ");
+        if (request.length == 3 && "GET".equals(request[0])) {
+            int p = request[1].indexOf('?');
+            result.path = (p >= 0) ? request[1].substring(0, p) : request[1];
+            result.query = (p >= 0) ? request[1].substring(p + 1) : "";
+        }
+        for (int i = 1; i < lines.length; i++) {
+            int p = lines[i].indexOf(':');
+            if (p > 0) {
+                String name = lines[i].substring(0, p).trim().toLowerCase();
+                String value = lines[i].substring(p + 1).trim();
+                String old = result.headers.get(name);
+                result.headers.put(name, (old != null) ? old + ", " + value : value);
+            }
+        }
+        return result;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the (decoded) value of the given query parameter or null
+     */
+    public String getParameter(String name) throws UnsupportedEncodingException {
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int p = param.indexOf('=');
+                String key = (p >= 0) ? param.substring(0, p) : param;
+                if (name.equals(URLDecoder.decode(key, "UTF-8"))) {
+                    return (p >= 0) ? URLDecoder.decode(param.substring(p + 1), "UTF-8") : "";
+                }
+            }
+        }
+        return null;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    public boolean isValid() {
+        return path != null
+                && contains(getHeader("Upgrade"), "websocket")
+                && contains(getHeader("Connection"), "upgrade")
+                && getHeader("Sec-WebSocket-Key") != null;
+    }
+
+    public boolean isSupportedVersion() {
+        return "13".equals(getHeader("Sec-WebSocket-Version"));
+    }
+
+    /**
+     * Returns the sub-protocols requested by the client, if any
+     */
+    public String[] getProtocols() {
+        String protocols = getHeader("Sec-WebSocket-Protocol");
+        if (protocols == null) {
+            return new String[0];
+        }
+        String[] result = protocols.split(",");
+        for (int i = 0; i < result.length; i++) {
+            result[i] = result[i].trim();
+        }
+        return result;
+    }
+
+    public byte[] createResponse(String protocol) {
+        StringBuilder result = new StringBuilder();
+        result.append("HTTP/1.1 101 Switching Protocols\r\n");
+        result.append("Upgrade: websocket\r\n");
+        result.append("Connection: Upgrade\r\n");
+        result.append("Sec-WebSocket-Accept: ").append(accept(getHeader("Sec-WebSocket-Key"))).append("\r\n");
+        if (protocol != null) {
+            result.append("Sec-WebSocket-Protocol: ").append(protocol).append("\r\n");
+        }
+        result.append("\r\n");
+        return ascii(result.toString());
+    }
+
+    public static byte[] createError(int status, String reason) {
+        String response = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + ((status == 426) ? "Sec-WebSocket-Version: 13\r\n" : "")
+                + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+        return ascii(response);
+    }
+
+    private static boolean contains(String value, String token) {
+        if (value != null) {
+            for (String t : value.split(",")) {
+                if (t.trim().equalsIgnoreCase(token)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest(ascii(key + GUID)));
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java implementation is required to support SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String base64(byte[] data) {
+        StringBuilder result = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xff) << 16;
+            if (i + 1 < data.length) {
+                b |= (data[i + 1] & 0xff) << 8;
+            }
+            if (i + 2 < data.length) {
+                b |= data[i + 2] & 0xff;
+            }
+            result.append(BASE64[(b >> 18) & 0x3f]);
+            result.append(BASE64[(b >> 12) & 0x3f]);
+            result.append((i + 1 < data.length) ? BASE64[(b >> 6) & 0x3f] : '=');
+            result.append((i + 2 < data.length) ? BASE64[b & 0x3f] : '=');
+        }
+        return result.toString();
+    }
+
+    private static byte[] ascii(String value) {
+        try {
+            return value.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException ex) {
+            // Every Java implementation is required to support ISO-8859-1
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.codejive.rws.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import org.codejive.rws.RwsContext;
+import org.codejive.rws.RwsLane;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A standalone WebSocket server (RFC 6455) that can be used instead of
+ * running RWS inside a servlet container. Connections are spread over a
+ * small number of event loops that each handle the I/O for their
+ * connections using a selector. By default messages are handled directly
+ * on the event loop, which is the fastest option as long as handling them
+ * doesn't block, otherwise an executor can be set to handle them instead.
+ * Unless <code>orderedDelivery</code> is turned off the messages of a single
+ * connection are always handled one at a time and in the order they arrived.
+ * <p>
+ * Clients can select the wire format by passing its name as the
+ * WebSocket sub-protocol during the handshake. The settings can only be
+ * changed before the server is started.
+ *
+ * @author tako
+ */
+public class RwsServer {
+    private final RwsContext context;
+    private final InetSocketAddress address;
+    private final int loopCount;
+
+    private String path;
+    private volatile Executor executor;
+    private boolean orderedDelivery = true;
+    private int bufferSize = 16 * 1024;
+    private int maxPooledBuffers = 4096;
+    private int maxMessageSize = 16 * 1024 * 1024;
+    private long maxPendingBytes = 16 * 1024 * 1024;
+    private final int[] laneWeights = { 16, 4, 1 };
+
+    private BufferPool bufferPool;
+    private EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private volatile boolean running;
+
+    private static final Logger log = LoggerFactory.getLogger(RwsServer.class);
+
+    public RwsServer(RwsContext context, int port) {
+        this(context, new InetSocketAddress(port), Runtime.getRuntime().availableProcessors());
+    }
+
+    public RwsServer(RwsContext context, InetSocketAddress address, int loops) {
+        this.context = context;
+        this.address = address;
+        this.loopCount = Math.max(1, loops);
+    }
+
+    public RwsContext getContext() {
+        return context;
+    }
+
+    /**
+     * Returns the port the server is listening on, which is useful when
+     * it was started on port 0
+     */
+    public int getPort() {
+        return (serverChannel != null) ? serverChannel.socket().getLocalPort() : address.getPort();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Sets the path that clients must connect to, if <code>null</code>
+     * (the default) any path will be accepted
+     */
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor that will handle incoming messages, if
+     * <code>null</code> (the default) messages are handled on the event
+     * loops themselves. Use <code>RwsExecutors.newThreadPerTaskExecutor()</code>
+     * to handle them on virtual threads when the exposed objects can block.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public boolean isOrderedDelivery() {
+        return orderedDelivery;
+    }
+
+    /**
+     * When <code>true</code> (the default) the messages of a connection are
+     * handled one at a time and in order. Turning it off lets the executor
+     * handle all messages concurrently, so a client can have many blocking
+     * calls in progress at the same time. Results are matched to their calls
+     * by id, so the client doesn't depend on the order they arrive in. Only
+     * has an effect when an executor was set and the context doesn't use
+     * mailbox mode (see <code>RwsContext.setSessionExecutor()</code>),
+     * because a mailbox handles the messages of its session one at a time
+     * anyway. The session's own state (subscriptions, groups, attributes)
+     * can be changed concurrently, but the registered objects that clients
+     * call must be thread safe.
+     */
+    public void setOrderedDelivery(boolean orderedDelivery) {
+        this.orderedDelivery = orderedDelivery;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size of the pooled buffers used for reading and writing.
+     * Messages that don't fit in a single buffer are still supported but
+     * need an extra copy.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getMaxPooledBuffers() {
+        return maxPooledBuffers;
+    }
+
+    public void setMaxPooledBuffers(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Sets the maximum size of incoming messages, connections that try to
+     * send larger ones are closed
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    /**
+     * Sets the maximum amount of outgoing data that may be waiting for a
+     * client, connections that can't keep up are closed
+     */
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    public int getLaneWeight(RwsLane lane) {
+        return laneWeights[lane.ordinal()];
+    }
+
+    /**
+     * Sets the number of messages a lane may send in its turn before the
+     * next lane that has messages waiting gets its turn. The defaults are
+     * 16 for <code>CONTROL</code>, 4 for <code>EVENTS</code> and 1 for
+     * <code>LOW</code>. Only matters when a client falls behind, see
+     * <code>RwsLane</code>.
+     */
+    public void setLaneWeight(RwsLane lane, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Lane weight must be at least 1");
+        }
+        laneWeights[lane.ordinal()] = weight;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public int getConnectionCount() {
+        int result = 0;
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                result += loop.getConnectionCount();
+            }
+        }
+        return result;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Server already started");
+        }
+        bufferPool = new BufferPool(bufferSize, maxPooledBuffers);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address, 1024);
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(this);
+            loops[i].start("rws-loop-" + i);
+        }
+        running = true;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "rws-acceptor");
+        acceptor.start();
+        log.info("RWS server listening on port {}", getPort());
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException ex) {
+                // The server is being stopped
+                break;
+            } catch (IOException ex) {
+                log.warn("Could not accept connection", ex);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new connections and closes all existing ones
+     */
+    public synchronized void stop() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        serverChannel.close();
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+        try {
+            acceptor.join();
+            for (EventLoop loop : loops) {
+                loop.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("RWS server stopped");
+    }
+}
@@ -0,0 +1,73 @@
+package org.codejive.rws.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executors for handling messages whose calls may block, for example
+ * because the exposed objects access a database. On Java 21 and up each
+ * task runs on its own virtual thread, so even a very large number of
+ * blocking calls doesn't tie up any platform threads. The virtual thread
+ * support is looked up at runtime so RWS itself can still run on older
+ * Java versions, where a task-per-thread executor using ordinary threads is
+ * used instead.
+ * <p>
+ * <code>RwsSession.getInstance()</code> works the same on virtual threads,
+ * but because those threads are never reused anything cached in a
+ * <code>ThreadLocal</code> is thrown away after each task.
+ *
+ * @author tako
+ */
+public class RwsExecutors {
+    private static final Method newVirtualExecutor = findVirtualExecutorMethod();
+
+    private static final Logger log = LoggerFactory.getLogger(RwsExecutors.class);
+
+    private RwsExecutors() {
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return newVirtualExecutor != null;
+    }
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread, or
+     * on a new (or idle) platform thread if virtual threads aren't available
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        if (newVirtualExecutor != null) {
+            try {
+                return (ExecutorService) newVirtualExecutor.invoke(null);
+            } catch (Exception ex) {
+                log.warn("Could not create virtual thread executor, using platform threads", ex);
+            }
+        } else {
+            log.info("Virtual threads aren't supported by this JVM, using platform threads");
+        }
+        return Executors.newCachedThreadPool(new WorkerThreadFactory());
+    }
+
+    private static Method findVirtualExecutorMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "rws-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.codejive.rws.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.codejive.rws.RwsException;
+import org.codejive.rws.RwsObject;
+import org.codejive.rws.RwsRegistry;
+import org.codejive.rws.RwsTypeInfo;
+import org.codejive.rws.converters.RwsBeanConverter;
+
+/**
+ * Build time generator for the information that would otherwise have to be
+ * obtained by introspection at runtime. For each of the given classes it
+ * stores the type information in <code>META-INF/rws/</code> in the output
+ * directory, where <code>RwsTypeInfo</code> will find it at runtime.
+ * Optionally it also generates the object scripts so they can be served as
+ * static files. Usage:
+ * <pre>
+ * RwsGenerator [-s scriptDir] outputDir className[=scriptName]...
+ * </pre>
+ * In a Maven build it can be run in the <code>process-classes</code> phase
+ * using the <code>exec-maven-plugin</code> with the <code>java</code> goal,
+ * passing <code>${project.build.outputDirectory}</code> as the output
+ * directory.
+ *
+ * @author tako
+ */
+public class RwsGenerator {
+    private final File outputDir;
+    private final File scriptDir;
+
+    public RwsGenerator(File outputDir, File scriptDir) {
+        this.outputDir = outputDir;
+        this.scriptDir = scriptDir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int i = 0;
+        File scriptDir = null;
+        if (args.length > 1 && "-s".equals(args[0])) {
+            scriptDir = new File(args[1]);
+            i = 2;
+        }
+        if (args.length < i + 2) {
+            System.err.println("Usage: RwsGenerator [-s scriptDir] outputDir className[=scriptName]...");
+            System.exit(1);
+        }
+        RwsGenerator generator = new RwsGenerator(new File(args[i++]), scriptDir);
+        List<Class> types = new ArrayList<Class>();
+        List<String> scriptNames = new ArrayList<String>();
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        for (; i < args.length; i++) {
+            String[] parts = args[i].split("=", 2);
+            types.add(Class.forName(parts[0], false, loader));
+            scriptNames.add((parts.length > 1) ? parts[1] : null);
+        }
+        generator.generate(types, scriptNames);
+    }
+
+    /**
+     * Generates the type information and, if a script directory was given,
+     * the object scripts for the given types. The script names may contain
+     * nulls in which case the simple name of the class will be used.
+     */
+    public void generate(List<Class> types, List<String> scriptNames) throws RwsException, IOException {
+        File metadataDir = new File(outputDir, RwsTypeInfo.METADATA_PATH);
+        metadataDir.mkdirs();
+        for (Class type : types) {
+            OutputStream out = new FileOutputStream(new File(metadataDir, type.getName() + ".properties"));
+            try {
+                RwsTypeInfo.introspect(type).store(out, "Generated by RwsGenerator for " + type.getName());
+            } finally {
+                out.close();
+            }
+        }
+
+        if (scriptDir != null) {
+            RwsRegistry registry = new RwsRegistry();
+            List<RwsObject> objects = new ArrayList<RwsObject>();
+            for (int i = 0; i < types.size(); i++) {
+                RwsObject obj = new RwsObject(types.get(i), scriptNames.get(i), new RwsBeanConverter(registry));
+                registry.register(obj);
+                objects.add(obj);
+            }
+            File objectDir = new File(scriptDir, "object");
+            objectDir.mkdirs();
+            for (RwsObject obj : objects) {
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(objectDir, obj.scriptName() + ".js")), "UTF-8"));
+                try {
+                    out.println("if (!rws) var rws = {};");
+                    registry.generateTypeScript(obj.getTargetClass(), out);
+                } finally {
+                    out.close();
+                }
+            }
+        }
+    }
+}
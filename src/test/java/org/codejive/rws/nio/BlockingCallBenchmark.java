@@ -0,0 +1,228 @@
+package org.codejive.rws.nio;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.codejive.rws.RwsContext;
+import org.codejive.rws.RwsObject;
+import org.codejive.rws.RwsRegistry;
+import org.codejive.rws.converters.RwsBeanConverter;
+import org.codejive.rws.utils.RwsExecutors;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Measures how long it takes to handle a large number of concurrent calls
+ * that block, comparing the task-per-thread executor from
+ * <code>RwsExecutors</code> (virtual threads on Java 21 and up) with a
+ * fixed pool of platform threads. The clients open a number of connections
+ * and send all their calls at once, the server handles them with ordered
+ * delivery turned off so the calls of a connection run concurrently.
+ * <p>
+ * Run it with <code>java BlockingCallBenchmark [calls [connections
+ * [sleepMillis [poolSize]]]]</code>, the defaults are 10000 calls over 100
+ * connections, each call sleeping 100 ms, and a pool of 200 threads.
+ *
+ * @author tako
+ */
+public class BlockingCallBenchmark {
+
+    public static class Sleeper {
+        public int nap(int millis) throws InterruptedException {
+            Thread.sleep(millis);
+            return millis;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int calls = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int connections = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        int sleep = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+        int poolSize = (args.length > 3) ? Integer.parseInt(args[3]) : 200;
+
+        System.out.println("Virtual threads supported: " + RwsExecutors.isVirtualThreadSupported());
+        System.out.println(calls + " calls over " + connections + " connections, each blocking " + sleep + " ms");
+
+        // Warm up both executors before measuring
+        run(RwsExecutors.newThreadPerTaskExecutor(), calls / 10, connections, sleep);
+        run(Executors.newFixedThreadPool(poolSize), calls / 10, connections, sleep);
+
+        long perTask = run(RwsExecutors.newThreadPerTaskExecutor(), calls, connections, sleep);
+        report("Thread per task", calls, perTask);
+        long pooled = run(Executors.newFixedThreadPool(poolSize), calls, connections, sleep);
+        report("Fixed pool of " + poolSize, calls, pooled);
+    }
+
+    private static void report(String name, int calls, long nanos) {
+        double millis = nanos / 1000000.0;
+        System.out.printf("%-20s %10.1f ms %12.0f calls/s  peak threads %d%n", name, millis, calls * 1000.0 / millis,
+                ManagementFactory.getThreadMXBean().getPeakThreadCount());
+    }
+
+    // Returns the time in nanoseconds from sending the first call until the
+    // last result arrived
+    private static long run(ExecutorService executor, int calls, int connections, int sleep) throws Exception {
+        RwsContext context = new RwsContext();
+        RwsRegistry registry = context.getRegistry();
+        registry.register(new RwsObject(Sleeper.class, null, new RwsBeanConverter(registry)), context, "sleeper", new Sleeper());
+        RwsServer server = new RwsServer(context, new InetSocketAddress("127.0.0.1", 0), 2);
+        server.setExecutor(executor);
+        server.setOrderedDelivery(false);
+        server.start();
+        try {
+            List<Client> clients = new ArrayList<Client>();
+            for (int i = 0; i < connections; i++) {
+                clients.add(new Client(server.getPort()));
+            }
+            CountDownLatch done = new CountDownLatch(calls);
+            AtomicReference<String> failure = new AtomicReference<String>();
+            for (Client client : clients) {
+                client.receive(done, failure);
+            }
+            ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                clients.get(i % connections).call(i, sleep);
+            }
+            if (!done.await(10, TimeUnit.MINUTES)) {
+                throw new IOException("Not all results arrived, " + done.getCount() + " missing");
+            }
+            long elapsed = System.nanoTime() - start;
+            if (failure.get() != null) {
+                throw new IOException(failure.get());
+            }
+            for (Client client : clients) {
+                client.close();
+            }
+            return elapsed;
+        } finally {
+            server.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    // A bare bones WebSocket client that only knows about text frames
+    private static class Client {
+        private final Socket socket;
+        private final OutputStream out;
+        private final DataInputStream in;
+        // The ids of the calls that are still waiting for their result
+        private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        public Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new DataInputStream(socket.getInputStream());
+            out.write(("GET /rws HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes("UTF-8"));
+            StringBuilder response = new StringBuilder();
+            while (response.length() < 4 || !response.substring(response.length() - 4).equals("\r\n\r\n")) {
+                int c = in.read();
+                if (c < 0) {
+                    throw new IOException("Connection closed during handshake");
+                }
+                response.append((char) c);
+            }
+        }
+
+        public synchronized void call(int id, int sleep) throws IOException {
+            pending.add(Integer.toString(id));
+            byte[] data = ("{\"id\":\"" + id + "\",\"object\":\"sleeper\",\"method\":\"nap\",\"params\":[" + sleep + "]}").getBytes("UTF-8");
+            byte[] frame = new byte[2 + 4 + data.length + 2];
+            int pos = 0;
+            frame[pos++] = (byte) 0x81;
+            if (data.length < 126) {
+                frame[pos++] = (byte) (0x80 | data.length);
+            } else {
+                frame[pos++] = (byte) (0x80 | 126);
+                frame[pos++] = (byte) (data.length >> 8);
+                frame[pos++] = (byte) data.length;
+            }
+            // A zero mask leaves the data as it is
+            pos += 4;
+            System.arraycopy(data, 0, frame, pos, data.length);
+            out.write(frame, 0, pos + data.length);
+        }
+
+        // Counts down for each result of a call made by this client, anything
+        // else is a failure that ends the run
+        public void receive(final CountDownLatch done, final AtomicReference<String> failure) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    String error;
+                    try {
+                        error = readResults(done);
+                    } catch (IOException ex) {
+                        error = (done.getCount() > 0) ? "Connection failed: " + ex : null;
+                    }
+                    if (error != null) {
+                        failure.compareAndSet(null, error);
+                        while (done.getCount() > 0) {
+                            done.countDown();
+                        }
+                    }
+                }
+            }, "benchmark-client");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // Returns null when all results arrived or the reason it stopped
+        private String readResults(CountDownLatch done) throws IOException {
+            JSONParser parser = new JSONParser();
+            while (done.getCount() > 0) {
+                int opcode = in.readUnsignedByte() & 0x0f;
+                long len = in.readUnsignedByte() & 0x7f;
+                if (len == 126) {
+                    len = in.readUnsignedShort();
+                } else if (len == 127) {
+                    len = in.readLong();
+                }
+                byte[] data = new byte[(int) len];
+                in.readFully(data);
+                String text = new String(data, "UTF-8");
+                if (opcode != 0x01) {
+                    return "Unexpected frame with opcode " + opcode;
+                }
+                Object msg;
+                try {
+                    msg = parser.parse(text);
+                } catch (ParseException ex) {
+                    return "Invalid reply: " + text;
+                }
+                if (!(msg instanceof JSONObject)) {
+                    return "Unexpected reply: " + text;
+                }
+                JSONObject reply = (JSONObject) msg;
+                if (!reply.containsKey("result")) {
+                    return "Call failed: " + text;
+                }
+                if (!pending.remove(String.valueOf(reply.get("id")))) {
+                    return "Result for an unknown call: " + text;
+                }
+                done.countDown();
+            }
+            return null;
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}